@@ -1,98 +1,265 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import javax.management.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class StudyStreak {
-    private static final String USERS_FILE = "users.dat";
-    private static final String GROUPS_FILE = "groups.dat";
-    private static final String ACTIVITY_LOG = "activity_log.txt";
+    private static final String USERS_FILE = "users.bin";
+    private static final String GROUPS_FILE = "groups.bin";
+    private static final String DATA_DIR = "data";
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final String PREVIOUS_MANIFEST_FILE = "MANIFEST.prev";
+    private static final String LOCK_FILE = "LOCK";
+    private static final String LEGACY_USERS_FILE = "users.dat";
+    private static final String LEGACY_GROUPS_FILE = "groups.dat";
+    private static final String ACTIVITY_DIR = "activity";
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String HISTORY_DIR = "history";
+    private static final String EVENTS_DIR = "events";
     private static final int MAX_HOURS_PER_DAY = 24;
+    private static final int AUTO_REMOVE_FAILURES = 3;
+    private static final int LEADERBOARD_PREVIEW = 10;
+    private static final int USER_CACHE_SIZE = Integer.getInteger("studystreak.userCacheSize", 10000);
+    private static final int EVAL_THREADS = Integer.getInteger("studystreak.evalThreads", Runtime.getRuntime().availableProcessors());
 
-    private static Map<String, User> users = new HashMap<>();
-    private static Map<String, Group> groups = new HashMap<>();
+    private static Map<String, User> users = new ConcurrentHashMap<>();
+    private static Map<String, Group> groups = new ConcurrentHashMap<>();
+    private static final SymbolTable USER_IDS = new SymbolTable();
+    private static final SymbolTable GROUP_IDS = new SymbolTable();
 
     private static final Scanner scanner = new Scanner(System.in);
-    private static LocalDate currentDate = LocalDate.now();
+    private static volatile Clock clock = RolloverScheduler.defaultClock();
+    private static volatile LocalDate currentDate = LocalDate.now(clock);
+
+    // An operation and its journal record are applied under STATE_LOCK's read side, holding the monitor of
+    // the group and then of the user it touches, so operations on the same group or user reach the journal
+    // in the order they were applied. Day rollover and checkpoints take the write side. Users are looked up
+    // before a user monitor is taken: UserStore locks itself before user monitors when it evicts.
+    private static final ReentrantReadWriteLock STATE_LOCK = new ReentrantReadWriteLock();
+    private static final Object NAMES = new Object();
+
+    interface Action {
+        void run() throws Exception;
+    }
 
     public static void main(String[] args) {
-        System.out.println("=== Group Study Streak System (Single-file) ===");
-        System.out.println("Simulated date: " + currentDate);
-        StorageManager.loadAll();
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            Server.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("worker")) {
+            Partitions.worker(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("route")) {
+            Partitions.route(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("import")) {
+            Importer.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("report")) {
+            Reports.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("check")) {
+            SelfCheck.run(args);
+            return;
+        }
+        out().println("=== Group Study Streak System (Single-file) ===");
+        out().println("Simulated date: " + currentDate);
+        Metrics.start();
+        if (!StorageManager.loadAll()) return;
+        RolloverScheduler.start();
+        startMenu();
+        StorageManager.saveAll();
+        ActivityLogger.close();
+        out().println("Saved data. Exiting.");
+    }
+
+    static PrintStream out() {
+        Server.Session s = Server.SESSION.get();
+        return s == null ? System.out : s.out;
+    }
+
+    static String readLine() {
+        Server.Session s = Server.SESSION.get();
+        if (s == null) return scanner.nextLine();
+        return s.readLine();
+    }
+
+    // Reads the user or group name an operation is keyed on. Behind a router the rest of the operation runs
+    // on the partition that owns the name, and null comes back once it has finished there.
+    private static String readKey(String op, User user) {
+        String key = readLine().trim();
+        if (!Partitions.routed()) return key;
+        Partitions.forward(op, user, key);
+        return null;
+    }
+
+    static void atomically(Object group, Object user, Action action) throws Exception {
+        STATE_LOCK.readLock().lock();
+        try {
+            synchronized (group) {
+                synchronized (user) {
+                    action.run();
+                }
+            }
+        } finally {
+            STATE_LOCK.readLock().unlock();
+        }
+        StorageManager.checkpointIfDue();
+    }
 
+    // Returns when the user picks Exit.
+    static void startMenu() {
         while (true) {
-            System.out.println("\n1) Login");
-            System.out.println("2) Register");
-            System.out.println("3) Evaluate day for all groups (simulate end of day)");
-            System.out.println("4) Exit");
-            System.out.print("Choose: ");
-            String c = scanner.nextLine().trim();
+            out().println("\n1) Login");
+            out().println("2) Register");
+            out().println("3) Evaluate day for all groups (simulate end of day)");
+            out().println("4) Exit");
+            out().print("Choose: ");
+            String c = readLine().trim();
             switch (c) {
                 case "1": loginFlow(); break;
                 case "2": registerFlow(); break;
                 case "3":
-                    evaluateAllGroups();
+                    if (Partitions.routed()) Partitions.evaluate();
+                    else evaluateAllGroups();
                     break;
-                case "4":
-                    StorageManager.saveAll();
-                    System.out.println("Saved data. Exiting.");
-                    return;
-                default: System.out.println("Invalid option"); break;
+                case "4": return;
+                default: out().println("Invalid option"); break;
             }
         }
     }
 
     private static void registerFlow() {
         try {
-            System.out.print("Choose username: ");
-            String uname = scanner.nextLine().trim();
+            out().print("Choose username: ");
+            String uname = readKey("register", null);
+            if (uname == null) return;
             if (users.containsKey(uname)) {
                 throw new UserAlreadyExistsException("Username already exists.");
             }
-            System.out.print("Choose password: ");
-            String password = scanner.nextLine();
-            String hash = SecurityUtil.hash(password);
-            User u = new User(uname, hash);
-            users.put(uname, u);
-            ActivityLogger.logGlobal("User registered: " + uname);
-            StorageManager.saveAll();
-            System.out.println("User registered. Please login.");
+            out().print("Choose password: ");
+            String password = readLine();
+            String hash = SecurityUtil.hashPassword(password);
+            atomically(NAMES, NAMES, () -> {
+                if (users.containsKey(uname)) throw new UserAlreadyExistsException("Username already exists.");
+                registerUser(uname, hash);
+                ActivityLogger.logGlobal("User registered: " + uname);
+                StorageManager.commit(Journal.REGISTER, uname, hash, 0);
+            });
+            out().println("User registered. Please login.");
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            out().println("Error: " + e.getMessage());
         }
     }
 
     private static void loginFlow() {
+        User user = login();
+        if (user != null) userMenu(user);
+    }
+
+    private static User login() {
         try {
-            System.out.print("Username: ");
-            String uname = scanner.nextLine().trim();
-            if (!users.containsKey(uname)) throw new InvalidLoginException("User not found.");
-            System.out.print("Password: ");
-            String password = scanner.nextLine();
+            out().print("Username: ");
+            String uname = readLine().trim();
+            if (Partitions.routed()) return Partitions.forward("login", null, uname) ? new User(uname, "") : null;
+            if (!users.containsKey(uname)) {
+                Metrics.LOGIN_FAILURE.inc();
+                throw new InvalidLoginException("User not found.");
+            }
+            out().print("Password: ");
+            String password = readLine();
             User user = users.get(uname);
-            if (!user.verifyPassword(password)) throw new InvalidLoginException("Invalid password.");
-            System.out.println("Welcome, " + uname + "!");
-            userMenu(user);
+            if (!user.verifyPassword(password)) {
+                Metrics.LOGIN_FAILURE.inc();
+                throw new InvalidLoginException("Invalid password.");
+            }
+            Metrics.LOGIN_SUCCESS.inc();
+            if (SecurityUtil.needsRehash(user.getPasswordHash())) {
+                String hash = SecurityUtil.hashPassword(password);
+                atomically(user, user, () -> {
+                    user.setPasswordHash(hash);
+                    StorageManager.commit(Journal.REHASH, uname, hash, 0);
+                });
+            }
+            out().println("Welcome, " + uname + "!");
+            return user;
         } catch (Exception e) {
-            System.out.println("Login failed: " + e.getMessage());
+            out().println("Login failed: " + e.getMessage());
+            return null;
         }
     }
 
     private static void userMenu(User user) {
         while (true) {
-            System.out.println("\n--- Main Menu (Logged in as " + user.getUsername() + ") ---");
-            System.out.println("1) Create Group");
-            System.out.println("2) Request to Join Group");
-            System.out.println("3) Approve/Reject Requests (admin only)");
-            System.out.println("4) Log study hours for a group");
-            System.out.println("5) View group dashboard (leaderboard, streak)");
-            System.out.println("6) View my group statuses");
-            System.out.println("7) Logout");
-            System.out.print("Choose: ");
-            String opt = scanner.nextLine().trim();
+            out().println("\n--- Main Menu (Logged in as " + user.getUsername() + ") ---");
+            out().println("1) Create Group");
+            out().println("2) Request to Join Group");
+            out().println("3) Approve/Reject Requests (admin only)");
+            out().println("4) Log study hours for a group");
+            out().println("5) View group dashboard (leaderboard, streak)");
+            out().println("6) View my group statuses");
+            out().println("7) Logout");
+            out().println("8) View group activity history");
+            out().println("9) View group study history");
+            out().println("10) Set group timezone and day cutoff (admin only)");
+            out().println("11) Search groups by name");
+            out().print("Choose: ");
+            String opt = readLine().trim();
             try {
                 switch (opt) {
                     case "1": createGroupFlow(user); break;
@@ -100,210 +267,458 @@ public class StudyStreak {
                     case "3": manageRequestsFlow(user); break;
                     case "4": logHoursFlow(user); break;
                     case "5": viewGroupDashboardFlow(); break;
-                    case "6": user.viewStatuses(); break;
+                    case "6":
+                        if (Partitions.routed()) Partitions.statuses(user);
+                        else user.viewStatuses();
+                        break;
                     case "7":
-                        StorageManager.saveAll();
-                        ActivityLogger.logGlobal("User logged out: " + user.getUsername());
+                        if (Partitions.routed()) Partitions.forward("logout", user, user.getUsername());
+                        else ActivityLogger.logGlobal("User logged out: " + user.getUsername());
                         return;
-                    default: System.out.println("Invalid option"); break;
+                    case "8": viewGroupActivityFlow(); break;
+                    case "9": viewGroupHistoryFlow(user); break;
+                    case "10": setGroupScheduleFlow(user); break;
+                    case "11": searchGroupsFlow(); break;
+                    default: out().println("Invalid option"); break;
                 }
             } catch (Exception e) {
-                System.out.println("Operation failed: " + e.getMessage());
+                out().println("Operation failed: " + e.getMessage());
             }
         }
     }
 
     private static void createGroupFlow(User creator) throws Exception {
-        System.out.print("Enter new group name: ");
-        String gname = scanner.nextLine().trim();
+        out().print("Enter new group name: ");
+        String gname = readKey("create", creator);
+        if (gname == null) return;
         if (groups.containsKey(gname)) throw new Exception("Group already exists");
-        System.out.print("Enter daily target hours (integer): ");
-        int target = Integer.parseInt(scanner.nextLine().trim());
-        Group g = new Group(gname, creator.getUsername(), target);
-        groups.put(gname, g);
-        g.addMember(creator.getUsername());
-        creator.joinGroupDirect(gname);
-        creator.setAdminForGroup(gname, true);
-        ActivityLogger.log(gname, "Group created by " + creator.getUsername() + " with target hours: " + target);
-        StorageManager.saveAll();
-        System.out.println("Group created and you are admin.");
+        out().print("Enter daily target hours (integer): ");
+        int target = Integer.parseInt(readLine().trim());
+        atomically(NAMES, creator, () -> {
+            if (groups.containsKey(gname)) throw new Exception("Group already exists");
+            createGroup(creator, gname, target);
+            ActivityLogger.log(gname, "Group created by " + creator.getUsername() + " with target hours: " + target);
+            StorageManager.commit(Journal.CREATE_GROUP, creator.getUsername(), gname, target);
+        });
+        out().println("Group created and you are admin.");
     }
 
     private static void requestJoinFlow(User user) throws Exception {
-        System.out.print("Enter group name to request join: ");
-        String gname = scanner.nextLine().trim();
+        out().print("Enter group name to request join: ");
+        String gname = readKey("join", user);
+        if (gname == null) return;
         if (!groups.containsKey(gname)) throw new GroupNotFoundException("Group not found");
         Group g = groups.get(gname);
-        g.addJoinRequest(user.getUsername());
-        ActivityLogger.log(gname, "Join request: " + user.getUsername());
-        StorageManager.saveAll();
-        System.out.println("Join request submitted.");
+        atomically(g, g, () -> {
+            g.addJoinRequest(user.getUsername());
+            ActivityLogger.log(gname, "Join request: " + user.getUsername());
+            StorageManager.commit(Journal.JOIN_REQUEST, user.getUsername(), gname, 0);
+        });
+        out().println("Join request submitted.");
     }
 
     private static void manageRequestsFlow(User user) throws Exception {
-        System.out.print("Enter group name to manage requests: ");
-        String gname = scanner.nextLine().trim();
+        out().print("Enter group name to manage requests: ");
+        String gname = readKey("manage", user);
+        if (gname == null) return;
         if (!groups.containsKey(gname)) throw new GroupNotFoundException("Group not found");
         Group g = groups.get(gname);
         if (!g.getAdminUsername().equals(user.getUsername())) throw new NotGroupAdminException("Only admin can manage requests");
-        List<String> reqs = g.getJoinRequests();
+        List<String> reqs = new ArrayList<>(g.getJoinRequests());
         if (reqs.isEmpty()) {
-            System.out.println("No pending requests.");
+            out().println("No pending requests.");
             return;
         }
-        System.out.println("Pending requests:");
+        out().println("Pending requests:");
         for (int i = 0; i < reqs.size(); ++i) {
-            System.out.println((i+1) + ") " + reqs.get(i));
+            out().println((i+1) + ") " + reqs.get(i));
         }
-        System.out.print("Enter request number to approve (or 0 to cancel): ");
-        int choice = Integer.parseInt(scanner.nextLine().trim());
+        out().print("Enter request number to approve (or 0 to cancel): ");
+        int choice = Integer.parseInt(readLine().trim());
         if (choice <= 0 || choice > reqs.size()) {
-            System.out.println("No action taken.");
+            out().println("No action taken.");
             return;
         }
         String candidate = reqs.get(choice-1);
-        System.out.print("Approve (A) or Reject (R)? ");
-        String ar = scanner.nextLine().trim().toUpperCase();
+        out().print("Approve (A) or Reject (R)? ");
+        String ar = readLine().trim().toUpperCase();
         if (ar.equals("A")) {
-            g.approveRequest(candidate);
-            if (users.containsKey(candidate)) {
-                users.get(candidate).joinGroupDirect(gname);
-            }
-            ActivityLogger.log(gname, "Admin " + user.getUsername() + " approved " + candidate);
-            System.out.println("Approved.");
+            User cand = users.get(candidate);
+            atomically(g, cand != null ? cand : g, () -> {
+                if (!g.hasJoinRequest(candidate)) throw new Exception("Request is no longer pending");
+                approveJoin(g, candidate, cand);
+                ActivityLogger.log(gname, "Admin " + user.getUsername() + " approved " + candidate);
+                Events.memberApproved(g.openDay(), gname, candidate);
+                StorageManager.commit(Journal.APPROVE, candidate, gname, 0);
+            });
+            out().println("Approved.");
         } else {
-            g.rejectRequest(candidate);
-            ActivityLogger.log(gname, "Admin " + user.getUsername() + " rejected " + candidate);
-            System.out.println("Rejected.");
+            atomically(g, g, () -> {
+                if (!g.hasJoinRequest(candidate)) throw new Exception("Request is no longer pending");
+                g.rejectRequest(candidate);
+                ActivityLogger.log(gname, "Admin " + user.getUsername() + " rejected " + candidate);
+                StorageManager.commit(Journal.REJECT, candidate, gname, 0);
+            });
+            out().println("Rejected.");
         }
-        StorageManager.saveAll();
     }
 
     private static void logHoursFlow(User user) throws Exception {
-        System.out.print("Enter group name you want to log for: ");
-        String gname = scanner.nextLine().trim();
+        out().print("Enter group name you want to log for: ");
+        String gname = readKey("log", user);
+        if (gname == null) return;
         if (!groups.containsKey(gname)) throw new GroupNotFoundException("Group not found");
         Group g = groups.get(gname);
         if (!user.isMemberOfGroup(gname)) throw new UserNotInGroupException("You are not a member of this group");
-        System.out.print("Enter hours studied today (integer, max 24): ");
-        int hrs = Integer.parseInt(scanner.nextLine().trim());
+        out().print("Enter hours studied today (integer, max 24): ");
+        int hrs = Integer.parseInt(readLine().trim());
         if (hrs < 0 || hrs > MAX_HOURS_PER_DAY) throw new InvalidHoursException("Hours must be between 0 and " + MAX_HOURS_PER_DAY);
-        user.logForGroup(gname, hrs);
-        g.updateTodayStudy(user.getUsername(), hrs);
-        ActivityLogger.log(gname, user.getUsername() + " logged " + hrs + " hours today.");
-        StorageManager.saveAll();
-        System.out.println("Logged. Current group leaderboard:");
-        g.printLeaderboard();
+        RolloverScheduler.catchUp(g);
+        atomically(g, user, () -> {
+            logHours(user, g, hrs);
+            ActivityLogger.log(gname, user.getUsername() + " logged " + hrs + " hours today.");
+            Events.hoursLogged(g.openDay(), gname, user.getUsername(), hrs,
+                    g.failuresOf(user.getUsername(), user.getStatus(gname).getConsecutiveFailures()));
+            StorageManager.commit(Journal.LOG_HOURS, user.getUsername(), gname, hrs);
+        });
+        out().println("Logged. Current group leaderboard (top " + LEADERBOARD_PREVIEW + "):");
+        g.printLeaderboard(0, LEADERBOARD_PREVIEW);
+        out().println("Your rank today: " + g.getRank(user.getUsername()) + " of " + g.memberCount());
+    }
+
+    private static void setGroupScheduleFlow(User user) throws Exception {
+        out().print("Enter group name: ");
+        String gname = readKey("schedule", user);
+        if (gname == null) return;
+        if (!groups.containsKey(gname)) throw new GroupNotFoundException("Group not found");
+        Group g = groups.get(gname);
+        if (!g.getAdminUsername().equals(user.getUsername())) throw new NotGroupAdminException("Only admin can change the schedule");
+        out().print("Timezone [" + g.getZone() + "]: ");
+        String z = readLine().trim();
+        out().print("Day closes at, HH:mm [" + g.getCutoff() + "]: ");
+        String c = readLine().trim();
+        ZoneId zone;
+        LocalTime cutoff;
+        try {
+            zone = z.isEmpty() ? g.getZone() : ZoneId.of(z);
+            cutoff = c.isEmpty() ? g.getCutoff() : LocalTime.parse(c);
+        } catch (DateTimeException e) {
+            out().println("Invalid timezone or time: " + e.getMessage());
+            return;
+        }
+        atomically(g, g, () -> {
+            g.setSchedule(zone, cutoff);
+            g.realign(clock.instant());
+            ActivityLogger.log(gname, "Admin " + user.getUsername() + " set the day to close at " + cutoff + " " + zone);
+            StorageManager.commit(Journal.SCHEDULE, gname, zone.getId() + " " + cutoff, (int) g.openDay().toEpochDay());
+        });
+        RolloverScheduler.schedule(g);
+        out().println("Day " + g.openDay() + " now closes at " + g.closesAt().atZone(zone).toLocalDateTime() + " " + zone + ".");
     }
 
     private static void viewGroupDashboardFlow() {
-        System.out.print("Enter group name to view dashboard: ");
-        String gname = scanner.nextLine().trim();
+        out().print("Enter group name to view dashboard: ");
+        String gname = readKey("dashboard", null);
+        if (gname == null) return;
         if (!groups.containsKey(gname)) {
-            System.out.println("Group not found");
+            out().println("Group not found");
             return;
         }
         Group g = groups.get(gname);
-        System.out.println("\n=== Dashboard for group: " + gname + " ===");
-        System.out.println("Admin: " + g.getAdminUsername());
-        System.out.println("Streak: " + g.getStreakCount());
-        System.out.println("Target hours/day: " + g.getTargetHours());
-        System.out.println("Members (" + g.getMembers().size() + "): " + String.join(", ", g.getMembers()));
-        System.out.println("\nLeaderboard (today):");
-        g.printLeaderboard();
-        System.out.println("\nPending join requests: " + g.getJoinRequests());
+        DashboardCache.Dashboard d = DashboardCache.get(g);
+        out().println(d.text);
+        if (!d.paged()) return;
+        int page = DashboardCache.PAGE;
+        while (true) {
+            out().print("\nMore: (m)embers, (l)eaderboard, (r)equests, or Enter to return: ");
+            String what = readLine().trim().toLowerCase();
+            if (!what.equals("m") && !what.equals("l") && !what.equals("r")) return;
+            out().print("Page number: ");
+            int offset;
+            try {
+                offset = (Integer.parseInt(readLine().trim()) - 1) * page;
+            } catch (NumberFormatException e) {
+                out().println("Invalid page.");
+                continue;
+            }
+            if (offset < 0) {
+                out().println("Invalid page.");
+            } else if (what.equals("m")) {
+                out().println(String.join(", ", g.getMembersPage(offset, page)));
+            } else if (what.equals("l")) {
+                g.printLeaderboard(offset, page);
+            } else {
+                out().println(g.getJoinRequestsPage(offset, page));
+            }
+        }
     }
 
-    private static void evaluateAllGroups() {
-        System.out.println("Simulating end-of-day for " + currentDate + " and evaluating all groups...");
-        for (Group g : groups.values()) {
-            try {
-                g.evaluateTodayAndUpdate(users);
-            } catch (Exception e) {
-                System.out.println("Error evaluating group " + g.getGroupName() + ": " + e.getMessage());
+    private static void searchGroupsFlow() {
+        out().print("Search groups by name (blank for all): ");
+        String query = readLine().trim();
+        int page = GroupIndex.PAGE;
+        for (int offset = 0; ; offset += page) {
+            List<GroupIndex.Hit> hits = Partitions.routed() ? Partitions.search(query, offset + page)
+                    : GroupIndex.live().search(query, offset + page);
+            if (hits.isEmpty()) {
+                out().println("No groups match.");
+                return;
             }
+            for (int i = offset; i < hits.size(); i++) {
+                GroupIndex.Hit h = hits.get(i);
+                out().println((i + 1) + ". " + h.name + " - " + h.members + " members, streak " + h.streak
+                        + (h.distance > 0 ? " (close match)" : ""));
+            }
+            if (hits.size() < offset + page) return;
+            out().print("\n(n)ext page, or Enter to return: ");
+            if (!readLine().trim().equalsIgnoreCase("n")) return;
+        }
+    }
+
+    private static void viewGroupActivityFlow() throws IOException {
+        out().print("Enter group name to view activity: ");
+        String gname = readKey("activity", null);
+        if (gname == null) return;
+        if (!groups.containsKey(gname)) {
+            out().println("Group not found");
+            return;
+        }
+        out().print("From date (YYYY-MM-DD, blank for a week ago): ");
+        String f = readLine().trim();
+        out().print("To date (YYYY-MM-DD, blank for today): ");
+        String t = readLine().trim();
+        LocalDate to = t.isEmpty() ? currentDate : LocalDate.parse(t);
+        LocalDate from = f.isEmpty() ? to.minusDays(7) : LocalDate.parse(f);
+        out().println("\n=== Activity for group: " + gname + " (" + from + " to " + to + ") ===");
+        int n = ActivityLogger.query(gname, from, to, out()::println);
+        out().println(n + " entries.");
+    }
+
+    private static void viewGroupHistoryFlow(User user) {
+        out().print("Enter group name to view history: ");
+        String gname = readKey("history", user);
+        if (gname == null) return;
+        if (!groups.containsKey(gname)) {
+            out().println("Group not found");
+            return;
         }
-        currentDate = currentDate.plusDays(1);
-        System.out.println("Advanced simulated date to " + currentDate + ". Resetting daily logs for new day...");
-        for (Group g : groups.values()) {
-            g.resetTodayMaps();
+        LocalDate last = groups.get(gname).getLastUpdatedDate();
+        out().println("\n=== Study history for group: " + gname + " (through " + last + ") ===");
+        out().println("Longest streak ever: " + HistoryStore.group(gname, LocalDate.MIN, last).longestStreak);
+        for (int days : new int[] { 7, 30, 365 }) {
+            HistoryStore.GroupHistory h = HistoryStore.group(gname, last.minusDays(days - 1), last);
+            out().println("Last " + days + " days: " + h.hours + " hrs, target met on " + h.daysMet + " of " + h.days + " recorded days");
         }
-        for (User u : users.values()) {
-            u.resetDailyFlags();
+        int[] mine = HistoryStore.member(user.getUsername(), gname, last.minusDays(29), last);
+        out().println("Your last 30 days: " + mine[2] + " hrs, target met on " + mine[1] + " of " + mine[0]
+                + " days, longest run " + mine[3]);
+        HistoryStore.GroupHistory month = HistoryStore.group(gname, last.minusDays(29), last);
+        List<Map.Entry<String, int[]>> ranked = new ArrayList<>(month.members.entrySet());
+        ranked.sort((a, b) -> Long.compare((long) b.getValue()[1] * a.getValue()[0], (long) a.getValue()[1] * b.getValue()[0]));
+        out().println("\nMember compliance, last 30 days (top " + LEADERBOARD_PREVIEW + "):");
+        for (int i = 0; i < Math.min(LEADERBOARD_PREVIEW, ranked.size()); i++) {
+            int[] m = ranked.get(i).getValue();
+            out().println((i + 1) + ". " + ranked.get(i).getKey() + " - " + (100 * m[1] / m[0]) + "% (" + m[1] + "/" + m[0] + " days, " + m[2] + " hrs)");
         }
-        StorageManager.saveAll();
-        System.out.println("Evaluation complete. Activity log updated.");
     }
 
-    static class User implements Serializable {
-        private static final long serialVersionUID = 1L;
+    private static void evaluateAllGroups() {
+        boolean simulated = clock instanceof SimulatedClock;
+        if (simulated) {
+            out().println("Simulating end-of-day for " + currentDate + " and evaluating all groups...");
+        } else {
+            out().println("Groups roll over at their own cutoffs on the system clock; evaluating any that are due...");
+        }
+        long t0 = System.nanoTime();
+        int days = RolloverScheduler.advanceDay();
+        if (simulated) out().println("Advanced simulated date to " + currentDate + ". Daily logs reset for new day.");
+        out().println(String.format("Rolled over %d group-day(s) on %d thread(s) in %d ms.",
+                days, Math.max(1, EVAL_THREADS), (System.nanoTime() - t0) / 1_000_000));
+        ActivityLogger.sync();
+        out().println("Evaluation complete. Activity log updated.");
+    }
+
+    static User registerUser(String uname, String passwordHash) {
+        User u = new User(uname, passwordHash);
+        users.put(uname, u);
+        return u;
+    }
+
+    static Group createGroup(User creator, String gname, int target) {
+        Group g = new Group(gname, creator.getUsername(), target);
+        groups.put(gname, g);
+        g.addMember(creator.getUsername());
+        GroupIndex.live().add(gname, g.memberCount(), g.getStreakCount());
+        creator.joinGroupDirect(gname);
+        creator.setAdminForGroup(gname, true);
+        RolloverScheduler.schedule(g);
+        return g;
+    }
+
+    static void approveJoin(Group g, String candidate, User cand) {
+        g.approveRequest(candidate);
+        if (cand != null) cand.joinGroupDirect(g.getGroupName());
+    }
+
+    static void logHours(User user, Group g, int hrs) throws LateLogException {
+        g.settle(user);
+        user.logForGroup(g.getGroupName(), hrs);
+        g.updateTodayStudy(user.getUsername(), hrs);
+    }
+
+    // Per-group facts are stored column-wise, one row per membership: group id, today's hours, failure
+    // streak, last log day and flag bits. UserGroupStatus is a view onto one row.
+    static class User {
+        static final byte LOGGED_TODAY = 1;
+        static final byte ADMIN = 2;
+        static final int NO_DAY = Integer.MIN_VALUE;
+
         private final String username;
-        private final String passwordHash;
-        private Map<String, Boolean> groupAdminMap = new HashMap<>();
-        private Map<String, UserGroupStatus> groupStatuses = new HashMap<>();
+        private String passwordHash;
+        private int[] groupIds = new int[0];
+        private byte[] todayHours = new byte[0];
+        private short[] failures = new short[0];
+        private int[] lastLogDays = new int[0];
+        private byte[] flags = new byte[0];
+        private int rows = 0;
+        private boolean dirty = false;
+        private UserStore store;
 
         public User(String username, String passwordHash) {
             this.username = username;
             this.passwordHash = passwordHash;
         }
 
+        void attachStore(UserStore s) { store = s; }
+        boolean isDirty() { return dirty; }
+        void clearDirty() { dirty = false; }
+
+        void markDirty() {
+            if (dirty) return;
+            dirty = true;
+            if (store != null) store.noteDirty(this);
+        }
+
         public String getUsername() { return username; }
+        public synchronized String getPasswordHash() { return passwordHash; }
+
+        public synchronized void setPasswordHash(String hash) {
+            passwordHash = hash;
+            markDirty();
+        }
 
         public boolean verifyPassword(String plain) {
             try {
-                return SecurityUtil.hash(plain).equals(passwordHash);
+                return SecurityUtil.verify(plain, getPasswordHash());
             } catch (Exception e) { return false; }
         }
 
-        public void setAdminForGroup(String groupName, boolean isAdmin) {
-            groupAdminMap.put(groupName, isAdmin);
+        int rowOf(int groupId) {
+            for (int i = 0; i < rows; i++) {
+                if (groupIds[i] == groupId) return i;
+            }
+            return -1;
+        }
+
+        private int rowOf(String groupName) {
+            int id = GROUP_IDS.idOf(groupName);
+            return id < 0 ? -1 : rowOf(id);
+        }
+
+        public synchronized void setAdminForGroup(String groupName, boolean isAdmin) {
+            int row = rowOf(groupName);
+            if (row < 0) return;
+            flags[row] = (byte) (isAdmin ? flags[row] | ADMIN : flags[row] & ~ADMIN);
+            markDirty();
         }
 
-        public boolean isAdminForGroup(String groupName) {
-            return groupAdminMap.getOrDefault(groupName, false);
+        public synchronized boolean isAdminForGroup(String groupName) {
+            int row = rowOf(groupName);
+            return row >= 0 && (flags[row] & ADMIN) != 0;
         }
 
-        public void joinGroupDirect(String groupName) {
-            if (!groupStatuses.containsKey(groupName)) {
-                groupStatuses.put(groupName, new UserGroupStatus(groupName));
+        public synchronized void joinGroupDirect(String groupName) {
+            int id = GROUP_IDS.intern(groupName);
+            if (rowOf(id) >= 0) return;
+            if (rows == groupIds.length) {
+                int cap = Math.max(2, rows * 2);
+                groupIds = Arrays.copyOf(groupIds, cap);
+                todayHours = Arrays.copyOf(todayHours, cap);
+                failures = Arrays.copyOf(failures, cap);
+                lastLogDays = Arrays.copyOf(lastLogDays, cap);
+                flags = Arrays.copyOf(flags, cap);
             }
+            groupIds[rows] = id;
+            todayHours[rows] = 0;
+            failures[rows] = 0;
+            lastLogDays[rows] = NO_DAY;
+            flags[rows] = 0;
+            rows++;
+            markDirty();
         }
 
-        public void leaveGroup(String groupName) {
-            groupAdminMap.remove(groupName);
-            groupStatuses.remove(groupName);
+        public synchronized void leaveGroup(String groupName) {
+            int row = rowOf(groupName);
+            if (row < 0) return;
+            int tail = rows - row - 1;
+            System.arraycopy(groupIds, row + 1, groupIds, row, tail);
+            System.arraycopy(todayHours, row + 1, todayHours, row, tail);
+            System.arraycopy(failures, row + 1, failures, row, tail);
+            System.arraycopy(lastLogDays, row + 1, lastLogDays, row, tail);
+            System.arraycopy(flags, row + 1, flags, row, tail);
+            rows--;
+            markDirty();
         }
 
-        public boolean isMemberOfGroup(String groupName) {
-            return groupStatuses.containsKey(groupName);
+        public synchronized boolean isMemberOfGroup(String groupName) {
+            return rowOf(groupName) >= 0;
         }
 
-        public void logForGroup(String groupName, int hours) throws LateLogException {
-            if (!groupStatuses.containsKey(groupName)) {
+        public synchronized void logForGroup(String groupName, int hours) throws LateLogException {
+            int row = rowOf(groupName);
+            if (row < 0) {
                 throw new RuntimeException("Not a member of this group");
             }
-            UserGroupStatus s = groupStatuses.get(groupName);
-            if (s.getLastLogDate() != null && s.getLastLogDate().isEqual(currentDate)) {
+            Group g = groups.get(groupName);
+            int today = (int) g.openDay().toEpochDay();
+            if (lastLogDays[row] == today) {
                 throw new LateLogException("You have already logged today for this group.");
             }
-            s.setTodayHours(hours);
-            s.setHasLoggedToday(true);
-            s.setLastLogDate(currentDate);
-            if (hours < groups.get(groupName).getTargetHours()) {
-                s.incrementConsecutiveFailures();
+            todayHours[row] = (byte) hours;
+            flags[row] |= LOGGED_TODAY;
+            lastLogDays[row] = today;
+            if (hours < g.getTargetHours()) {
+                incrementFailures(row);
             } else {
-                s.clearConsecutiveFailures();
+                failures[row] = 0;
             }
+            markDirty();
         }
 
         public void viewStatuses() {
-            if (groupStatuses.isEmpty()) {
-                System.out.println("You are not in any group.");
+            settleGroups();
+            printStatuses();
+        }
+
+        void settleGroups() {
+            for (UserGroupStatus s : getStatuses()) {
+                Group g = groups.get(s.getGroupName());
+                if (g != null) g.settle(this);
+            }
+        }
+
+        private synchronized void printStatuses() {
+            if (rows == 0) {
+                out().println("You are not in any group.");
                 return;
             }
-            System.out.println("Your group statuses:");
-            for (UserGroupStatus s : groupStatuses.values()) {
-                System.out.println("Group: " + s.getGroupName() +
+            out().println("Your group statuses:");
+            printStatusLines();
+        }
+
+        synchronized void printStatusLines() {
+            for (UserGroupStatus s : getStatuses()) {
+                out().println("Group: " + s.getGroupName() +
                         " | LoggedToday: " + s.isHasLoggedToday() +
                         " | TodayHours: " + s.getTodayHours() +
                         " | ConsecutiveFailures: " + s.getConsecutiveFailures() +
@@ -311,261 +726,7302 @@ public class StudyStreak {
             }
         }
 
-        public void resetDailyFlags() {
-            for (UserGroupStatus s : groupStatuses.values()) {
-                if (s.getLastLogDate() == null || s.getLastLogDate().isBefore(currentDate)) {
-                    s.setHasLoggedToday(false);
-                    s.setTodayHours(0);
-                }
-            }
+        // Clears a row's log for the day once its group has evaluated that day.
+        synchronized void resetDay(int row) {
+            if ((flags[row] & LOGGED_TODAY) == 0 && todayHours[row] == 0) return;
+            flags[row] &= ~LOGGED_TODAY;
+            todayHours[row] = 0;
+            markDirty();
         }
 
-        public Map<String, UserGroupStatus> getGroupStatuses() {
-            return groupStatuses;
+        public synchronized UserGroupStatus getStatus(String groupName) {
+            int row = rowOf(groupName);
+            return row < 0 ? null : new UserGroupStatus(this, groupIds[row]);
         }
+
+        public synchronized List<UserGroupStatus> getStatuses() {
+            List<UserGroupStatus> out = new ArrayList<>(rows);
+            for (int i = 0; i < rows; i++) out.add(new UserGroupStatus(this, groupIds[i]));
+            return out;
+        }
+
+        int groupCount() { return rows; }
+        boolean loggedToday(int row) { return (flags[row] & LOGGED_TODAY) != 0; }
+        int todayHours(int row) { return todayHours[row]; }
+        int failures(int row) { return failures[row]; }
+
+        void incrementFailures(int row) {
+            if (failures[row] < Short.MAX_VALUE) failures[row]++;
+        }
+
+        // Catches up a row its group's rollovers skipped. The count follows from the group's state, so the
+        // user is not marked dirty for it.
+        void settleFailures(int row, int n) { failures[row] = (short) n; }
     }
 
-    static class UserGroupStatus implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String groupName;
-        private int todayHours = 0;
-        private boolean hasLoggedToday = false;
-        private int consecutiveFailures = 0;
-        private LocalDate lastLogDate = null;
+    static class UserGroupStatus {
+        private final User owner;
+        private final int groupId;
 
-        public UserGroupStatus(String groupName) { this.groupName = groupName; }
+        UserGroupStatus(User owner, int groupId) {
+            this.owner = owner;
+            this.groupId = groupId;
+        }
 
-        public String getGroupName() { return groupName; }
-        public int getTodayHours() { return todayHours; }
-        public void setTodayHours(int h) { this.todayHours = h; }
-        public boolean isHasLoggedToday() { return hasLoggedToday; }
-        public void setHasLoggedToday(boolean b) { this.hasLoggedToday = b; }
-        public int getConsecutiveFailures() { return consecutiveFailures; }
-        public void incrementConsecutiveFailures() { consecutiveFailures++; }
-        public void clearConsecutiveFailures() { consecutiveFailures = 0; }
-        public LocalDate getLastLogDate() { return lastLogDate; }
-        public void setLastLogDate(LocalDate d) { lastLogDate = d; }
-    }
-
-    static class Group implements Serializable {
-        private static final long serialVersionUID = 1L;
+        private int row() {
+            int row = owner.rowOf(groupId);
+            if (row < 0) throw new IllegalStateException(owner.getUsername() + " left " + getGroupName());
+            return row;
+        }
+
+        public String getGroupName() { return GROUP_IDS.name(groupId); }
+        public int getTodayHours() { return owner.todayHours[row()]; }
+        public void setTodayHours(int h) { owner.todayHours[row()] = (byte) h; owner.markDirty(); }
+        public boolean isHasLoggedToday() { return owner.loggedToday(row()); }
+        public boolean isAdmin() { return (owner.flags[row()] & User.ADMIN) != 0; }
+        public int getConsecutiveFailures() { return owner.failures[row()]; }
+        public void incrementConsecutiveFailures() { owner.incrementFailures(row()); owner.markDirty(); }
+        public void clearConsecutiveFailures() { owner.failures[row()] = 0; owner.markDirty(); }
+        public void setConsecutiveFailures(int n) { owner.failures[row()] = (short) Math.min(n, Short.MAX_VALUE); owner.markDirty(); }
+
+        public void setHasLoggedToday(boolean b) {
+            int row = row();
+            owner.flags[row] = (byte) (b ? owner.flags[row] | User.LOGGED_TODAY : owner.flags[row] & ~User.LOGGED_TODAY);
+            owner.markDirty();
+        }
+
+        public LocalDate getLastLogDate() {
+            int day = owner.lastLogDays[row()];
+            return day == User.NO_DAY ? null : LocalDate.ofEpochDay(day);
+        }
+
+        public void setLastLogDate(LocalDate d) {
+            owner.lastLogDays[row()] = d == null ? User.NO_DAY : (int) d.toEpochDay();
+            owner.markDirty();
+        }
+    }
+
+    static class Group {
         private final String groupName;
+        private final int groupId;
         private int targetHours;
         private int streakCount = 0;
         private String adminUsername;
-        private List<String> members = new ArrayList<>();
-        private List<String> joinRequests = new ArrayList<>();
-        private transient Map<String, Integer> todayStudyMap = new HashMap<>();
-        private LocalDate lastUpdatedDate = currentDate;
+        private final IntLinkedSet members = new IntLinkedSet();
+        private final IntList touched = new IntList();
+        private final TreeMap<Integer, IntList> expiring = new TreeMap<>();
+        private final IntLinkedSet joinRequests = new IntLinkedSet();
+        private final Leaderboard leaderboard = new Leaderboard();
+        private LocalDate lastUpdatedDate = currentDate.minusDays(1);
+        private ZoneId zone = RolloverScheduler.DEFAULT_ZONE;
+        private LocalTime cutoff = RolloverScheduler.DEFAULT_CUTOFF;
+        private int version;
+        private boolean dirty = true;
 
         public Group(String groupName, String adminUsername, int targetHours) {
             this.groupName = groupName;
+            this.groupId = GROUP_IDS.intern(groupName);
             this.adminUsername = adminUsername;
             this.targetHours = targetHours;
-            this.todayStudyMap = new HashMap<>();
         }
 
-        private void ensureTransient() {
-            if (todayStudyMap == null) todayStudyMap = new HashMap<>();
+        public String getGroupName() { return groupName; }
+        synchronized boolean isDirty() { return dirty; }
+        synchronized void clearDirty() { dirty = false; }
+        public synchronized int getTargetHours() { return targetHours; }
+        public synchronized String getAdminUsername() { return adminUsername; }
+        public synchronized void setTargetHours(int h) { targetHours = h; version++; dirty = true; }
+
+        // Bumped by every change that shows on the dashboard.
+        synchronized int version() { return version; }
+
+        public synchronized Set<String> getMembers() { return new LinkedHashSet<>(new NameSet(members, USER_IDS)); }
+        public synchronized int memberCount() { return members.size(); }
+        synchronized int[] memberIds() { return members.toArray(); }
+        public synchronized Set<String> getJoinRequests() { return new LinkedHashSet<>(new NameSet(joinRequests, USER_IDS)); }
+        public synchronized int joinRequestCount() { return joinRequests.size(); }
+        public synchronized List<String> getMembersPage(int offset, int limit) { return page(members, offset, limit); }
+        public synchronized List<String> getJoinRequestsPage(int offset, int limit) { return page(joinRequests, offset, limit); }
+
+        private static List<String> page(IntLinkedSet set, int offset, int limit) {
+            List<String> out = new ArrayList<>(Math.max(0, Math.min(limit, set.size() - offset)));
+            int i = 0;
+            for (PrimitiveIterator.OfInt it = set.iterator(); it.hasNext() && out.size() < limit; i++) {
+                int id = it.nextInt();
+                if (i >= offset) out.add(USER_IDS.name(id));
+            }
+            return out;
+        }
+        public synchronized boolean hasJoinRequest(String username) {
+            int id = USER_IDS.idOf(username);
+            return id >= 0 && joinRequests.contains(id);
+        }
+
+        public synchronized void addMember(String username) {
+            int id = USER_IDS.intern(username);
+            if (members.add(id)) touched.add(id);
+            version++;
+            dirty = true;
+            reindex();
+        }
+        public synchronized void removeMember(String username) {
+            int id = USER_IDS.idOf(username);
+            if (id < 0) return;
+            members.remove(id);
+            leaderboard.remove(id);
+            version++;
+            dirty = true;
+            reindex();
+        }
+        public synchronized void addJoinRequest(String username) throws DuplicateJoinRequestException {
+            int id = USER_IDS.intern(username);
+            if (joinRequests.contains(id)) throw new DuplicateJoinRequestException("Already requested.");
+            if (members.contains(id)) throw new RuntimeException("Already a member");
+            joinRequests.add(id);
+            version++;
+            dirty = true;
+        }
+        synchronized void addJoinRequestDirect(String username) {
+            joinRequests.add(USER_IDS.intern(username));
+            version++;
+            dirty = true;
+        }
+        public synchronized void approveRequest(String username) {
+            int id = USER_IDS.intern(username);
+            joinRequests.remove(id);
+            if (members.add(id)) touched.add(id);
+            version++;
+            dirty = true;
+            reindex();
+        }
+        public synchronized void rejectRequest(String username) {
+            int id = USER_IDS.idOf(username);
+            if (id >= 0) joinRequests.remove(id);
+            version++;
+            dirty = true;
+        }
+
+        public synchronized int getStreakCount() { return streakCount; }
+        public synchronized void setStreakCount(int n) { streakCount = n; version++; dirty = true; reindex(); }
+        public synchronized LocalDate getLastUpdatedDate() { return lastUpdatedDate; }
+        public synchronized void setLastUpdatedDate(LocalDate d) { if (d != null) lastUpdatedDate = d; dirty = true; }
+        public synchronized ZoneId getZone() { return zone; }
+        public synchronized LocalTime getCutoff() { return cutoff; }
+        public synchronized void setSchedule(ZoneId z, LocalTime c) { zone = z; cutoff = c; version++; dirty = true; }
+
+        // A later cutoff or a zone further west can put the open day ahead of the local day; reopen the local
+        // day so it closes at its own cutoff, unless someone has already logged hours against the open day.
+        public synchronized void realign(Instant now) {
+            LocalDate local = dayAt(now);
+            if (openDay().isAfter(local) && leaderboard.isEmpty()) setLastUpdatedDate(local.minusDays(1));
         }
 
-        public String getGroupName() { return groupName; }
-        public int getTargetHours() { return targetHours; }
-        public String getAdminUsername() { return adminUsername; }
-        public void setTargetHours(int h) { targetHours = h; }
+        // lastUpdatedDate is the last day evaluated; the day after it is open for logging until its cutoff.
+        public synchronized LocalDate openDay() { return lastUpdatedDate.plusDays(1); }
+        synchronized LocalDate dayAt(Instant t) { return t.atZone(zone).minusSeconds(cutoff.toSecondOfDay()).toLocalDate(); }
+        synchronized Instant closesAt() { return openDay().plusDays(1).atTime(cutoff).atZone(zone).toInstant(); }
+        synchronized boolean isDue(Instant t) { return dayAt(t).isAfter(openDay()); }
+
+        public synchronized void updateTodayStudy(String username, int hours) {
+            int id = USER_IDS.intern(username);
+            leaderboard.set(id, hours);
+            setExpiry(id, TOUCHED);
+            version++;
+            dirty = true;
+            Metrics.HOURS_UPDATES.inc();
+        }
 
-        public List<String> getMembers() { return members; }
-        public List<String> getJoinRequests() { return joinRequests; }
+        public synchronized int getTodayHours(String username) {
+            int id = USER_IDS.idOf(username);
+            return id < 0 ? 0 : leaderboard.hoursOf(id);
+        }
+
+        public synchronized int getRank(String username) {
+            int id = USER_IDS.idOf(username);
+            return leaderboard.rankOf(id < 0 ? 0 : leaderboard.hoursOf(id));
+        }
+
+        public synchronized List<String> getLeaderboardPage(int offset, int limit) {
+            List<String> out = new ArrayList<>();
+            for (int id : leaderboard.page(members, offset, limit)) out.add(USER_IDS.name(id));
+            return out;
+        }
 
-        public void addMember(String username) {
-            if (!members.contains(username)) members.add(username);
+        public synchronized void printLeaderboard() {
+            printLeaderboard(0, Integer.MAX_VALUE);
         }
-        public void removeMember(String username) {
-            members.remove(username);
+
+        public synchronized void printLeaderboard(int offset, int limit) {
+            int[] page = leaderboard.page(members, offset, limit);
+            for (int i = 0; i < page.length; ++i) {
+                out().println((offset+i+1) + ". " + USER_IDS.name(page[i]) + " - " + leaderboard.hoursOf(page[i]) + " hrs");
+            }
         }
-        public void addJoinRequest(String username) throws DuplicateJoinRequestException {
-            if (joinRequests.contains(username)) throw new DuplicateJoinRequestException("Already requested.");
-            if (members.contains(username)) throw new RuntimeException("Already a member");
-            joinRequests.add(username);
+
+        synchronized void appendLeaderboard(StringBuilder sb, int offset, int limit) {
+            int[] page = leaderboard.page(members, offset, limit);
+            for (int i = 0; i < page.length; ++i) {
+                sb.append(offset + i + 1).append(". ").append(USER_IDS.name(page[i])).append(" - ")
+                        .append(leaderboard.hoursOf(page[i])).append(" hrs\n");
+            }
         }
-        public void approveRequest(String username) {
-            joinRequests.remove(username);
-            addMember(username);
+
+        // Each member's value in members is TOUCHED when it joined or logged since the last rollover, and is
+        // evaluated at the next one. Otherwise the member has not logged since the rollover that last evaluated
+        // it and the value is the day it expires on: its failure streak grows by one a day and reaches
+        // AUTO_REMOVE_FAILURES that day, so it is only read back then or when the member is next used.
+        // touched and expiring (by day) list the members by value, so a rollover reaches only those it
+        // evaluates. A member is appended when its value changes and is not taken off the list it was on; a
+        // rollover skips entries whose member has left or moved on to a later day.
+        private static final int TOUCHED = 0;
+
+        private void setExpiry(int id, int day) {
+            int slot = members.positionOf(id);
+            if (slot < 0 || (day == TOUCHED && members.valueAt(slot) == TOUCHED)) return;
+            members.setValueAt(slot, day);
+            (day == TOUCHED ? touched : expiring.computeIfAbsent(day, k -> new IntList())).add(id);
         }
-        public void rejectRequest(String username) {
-            joinRequests.remove(username);
+
+        private int expiresOn(int id) {
+            int day = id < 0 ? -1 : members.value(id);
+            return day == TOUCHED ? -1 : day;
         }
 
-        public int getStreakCount() { return streakCount; }
+        // Days after the last evaluated day that a member left alone expires on, or 0 when it is touched.
+        synchronized int expiresIn(String username) {
+            int day = expiresOn(USER_IDS.idOf(username));
+            return day < 0 ? 0 : day - (int) lastUpdatedDate.toEpochDay();
+        }
 
-        public void updateTodayStudy(String username, int hours) {
-            ensureTransient();
-            todayStudyMap.put(username, hours);
-            sortLeaderboard();
+        synchronized void setExpiresIn(String username, int days) {
+            int id = USER_IDS.idOf(username);
+            if (id >= 0 && days > 0) {
+                setExpiry(id, (int) lastUpdatedDate.toEpochDay() + days);
+                dirty = true;
+            }
         }
 
-        public void printLeaderboard() {
-            ensureTransient();
-            List<String> sorted = members.stream()
-                    .sorted((a, b) -> Integer.compare(todayStudyMap.getOrDefault(b, 0), todayStudyMap.getOrDefault(a, 0)))
-                    .collect(Collectors.toList());
-            for (int i = 0; i < sorted.size(); ++i) {
-                String u = sorted.get(i);
-                System.out.println((i+1) + ". " + u + " - " + todayStudyMap.getOrDefault(u, 0) + " hrs");
+        // Brings a member's failure streak up to the last evaluated day. Takes the group monitor, then the user's.
+        synchronized void settle(User u) {
+            int day = expiresOn(USER_IDS.idOf(u.getUsername()));
+            if (day < 0) return;
+            synchronized (u) {
+                int row = u.rowOf(groupId);
+                if (row < 0 || u.failures(row) == idleFailures(day)) return;
+                u.settleFailures(row, idleFailures(day));
+                u.markDirty();
+                dirty = true;
             }
         }
 
-        private void sortLeaderboard() {
-            ensureTransient();
-            members.sort((a, b) -> Integer.compare(todayStudyMap.getOrDefault(b, 0), todayStudyMap.getOrDefault(a, 0)));
+        // A member's failure streak as of the last evaluated day, given the count stored with the user, without
+        // settling it.
+        synchronized int failuresOf(String username, int stored) {
+            int day = expiresOn(USER_IDS.idOf(username));
+            return day < 0 ? stored : idleFailures(day);
+        }
+
+        private int idleFailures(int expiresOn) {
+            return Math.max(0, AUTO_REMOVE_FAILURES - (expiresOn - (int) lastUpdatedDate.toEpochDay()));
         }
 
-        public void evaluateTodayAndUpdate(Map<String, User> allUsers) {
-            ensureTransient();
+        public synchronized void evaluateTodayAndUpdate(Map<String, User> allUsers) {
+            evaluateTodayAndUpdate(allUsers, null);
+        }
+
+        // Evaluates the open day and clears each member's log for it, reaching only the touched members and
+        // those expiring that day; the rest did not log and are recorded as such. Today's hours of each member,
+        // as evaluated, are added to history when it is given.
+        public synchronized void evaluateTodayAndUpdate(Map<String, User> allUsers, HistoryStore.Day history) {
             int total = members.size();
-            if (total == 0) return;
+            LocalDate evaluated = openDay();
+            if (total == 0) {
+                touched.clear();
+                expiring.clear();
+                lastUpdatedDate = evaluated;
+                version++;
+                dirty = true;
+                return;
+            }
+            HistoryStore.GroupDay day = history == null ? null : new HistoryStore.GroupDay(groupName, members.slotIds());
+            int today = (int) evaluated.toEpochDay();
             int met = 0;
             List<String> toRemove = new ArrayList<>();
-            for (String m : new ArrayList<>(members)) {
-                User u = allUsers.get(m);
-                if (u == null) {
-                    toRemove.add(m);
-                    continue;
+            int visited = 0;
+            SortedMap<Integer, IntList> expired = expiring.headMap(today, true);
+            int listed = touched.size();
+            for (IntList ids : expired.values()) listed += ids.size();
+            // Members are reached in join order: by walking every slot when many are due, else by sorting the
+            // slots of those listed. A member evaluated once is past today, so a second entry for it is skipped.
+            IntList[] ahead = new IntList[AUTO_REMOVE_FAILURES + 1];
+            if (listed * 4 >= members.slots()) {
+                for (int slot = 0; slot < members.slots(); slot++) {
+                    int id = members.idAt(slot);
+                    if (id == IntLinkedSet.TOMBSTONE || members.valueAt(slot) > today) continue;
+                    visited++;
+                    if (evaluateMember(slot, id, evaluated, allUsers, day, toRemove, ahead)) met++;
                 }
-                UserGroupStatus s = u.getGroupStatuses().get(groupName);
-                boolean metToday = false;
-                if (s != null && s.isHasLoggedToday() && s.getTodayHours() >= targetHours) {
-                    met++;
-                    metToday = true;
-                }
-                if (s != null) {
-                    if (!metToday) s.incrementConsecutiveFailures();
-                    if (s.getConsecutiveFailures() >= 3) {
-                        toRemove.add(m);
-                        ActivityLogger.log(groupName, "Auto-removed user " + m + " after " + s.getConsecutiveFailures() + " consecutive failures.");
-                    }
+            } else {
+                long[] due = new long[listed];
+                int n = 0;
+                for (IntList ids : expired.values()) n = addSlots(ids, due, n);
+                n = addSlots(touched, due, n);
+                Arrays.sort(due, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int slot = (int) (due[i] >>> 32);
+                    if (members.valueAt(slot) > today) continue;
+                    visited++;
+                    if (evaluateMember(slot, (int) due[i], evaluated, allUsers, day, toRemove, ahead)) met++;
                 }
             }
+            expired.clear();
+            touched.clear();
+            Metrics.EVALUATE_MEMBERS.add(visited);
             int required = (int) Math.ceil(0.75 * total);
             if (met >= required) {
                 streakCount++;
-                ActivityLogger.log(groupName, "Streak incremented to " + streakCount + " (met " + met + "/" + total + ")");
+                ActivityLogger.log(evaluated, groupName, "Streak incremented to " + streakCount + " (met " + met + "/" + total + ")");
+                Events.streakIncremented(evaluated, groupName, streakCount, met, total);
             } else {
                 streakCount = 0;
-                ActivityLogger.log(groupName, "Streak broken. Met " + met + "/" + total + " (required " + required + ")");
+                ActivityLogger.log(evaluated, groupName, "Streak broken. Met " + met + "/" + total + " (required " + required + ")");
+                Events.streakBroken(evaluated, groupName, met, total, required);
+            }
+            if (day != null) {
+                day.finish(streakCount, targetHours, met);
+                history.add(day);
             }
             for (String r : toRemove) {
                 removeMember(r);
                 User uu = allUsers.get(r);
-                if (uu != null) uu.leaveGroup(groupName);
+                if (uu != null) {
+                    synchronized (uu) {
+                        uu.leaveGroup(groupName);
+                    }
+                }
             }
-            lastUpdatedDate = currentDate;
+            lastUpdatedDate = evaluated;
+            version++;
+            dirty = true;
+            reindex();
         }
 
-        public void resetTodayMaps() {
-            ensureTransient();
-            todayStudyMap.clear();
+        private int addSlots(IntList ids, long[] out, int n) {
+            for (int i = 0; i < ids.size(); i++) {
+                int slot = members.positionOf(ids.get(i));
+                if (slot >= 0) out[n++] = (long) slot << 32 | ids.get(i);
+            }
+            return n;
         }
 
-        private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
-            ois.defaultReadObject();
-            this.todayStudyMap = new HashMap<>();
+        // Evaluates one due member for the day and returns whether it met the target. ahead[d] caches the list
+        // in expiring for d days after the evaluated one.
+        private boolean evaluateMember(int slot, int id, LocalDate evaluated, Map<String, User> allUsers,
+                                       HistoryStore.GroupDay day, List<String> toRemove, IntList[] ahead) {
+            int today = (int) evaluated.toEpochDay();
+            int expires = members.valueAt(slot);
+            members.setValueAt(slot, today + 1);
+            String m = USER_IDS.name(id);
+            User u = allUsers.get(m);
+            if (u == null) {
+                toRemove.add(m);
+                return false;
+            }
+            synchronized (u) {
+                int row = u.rowOf(groupId);
+                if (row < 0) {
+                    expireIn(slot, id, today, 1, ahead);
+                    return false;
+                }
+                if (expires != TOUCHED) u.settleFailures(row, idleFailures(expires));
+                if (day != null) day.add(slot, u.todayHours(row), u.loggedToday(row));
+                boolean met = u.loggedToday(row) && u.todayHours(row) >= targetHours;
+                if (!met) {
+                    u.incrementFailures(row);
+                    u.markDirty();
+                }
+                if (u.failures(row) >= AUTO_REMOVE_FAILURES) {
+                    toRemove.add(m);
+                    ActivityLogger.log(evaluated, groupName, "Auto-removed user " + m + " after " + u.failures(row) + " consecutive failures.");
+                    Events.memberAutoRemoved(evaluated, groupName, m, u.failures(row));
+                } else {
+                    expireIn(slot, id, today, AUTO_REMOVE_FAILURES - u.failures(row), ahead);
+                }
+                u.resetDay(row);
+                return met;
+            }
         }
-    }
 
-    static class ActivityLogger {
-        public static void log(String groupName, String message) {
-            String line = "[" + currentDate + "] [" + groupName + "] " + message;
-            appendLine(line);
+        private void expireIn(int slot, int id, int today, int days, IntList[] ahead) {
+            members.setValueAt(slot, today + days);
+            if (ahead[days] == null) ahead[days] = expiring.computeIfAbsent(today + days, k -> new IntList());
+            ahead[days].add(id);
         }
-        public static void logGlobal(String message) {
-            String line = "[" + currentDate + "] [GLOBAL] " + message;
-            appendLine(line);
+
+        private void reindex() {
+            GroupIndex.touched(groupName, members.size(), streakCount);
         }
-        private static synchronized void appendLine(String line) {
-            try (FileWriter fw = new FileWriter(ACTIVITY_LOG, true);
-                 BufferedWriter bw = new BufferedWriter(fw);
-                 PrintWriter out = new PrintWriter(bw)) {
-                out.println(line);
-            } catch (IOException e) {
-                System.out.println("Failed to write activity log: " + e.getMessage());
-            }
+
+        public synchronized void resetTodayMaps() {
+            leaderboard.clear();
+            version++;
         }
     }
 
-    static class StorageManager {
-        @SuppressWarnings("unchecked")
-        public static void loadAll() {
-            Path usersPath = Paths.get(USERS_FILE).toAbsolutePath();
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(usersPath.toFile()))) {
-                Object o = ois.readObject();
-                if (o instanceof Map) {
-                    users = (Map<String, User>) o;
-                }
-            } catch (FileNotFoundException ignored) {
-                System.out.println("Users file not found: " + usersPath);
-            } catch (Exception e) {
-                System.out.println("Failed to load users from " + usersPath + ": " + e.getMessage());
-                e.printStackTrace();
+    // Rendered dashboards, reused while their group's version is unchanged. Members, leaderboard and join
+    // requests are cut to the first PAGE entries; further pages are read from the group on demand. The cache
+    // is an LRU bounded to CAPACITY groups.
+    static class DashboardCache {
+        static final int PAGE = Integer.getInteger("studystreak.dashboard.page", 50);
+        private static final int CAPACITY = Integer.getInteger("studystreak.dashboard.cacheSize", 1024);
+        private static final AtomicLong hits = new AtomicLong();
+        private static final AtomicLong misses = new AtomicLong();
+        private static final AtomicLong evictions = new AtomicLong();
+        private static final Map<Group, Dashboard> entries = new LinkedHashMap<Group, Dashboard>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Group, Dashboard> eldest) {
+                if (size() <= CAPACITY) return false;
+                evictions.incrementAndGet();
+                return true;
             }
+        };
 
-            Path groupsPath = Paths.get(GROUPS_FILE).toAbsolutePath();
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(groupsPath.toFile()))) {
-                Object o = ois.readObject();
-                if (o instanceof Map) {
-                    groups = (Map<String, Group>) o;
-                }
-            } catch (FileNotFoundException ignored) {
-                System.out.println("Groups file not found: " + groupsPath);
-            } catch (Exception e) {
-                System.out.println("Failed to load groups from " + groupsPath + ": " + e.getMessage());
-                e.printStackTrace();
+        static final class Dashboard {
+            final int version;
+            final int memberCount;
+            final int requestCount;
+            final String text;
+
+            Dashboard(int version, int memberCount, int requestCount, String text) {
+                this.version = version;
+                this.memberCount = memberCount;
+                this.requestCount = requestCount;
+                this.text = text;
             }
 
-            for (Group g : groups.values()) g.resetTodayMaps();
+            boolean paged() {
+                return memberCount > PAGE || requestCount > PAGE;
+            }
+        }
 
-            System.out.println("Loaded " + users.size() + " users and " + groups.size() + " groups from disk.");
+        // Lock order is group, then the cache; the cache never calls back into a group.
+        static Dashboard get(Group g) {
+            synchronized (g) {
+                int v = g.version();
+                Dashboard d;
+                synchronized (entries) {
+                    d = entries.get(g);
+                }
+                if (d != null && d.version == v) {
+                    hits.incrementAndGet();
+                    return d;
+                }
+                misses.incrementAndGet();
+                d = render(g, v);
+                synchronized (entries) {
+                    entries.put(g, d);
+                }
+                return d;
+            }
         }
 
-        public static void saveAll() {
-            saveObjectToFile(users, USERS_FILE, "users");
-            saveObjectToFile(groups, GROUPS_FILE, "groups");
+        private static Dashboard render(Group g, int version) {
+            int memberCount = g.memberCount();
+            int requestCount = g.joinRequestCount();
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("\n=== Dashboard for group: ").append(g.getGroupName()).append(" ===\n");
+            sb.append("Admin: ").append(g.getAdminUsername()).append('\n');
+            sb.append("Streak: ").append(g.getStreakCount()).append('\n');
+            sb.append("Target hours/day: ").append(g.getTargetHours()).append('\n');
+            sb.append("Day: ").append(g.openDay()).append(", closes at ").append(g.getCutoff()).append(' ').append(g.getZone()).append('\n');
+            sb.append("Members (").append(memberCount).append("): ").append(String.join(", ", g.getMembersPage(0, PAGE)));
+            if (memberCount > PAGE) sb.append(", ... (").append(memberCount - PAGE).append(" more)");
+            sb.append("\n\nLeaderboard (today):\n");
+            g.appendLeaderboard(sb, 0, PAGE);
+            if (memberCount > PAGE) sb.append("... (").append(memberCount - PAGE).append(" more)\n");
+            sb.append("\nPending join requests");
+            if (requestCount > PAGE) sb.append(" (").append(requestCount).append(')');
+            sb.append(": ").append(g.getJoinRequestsPage(0, PAGE));
+            if (requestCount > PAGE) sb.append(" ... (").append(requestCount - PAGE).append(" more)");
+            return new Dashboard(version, memberCount, requestCount, sb.toString());
         }
 
-        private static void saveObjectToFile(Object obj, String fileName, String label) {
-            Path path = Paths.get(fileName).toAbsolutePath();
-            Path tmp = Paths.get(fileName + ".tmp").toAbsolutePath();
-            try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
-                oos.writeObject(obj);
-            } catch (Exception e) {
-                System.out.println("Failed to write " + label + " temp file " + tmp + ": " + e.getMessage());
-                e.printStackTrace();
-                return;
-            }
-            try {
-                try {
-                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-                } catch (AtomicMoveNotSupportedException amnse) {
-                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
-                }
-                System.out.println("Saved " + label + " to " + path);
-            } catch (Exception e) {
-                System.out.println("Failed to move " + tmp + " to " + path + ": " + e.getMessage());
-                e.printStackTrace();
+        static long hits() { return hits.get(); }
+        static long misses() { return misses.get(); }
+
+        static String stats() {
+            int size;
+            synchronized (entries) {
+                size = entries.size();
             }
+            return "dashboard cache: " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get()
+                    + " evictions, " + size + "/" + CAPACITY + " entries";
         }
     }
 
-    static class SecurityUtil {
-        public static String hash(String input) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                byte[] bytes = md.digest(input.getBytes(StandardCharsets.UTF_8));
-                StringBuilder sb = new StringBuilder();
-                for (byte b : bytes) sb.append(String.format("%02x", b));
-                return sb.toString();
-            } catch (Exception e) {
-                throw new RuntimeException("Hashing failed");
+    // Group names in a radix trie over their lower-cased form, for finding groups by a prefix of the name.
+    // Each node caches the TOP best groups of its subtree, ranked by member count and then streak; a change
+    // to either marks the group's path stale and the caches are rebuilt on the next query that reaches them.
+    // A query of four or more characters also matches names whose prefix is one edit away (two from eight
+    // characters), found by walking the trie with edit distance rows and pruning once every cell is over the
+    // limit. Exact matches rank ahead of close ones.
+    static class GroupIndex {
+        static final int PAGE = 10;
+        private static final int TOP = 64;
+        private static final Node[] NO_NODES = {};
+        private static final Entry[] NO_ENTRIES = {};
+        private static final Comparator<Entry> RANK = (a, b) -> a.members != b.members ? Integer.compare(b.members, a.members)
+                : a.streak != b.streak ? Integer.compare(b.streak, a.streak) : a.name.compareTo(b.name);
+        private static volatile GroupIndex live = new GroupIndex();
+
+        private final Node root = new Node("", null);
+
+        private static final class Entry {
+            final String name;
+            int members;
+            int streak;
+
+            Entry(String name, int members, int streak) {
+                this.name = name;
+                this.members = members;
+                this.streak = streak;
+            }
+        }
+
+        static final class Hit {
+            final String name;
+            final int members;
+            final int streak;
+            final int distance;
+
+            Hit(String name, int members, int streak, int distance) {
+                this.name = name;
+                this.members = members;
+                this.streak = streak;
+                this.distance = distance;
+            }
+
+            static final Comparator<Hit> ORDER = Comparator.<Hit>comparingInt(h -> h.distance)
+                    .thenComparing(Comparator.<Hit>comparingInt(h -> h.members).reversed())
+                    .thenComparing(Comparator.<Hit>comparingInt(h -> h.streak).reversed())
+                    .thenComparing(h -> h.name);
+        }
+
+        private static final class Node {
+            String label;
+            Node parent;
+            Node[] kids = NO_NODES;
+            Entry[] here = NO_ENTRIES;
+            Entry[] top;
+            int count;
+
+            Node(String label, Node parent) {
+                this.label = label;
+                this.parent = parent;
+            }
+
+            Node kid(char c) {
+                for (Node k : kids) {
+                    if (k.label.charAt(0) == c) return k;
+                }
+                return null;
+            }
+        }
+
+        static GroupIndex live() {
+            return live;
+        }
+
+        static void rebuild(Collection<Group> all) {
+            GroupIndex index = new GroupIndex();
+            for (Group g : all) index.add(g.getGroupName(), g.memberCount(), g.getStreakCount());
+            live = index;
+        }
+
+        // Called by a group, under its monitor, when its member count or streak may have changed.
+        static void touched(String name, int members, int streak) {
+            live.update(name, members, streak);
+        }
+
+        synchronized void add(String name, int members, int streak) {
+            String key = name.toLowerCase(Locale.ROOT);
+            Node n = root;
+            int i = 0;
+            while (i < key.length()) {
+                Node k = n.kid(key.charAt(i));
+                if (k == null) {
+                    k = new Node(key.substring(i), n);
+                    n.kids = insertKid(n.kids, k);
+                    n = k;
+                    break;
+                }
+                int common = 0;
+                while (common < k.label.length() && i + common < key.length() && k.label.charAt(common) == key.charAt(i + common)) common++;
+                if (common < k.label.length()) k = split(k, common);
+                n = k;
+                i += common;
+            }
+            for (Entry e : n.here) {
+                if (e.name.equals(name)) return;
+            }
+            n.here = Arrays.copyOf(n.here, n.here.length + 1);
+            n.here[n.here.length - 1] = new Entry(name, members, streak);
+            for (Node p = n; p != null; p = p.parent) {
+                p.count++;
+                p.top = null;
+            }
+        }
+
+        synchronized void update(String name, int members, int streak) {
+            Node n = find(name.toLowerCase(Locale.ROOT));
+            if (n == null) return;
+            for (Entry e : n.here) {
+                if (!e.name.equals(name) || (e.members == members && e.streak == streak)) continue;
+                e.members = members;
+                e.streak = streak;
+                for (Node p = n; p != null && p.top != null; p = p.parent) p.top = null;
+            }
+        }
+
+        // Up to `limit` matches for the query, best first: exact prefix matches, then close ones.
+        synchronized List<Hit> search(String query, int limit) {
+            String q = query.trim().toLowerCase(Locale.ROOT);
+            int maxTypos = q.length() < 4 ? 0 : q.length() < 8 ? 1 : 2;
+            List<List<Node>> byDistance = new ArrayList<>();
+            for (int d = 0; d <= maxTypos; d++) byDistance.add(new ArrayList<>());
+            int[] row = new int[q.length() + 1];
+            for (int j = 0; j < row.length; j++) row[j] = j;
+            if (row[q.length()] <= maxTypos) {
+                byDistance.get(row[q.length()]).add(root);
+            } else {
+                for (Node k : root.kids) walk(k, q, null, row, (char) 0, Integer.MAX_VALUE, maxTypos, byDistance);
+            }
+            List<Hit> hits = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int d = 0; d <= maxTypos && hits.size() < limit; d++) {
+                List<Entry> level = new ArrayList<>();
+                for (Node n : byDistance.get(d)) level.addAll(Arrays.asList(ranked(n, limit + seen.size())));
+                level.sort(RANK);
+                for (Entry e : level) {
+                    if (hits.size() == limit) break;
+                    if (seen.add(e.name)) hits.add(new Hit(e.name, e.members, e.streak, d));
+                }
+            }
+            return hits;
+        }
+
+        // Extends the edit distance rows through a node's label; swapping two adjacent characters counts as one
+        // edit. A subtree is recorded at the first point its path is within the limit of the whole query, and
+        // again only at a smaller distance than `best`, the distance already recorded for an enclosing subtree.
+        private void walk(Node n, String q, int[] before, int[] prev, char prevCh, int best, int maxTypos, List<List<Node>> byDistance) {
+            int[] row = prev;
+            for (int c = 0; c < n.label.length(); c++) {
+                char ch = n.label.charAt(c);
+                int[] next = new int[row.length];
+                next[0] = row[0] + 1;
+                int min = next[0];
+                for (int j = 1; j < row.length; j++) {
+                    int cost = q.charAt(j - 1) == ch ? 0 : 1;
+                    next[j] = Math.min(Math.min(next[j - 1] + 1, row[j] + 1), row[j - 1] + cost);
+                    if (before != null && j > 1 && q.charAt(j - 1) == prevCh && q.charAt(j - 2) == ch) {
+                        next[j] = Math.min(next[j], before[j - 2] + 1);
+                    }
+                    min = Math.min(min, next[j]);
+                }
+                before = row;
+                row = next;
+                prevCh = ch;
+                int last = row[q.length()];
+                if (last < best && last <= maxTypos) {
+                    byDistance.get(last).add(n);
+                    best = last;
+                    if (last == 0) return;
+                }
+                if (min > maxTypos || min >= best) return;
+            }
+            for (Node k : n.kids) walk(k, q, before, row, prevCh, best, maxTypos, byDistance);
+        }
+
+        private Entry[] ranked(Node n, int need) {
+            Entry[] top = top(n);
+            if (top.length >= need || top.length == n.count) return top;
+            List<Entry> all = new ArrayList<>(n.count);
+            collect(n, all);
+            all.sort(RANK);
+            return all.toArray(NO_ENTRIES);
+        }
+
+        private Entry[] top(Node n) {
+            if (n.top != null) return n.top;
+            List<Entry> best = new ArrayList<>(Arrays.asList(n.here));
+            for (Node k : n.kids) best.addAll(Arrays.asList(top(k)));
+            best.sort(RANK);
+            n.top = best.subList(0, Math.min(TOP, best.size())).toArray(NO_ENTRIES);
+            return n.top;
+        }
+
+        private static void collect(Node n, List<Entry> out) {
+            out.addAll(Arrays.asList(n.here));
+            for (Node k : n.kids) collect(k, out);
+        }
+
+        private Node find(String key) {
+            Node n = root;
+            int i = 0;
+            while (i < key.length()) {
+                Node k = n.kid(key.charAt(i));
+                if (k == null || !key.startsWith(k.label, i)) return null;
+                n = k;
+                i += k.label.length();
+            }
+            return n;
+        }
+
+        // Cuts a node's label after `at` characters; the new node takes the node's place under its parent.
+        private static Node split(Node k, int at) {
+            Node mid = new Node(k.label.substring(0, at), k.parent);
+            mid.kids = new Node[] { k };
+            mid.count = k.count;
+            mid.top = k.top;
+            Node[] siblings = k.parent.kids;
+            for (int s = 0; s < siblings.length; s++) {
+                if (siblings[s] == k) siblings[s] = mid;
+            }
+            k.label = k.label.substring(at);
+            k.parent = mid;
+            return mid;
+        }
+
+        private static Node[] insertKid(Node[] kids, Node k) {
+            Node[] out = Arrays.copyOf(kids, kids.length + 1);
+            int at = kids.length;
+            while (at > 0 && out[at - 1].label.charAt(0) > k.label.charAt(0)) {
+                out[at] = out[at - 1];
+                at--;
+            }
+            out[at] = k;
+            return out;
+        }
+    }
+
+    // Today's hours per member id, bucketed by hour count. Hours are bounded by MAX_HOURS_PER_DAY, so moving a
+    // member between buckets is O(1) and a rank is a sum over at most MAX_HOURS_PER_DAY bucket sizes.
+    // Members with no hours today are not stored; they rank after everyone else in membership order.
+    // Each bucket is an append-only id array with tombstones; the entry map packs hours with the bucket slot.
+    static class Leaderboard {
+        private static final int SLOT_BITS = 26;
+        private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+        private static final int TOMBSTONE = -1;
+        private final IntIntMap entries = new IntIntMap();
+        private final int[][] buckets = new int[MAX_HOURS_PER_DAY + 1][];
+        private final int[] ends = new int[MAX_HOURS_PER_DAY + 1];
+        private final int[] sizes = new int[MAX_HOURS_PER_DAY + 1];
+
+        void set(int userId, int h) {
+            h = Math.max(0, Math.min(MAX_HOURS_PER_DAY, h));
+            remove(userId);
+            if (h == 0) return;
+            if (buckets[h] == null) {
+                buckets[h] = new int[4];
+            } else if (ends[h] == buckets[h].length) {
+                if (sizes[h] < ends[h] / 2) compact(h);
+                else buckets[h] = Arrays.copyOf(buckets[h], ends[h] * 2);
+            }
+            entries.put(userId, h << SLOT_BITS | ends[h]);
+            buckets[h][ends[h]++] = userId;
+            sizes[h]++;
+        }
+
+        void remove(int userId) {
+            int e = entries.remove(userId);
+            if (e < 0) return;
+            int h = e >>> SLOT_BITS;
+            buckets[h][e & SLOT_MASK] = TOMBSTONE;
+            sizes[h]--;
+        }
+
+        void clear() {
+            entries.clear();
+            Arrays.fill(buckets, null);
+            Arrays.fill(ends, 0);
+            Arrays.fill(sizes, 0);
+        }
+
+        boolean isEmpty() { return entries.size() == 0; }
+
+        int hoursOf(int userId) {
+            int e = entries.get(userId);
+            return e < 0 ? 0 : e >>> SLOT_BITS;
+        }
+
+        int rankOf(int h) {
+            int above = 0;
+            for (int b = MAX_HOURS_PER_DAY; b > h; b--) above += sizes[b];
+            return above + 1;
+        }
+
+        int[] page(IntLinkedSet members, int offset, int limit) {
+            int[] out = new int[Math.max(0, Math.min(limit, members.size() - offset))];
+            int n = 0;
+            int skipped = 0;
+            for (int b = MAX_HOURS_PER_DAY; b > 0 && n < out.length; b--) {
+                if (skipped + sizes[b] <= offset) {
+                    skipped += sizes[b];
+                    continue;
+                }
+                int[] bucket = buckets[b];
+                for (int i = 0; i < ends[b] && n < out.length; i++) {
+                    if (bucket[i] != TOMBSTONE && skipped++ >= offset) out[n++] = bucket[i];
+                }
+            }
+            for (PrimitiveIterator.OfInt it = members.iterator(); it.hasNext() && n < out.length; ) {
+                int m = it.nextInt();
+                if (entries.containsKey(m) || skipped++ < offset) continue;
+                out[n++] = m;
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+
+        private void compact(int h) {
+            int[] bucket = buckets[h];
+            int n = 0;
+            for (int i = 0; i < ends[h]; i++) {
+                if (bucket[i] == TOMBSTONE) continue;
+                bucket[n] = bucket[i];
+                entries.put(bucket[i], h << SLOT_BITS | n);
+                n++;
+            }
+            ends[h] = n;
+        }
+    }
+
+    // Dense int ids for user and group names, so per-membership structures can hold ints instead of Strings.
+    static class SymbolTable {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[1024];
+        private int size = 0;
+
+        int intern(String name) {
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            synchronized (this) {
+                id = ids.get(name);
+                if (id != null) return id;
+                if (size == names.length) names = Arrays.copyOf(names, size * 2);
+                names[size] = name;
+                ids.put(name, size);
+                return size++;
+            }
+        }
+
+        int idOf(String name) {
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+    }
+
+    // Open-addressed int -> int map with linear probing and backward-shift deletion. Keys must be >= 0.
+    static class IntIntMap {
+        private static final int EMPTY = -1;
+        private int[] keys = new int[8];
+        private int[] vals = new int[8];
+        private int size = 0;
+
+        IntIntMap() { Arrays.fill(keys, EMPTY); }
+
+        private int slot(int key) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (keys.length - 1);
+        }
+
+        private int find(int key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (keys[i] == key) return i;
+                if (keys[i] == EMPTY) return -1 - i;
+            }
+        }
+
+        int size() { return size; }
+        boolean containsKey(int key) { return find(key) >= 0; }
+
+        int get(int key) {
+            int i = find(key);
+            return i >= 0 ? vals[i] : -1;
+        }
+
+        void put(int key, int value) {
+            int i = find(key);
+            if (i >= 0) {
+                vals[i] = value;
+                return;
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                i = find(key);
+            }
+            keys[-1 - i] = key;
+            vals[-1 - i] = value;
+            size++;
+        }
+
+        int remove(int key) {
+            int hole = find(key);
+            if (hole < 0) return -1;
+            int old = vals[hole];
+            int mask = keys.length - 1;
+            for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                if (((j - slot(keys[j])) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    vals[hole] = vals[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = EMPTY;
+            size--;
+            return old;
+        }
+
+        void clear() {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldVals = vals;
+            keys = new int[oldKeys.length * 2];
+            vals = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) put(oldKeys[i], oldVals[i]);
+            }
+        }
+    }
+
+    // Growable list of ints.
+    static class IntList {
+        private int[] items = new int[4];
+        private int size = 0;
+
+        int size() { return size; }
+        int get(int i) { return items[i]; }
+
+        void add(int v) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = v;
+        }
+
+        void clear() { size = 0; }
+    }
+
+    // Insertion-ordered set of ints: an append-only order array with tombstones plus an id -> position index.
+    // Each id carries an int value, 0 when it is added.
+    static class IntLinkedSet {
+        static final int TOMBSTONE = -1;
+        private int[] order = new int[4];
+        private int[] values = new int[4];
+        private int end = 0;
+        private final IntIntMap positions = new IntIntMap();
+
+        int size() { return positions.size(); }
+        boolean contains(int id) { return positions.containsKey(id); }
+
+        boolean add(int id) {
+            if (positions.containsKey(id)) return false;
+            if (end == order.length) {
+                if (size() < end / 2) {
+                    compact();
+                } else {
+                    order = Arrays.copyOf(order, end * 2);
+                    values = Arrays.copyOf(values, end * 2);
+                }
+            }
+            positions.put(id, end);
+            values[end] = 0;
+            order[end++] = id;
+            return true;
+        }
+
+        int value(int id) {
+            int at = positions.get(id);
+            return at < 0 ? -1 : values[at];
+        }
+
+        void setValue(int id, int v) {
+            int at = positions.get(id);
+            if (at >= 0) values[at] = v;
+        }
+
+        // An id's slot, or -1; slots change only when a later add compacts the set. A removed id's slot is a
+        // TOMBSTONE.
+        int positionOf(int id) { return positions.get(id); }
+        int slots() { return end; }
+        int idAt(int slot) { return order[slot]; }
+        int valueAt(int slot) { return values[slot]; }
+        void setValueAt(int slot, int v) { values[slot] = v; }
+
+        int[] toArray() {
+            int[] out = new int[size()];
+            int n = 0;
+            for (int i = 0; i < end; i++) {
+                if (order[i] != TOMBSTONE) out[n++] = order[i];
+            }
+            return out;
+        }
+
+        int[] slotIds() { return Arrays.copyOf(order, end); }
+
+        boolean remove(int id) {
+            int at = positions.remove(id);
+            if (at < 0) return false;
+            order[at] = TOMBSTONE;
+            return true;
+        }
+
+        void clear() {
+            positions.clear();
+            end = 0;
+        }
+
+        private void compact() {
+            int n = 0;
+            for (int i = 0; i < end; i++) {
+                if (order[i] == TOMBSTONE) continue;
+                order[n] = order[i];
+                values[n] = values[i];
+                positions.put(order[i], n);
+                n++;
+            }
+            end = n;
+        }
+
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                int i = skip(0);
+
+                private int skip(int from) {
+                    while (from < end && order[from] == TOMBSTONE) from++;
+                    return from;
+                }
+
+                public boolean hasNext() { return i < end; }
+
+                public int nextInt() {
+                    if (i >= end) throw new NoSuchElementException();
+                    int v = order[i];
+                    i = skip(i + 1);
+                    return v;
+                }
+            };
+        }
+    }
+
+    static class NameSet extends AbstractSet<String> {
+        private final IntLinkedSet ids;
+        private final SymbolTable symbols;
+
+        NameSet(IntLinkedSet ids, SymbolTable symbols) {
+            this.ids = ids;
+            this.symbols = symbols;
+        }
+
+        @Override
+        public int size() { return ids.size(); }
+
+        @Override
+        public boolean contains(Object o) {
+            int id = o instanceof String ? symbols.idOf((String) o) : -1;
+            return id >= 0 && ids.contains(id);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            PrimitiveIterator.OfInt it = ids.iterator();
+            return new Iterator<String>() {
+                public boolean hasNext() { return it.hasNext(); }
+                public String next() { return symbols.name(it.nextInt()); }
+            };
+        }
+    }
+
+    static class EvaluationEngine {
+        private static final int SLICE = 256;
+        private static ForkJoinPool pool;
+
+        // Evaluates each group's open days, one at a time, through the day through(group) returns. Groups are
+        // evaluated independently; members shared between groups are guarded by their User monitor. Each day is
+        // journaled when journal is set, which replay and benchmarks leave off.
+        static int catchUp(List<Group> due, java.util.function.Function<Group, LocalDate> through, boolean journal) {
+            Map<LocalDate, HistoryStore.Day> history = new ConcurrentHashMap<>();
+            LongAdder days = new LongAdder();
+            forEachGroup(due, g -> {
+                while (rollover(g, through, history, journal)) days.increment();
+            });
+            for (LocalDate d : new TreeSet<>(history.keySet())) HistoryStore.commit(history.get(d));
+            return days.intValue();
+        }
+
+        private static boolean rollover(Group g, java.util.function.Function<Group, LocalDate> through,
+                                        Map<LocalDate, HistoryStore.Day> history, boolean journal) {
+            STATE_LOCK.readLock().lock();
+            try {
+                synchronized (g) {
+                    LocalDate day = g.openDay();
+                    if (day.isAfter(through.apply(g))) return false;
+                    long start = System.nanoTime();
+                    try {
+                        g.evaluateTodayAndUpdate(users, history.computeIfAbsent(day, HistoryStore::begin));
+                    } catch (Exception e) {
+                        out().println("Error evaluating group " + g.getGroupName() + ": " + e.getMessage());
+                        ActivityLogger.log(day, g.getGroupName(), "Evaluation failed: " + e);
+                        if (g.openDay().equals(day)) g.setLastUpdatedDate(day);
+                    }
+                    g.resetTodayMaps();
+                    Metrics.EVALUATE_GROUP.recordSince(start);
+                    if (journal) StorageManager.commitAt(day, Journal.ROLLOVER, g.getGroupName(), null, (int) day.toEpochDay());
+                    return true;
+                }
+            } finally {
+                STATE_LOCK.readLock().unlock();
+            }
+        }
+
+        private static void forEachGroup(List<Group> all, java.util.function.Consumer<Group> action) {
+            if (EVAL_THREADS <= 1 || all.size() <= SLICE) {
+                for (Group g : all) action.accept(g);
+                return;
+            }
+            pool().invoke(new GroupSlice(all, 0, all.size(), action));
+        }
+
+        private static synchronized ForkJoinPool pool() {
+            if (pool == null) pool = new ForkJoinPool(EVAL_THREADS);
+            return pool;
+        }
+
+        private static class GroupSlice extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final List<Group> all;
+            private final int from;
+            private final int to;
+            private final java.util.function.Consumer<Group> action;
+
+            GroupSlice(List<Group> all, int from, int to, java.util.function.Consumer<Group> action) {
+                this.all = all;
+                this.from = from;
+                this.to = to;
+                this.action = action;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= SLICE) {
+                    for (int i = from; i < to; i++) action.accept(all.get(i));
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new GroupSlice(all, from, mid, action), new GroupSlice(all, mid, to, action));
+            }
+        }
+    }
+
+    // A clock that only moves when told to, for the interactive simulation.
+    static class SimulatedClock extends Clock {
+        private final ZoneId zone;
+        private volatile Instant now;
+
+        SimulatedClock(Instant now, ZoneId zone) {
+            this.now = now;
+            this.zone = zone;
+        }
+
+        @Override
+        public ZoneId getZone() { return zone; }
+
+        @Override
+        public Clock withZone(ZoneId z) { return new SimulatedClock(now, z); }
+
+        @Override
+        public Instant instant() { return now; }
+
+        void advance(Duration d) { now = now.plus(d); }
+    }
+
+    // Closes each group's open day at its cutoff in its own timezone. Groups wait on a hashed time-wheel of SLOTS
+    // slots, SLOT_MILLIS wide, keyed by the instant their day closes plus a fixed per-group offset below
+    // SPREAD_MILLIS, so groups sharing a cutoff are evaluated across that window instead of in one burst. A due
+    // group is caught up one day at a time to the clock's day, which also replays days missed while the process
+    // was down, and goes back on the wheel for its next cutoff. With the system clock a daemon thread ticks the
+    // wheel; a simulated clock moves only through advanceDay.
+    static class RolloverScheduler {
+        static final ZoneId DEFAULT_ZONE = ZoneId.of(System.getProperty("studystreak.zone", ZoneId.systemDefault().getId()));
+        static final LocalTime DEFAULT_CUTOFF = LocalTime.parse(System.getProperty("studystreak.cutoff", "00:00"));
+        private static final long SLOT_MILLIS = Math.max(1, Long.getLong("studystreak.rollover.slotMillis", 1000));
+        private static final long SPREAD_MILLIS = Math.max(0, Long.getLong("studystreak.rollover.spreadSeconds", 300)) * 1000;
+        private static final int SLOTS = 4096;
+        private static final List<Map<Group, Long>> wheel = new ArrayList<>(SLOTS);
+        private static final Map<Group, Integer> slots = new HashMap<>();
+        private static long tick = Long.MIN_VALUE;
+        private static ScheduledExecutorService ticker;
+
+        static {
+            for (int i = 0; i < SLOTS; i++) wheel.add(new HashMap<>());
+        }
+
+        // studystreak.clock is "system", "simulated" (from now) or an instant a simulated clock starts at.
+        static Clock defaultClock() {
+            String c = System.getProperty("studystreak.clock", "simulated");
+            if (c.equalsIgnoreCase("system")) return Clock.system(DEFAULT_ZONE);
+            return new SimulatedClock(c.equalsIgnoreCase("simulated") ? Instant.now() : Instant.parse(c), DEFAULT_ZONE);
+        }
+
+        static void start() {
+            for (Group g : groups.values()) schedule(g);
+            int days = runDue(clock.instant());
+            if (days > 0) System.out.println("Caught up " + days + " missed group day(s).");
+            if (clock instanceof SimulatedClock) return;
+            synchronized (RolloverScheduler.class) {
+                if (ticker != null) return;
+                ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "rollover-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            ticker.scheduleAtFixedRate(() -> {
+                try {
+                    runDue(clock.instant());
+                } catch (RuntimeException e) {
+                    System.out.println("Rollover failed: " + e);
+                }
+            }, SLOT_MILLIS, SLOT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        static synchronized void schedule(Group g) {
+            Integer old = slots.remove(g);
+            if (old != null) wheel.get(old).remove(g);
+            long due = g.closesAt().toEpochMilli() + offset(g);
+            long t = Math.floorDiv(due + SLOT_MILLIS - 1, SLOT_MILLIS);
+            if (tick != Long.MIN_VALUE && t <= tick) t = tick + 1;
+            int slot = (int) (t & (SLOTS - 1));
+            wheel.get(slot).put(g, due);
+            slots.put(g, slot);
+        }
+
+        private static long offset(Group g) {
+            return SPREAD_MILLIS == 0 ? 0 : Math.floorMod(g.getGroupName().hashCode() * 0x9E3779B97F4A7C15L, SPREAD_MILLIS);
+        }
+
+        // Evaluates the groups whose turn has come by now and puts them back on the wheel.
+        static int runDue(Instant now) {
+            currentDate = LocalDate.ofInstant(now, clock.getZone());
+            List<Group> due = takeDue(now.toEpochMilli());
+            if (due.isEmpty()) return 0;
+            for (Group g : due) Metrics.ROLLOVER_DELAY.record(Duration.between(g.closesAt(), now).toNanos());
+            return rollover(due, now);
+        }
+
+        // Evaluates one group before it is written to, in case its day has closed but its turn has not come.
+        static void catchUp(Group g) {
+            Instant now = clock.instant();
+            if (g.isDue(now)) rollover(Collections.singletonList(g), now);
+        }
+
+        // Moves a simulated clock on by a day, then evaluates every group whose day has closed without waiting
+        // for its offset.
+        static int advanceDay() {
+            if (clock instanceof SimulatedClock) ((SimulatedClock) clock).advance(Duration.ofDays(1));
+            Instant now = clock.instant();
+            currentDate = LocalDate.ofInstant(now, clock.getZone());
+            List<Group> due = new ArrayList<>();
+            for (Group g : groups.values()) {
+                if (g.isDue(now)) due.add(g);
+            }
+            return rollover(due, now);
+        }
+
+        private static int rollover(List<Group> due, Instant now) {
+            int days = EvaluationEngine.catchUp(due, g -> g.dayAt(now).minusDays(1), true);
+            for (Group g : due) schedule(g);
+            StorageManager.checkpointIfDue();
+            return days;
+        }
+
+        static synchronized void clear() {
+            for (Map<Group, Long> slot : wheel) slot.clear();
+            slots.clear();
+            tick = Long.MIN_VALUE;
+        }
+
+        static synchronized List<Group> takeDue(long now) {
+            long target = Math.floorDiv(now, SLOT_MILLIS);
+            List<Group> due = new ArrayList<>();
+            if (tick == Long.MIN_VALUE || target - tick >= SLOTS) {
+                for (int s = 0; s < SLOTS; s++) takeDue(s, now, due);
+            } else {
+                for (long t = tick + 1; t <= target; t++) takeDue((int) (t & (SLOTS - 1)), now, due);
+            }
+            if (tick == Long.MIN_VALUE || target > tick) tick = target;
+            return due;
+        }
+
+        private static void takeDue(int slot, long now, List<Group> due) {
+            for (Iterator<Map.Entry<Group, Long>> it = wheel.get(slot).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Group, Long> e = it.next();
+                if (e.getValue() > now) continue;
+                it.remove();
+                slots.remove(e.getKey());
+                due.add(e.getKey());
+            }
+        }
+    }
+
+    // Per-day history, captured at rollover before today's state is reset. HISTORY_DIR/<year>.ts holds
+    // CRC-checked blocks, one per day for each batch of groups evaluated together, since groups close their days
+    // at their own cutoffs. A block is a directory of its groups sorted by name id, then for each group
+    // its streak, target, members meeting the target and member count, the members' name ids (sorted, as varint
+    // deltas) and one byte per member of hours, with LOGGED set if they logged. Names are numbered by names.bin,
+    // which only grows. Year files are memory-mapped and a query reads only the blocks in its range and, in a
+    // block, only the group it asks about.
+    static class HistoryStore {
+        private static final int MAGIC = 0x53534854; // "SSHT"
+        private static final int LOGGED = 0x80;
+        private static final int BLOCK_HEADER = 12;
+        private static final int DIR_ENTRY = 12;
+        private static Path dir = Paths.get(HISTORY_DIR);
+        private static boolean enabled = true;
+        private static boolean opened = false;
+        private static final List<String> names = new ArrayList<>();
+        private static final Map<String, Integer> nameIds = new HashMap<>();
+        private static int[] userNameIds = new int[0];
+        private static final TreeMap<Long, List<Block>> blocks = new TreeMap<>();
+        private static final Map<Integer, ByteBuffer> years = new HashMap<>();
+        private static DataOutputStream namesOut;
+        private static FileChannel namesChannel;
+
+        private static final class Block {
+            final int year;
+            final int payload;
+            final int length;
+
+            Block(int year, int payload, int length) {
+                this.year = year;
+                this.payload = payload;
+                this.length = length;
+            }
+        }
+
+        static final class Day {
+            final LocalDate date;
+            private final List<GroupDay> groups = new ArrayList<>();
+
+            Day(LocalDate date) { this.date = date; }
+
+            synchronized void add(GroupDay g) { groups.add(g); }
+        }
+
+        // One group's day: its members by slot as USER_IDS ids, with IntLinkedSet.TOMBSTONE for a free slot,
+        // and a byte of hours per slot. A member whose slot is not added is recorded with no hours, not logged.
+        static final class GroupDay {
+            final String group;
+            int streak;
+            int target;
+            int met;
+            private final int[] members;
+            private final byte[] hours;
+
+            GroupDay(String group, int[] members) {
+                this.group = group;
+                this.members = members;
+                hours = new byte[members.length];
+            }
+
+            void add(int slot, int h, boolean logged) {
+                hours[slot] = (byte) (h | (logged ? LOGGED : 0));
+            }
+
+            void finish(int streak, int target, int met) {
+                this.streak = streak;
+                this.target = target;
+                this.met = met;
+            }
+        }
+
+        // Aggregates over a date range. Per member: {days recorded, days meeting the target, hours}.
+        static final class GroupHistory {
+            int days;
+            int daysMet;
+            long hours;
+            int longestStreak;
+            final Map<String, int[]> members = new HashMap<>();
+        }
+
+        static synchronized void setEnabled(boolean on) {
+            enabled = on;
+        }
+
+        static synchronized void redirect(Path to) {
+            close();
+            dir = to;
+        }
+
+        static synchronized void close() {
+            try {
+                if (namesChannel != null) namesChannel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close history names: " + e.getMessage());
+            }
+            namesOut = null;
+            namesChannel = null;
+            names.clear();
+            nameIds.clear();
+            userNameIds = new int[0];
+            blocks.clear();
+            years.clear();
+            opened = false;
+        }
+
+        // Returns null when history is off.
+        static synchronized Day begin(LocalDate date) {
+            if (!enabled || !open()) return null;
+            return new Day(date);
+        }
+
+        // Groups already recorded for the day, as when a journaled rollover is replayed, are left out.
+        static synchronized void commit(Day day) {
+            if (day == null) return;
+            day.groups.removeIf(g -> recorded(day.date, g.group));
+            if (day.groups.isEmpty()) return;
+            try {
+                ByteBuffer block = encode(day);
+                namesOut.flush();
+                namesChannel.force(false);
+                Path file = dir.resolve(day.date.getYear() + ".ts");
+                long at;
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    at = ch.size();
+                    while (block.hasRemaining()) ch.write(block, at + block.position());
+                    ch.force(false);
+                }
+                map(day.date.getYear(), file);
+                blocks.computeIfAbsent(day.date.toEpochDay(), k -> new ArrayList<>())
+                        .add(new Block(day.date.getYear(), (int) at + BLOCK_HEADER, block.limit() - BLOCK_HEADER));
+            } catch (IOException e) {
+                System.out.println("Failed to write history for " + day.date + ": " + e.getMessage());
+            }
+        }
+
+        private static boolean recorded(LocalDate date, String group) {
+            Integer gid = nameIds.get(group);
+            List<Block> day = blocks.get(date.toEpochDay());
+            if (gid == null || day == null) return false;
+            for (Block b : day) {
+                if (section(b, gid) != null) return true;
+            }
+            return false;
+        }
+
+        private static ByteBuffer encode(Day day) throws IOException {
+            List<GroupDay> groups = new ArrayList<>(day.groups);
+            int[] ids = new int[groups.size()];
+            Integer[] order = new Integer[groups.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = nameId(groups.get(i).group);
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> ids[i]));
+            SnapshotCodec.Out body = new SnapshotCodec.Out(1024);
+            int[] offsets = new int[ids.length];
+            int[] lengths = new int[ids.length];
+            long[] packed = new long[0];
+            for (int k = 0; k < order.length; k++) {
+                GroupDay g = groups.get(order[k]);
+                offsets[k] = body.buf.position();
+                body.varint(g.streak);
+                body.varint(g.target);
+                body.varint(g.met);
+                if (packed.length < g.members.length) packed = new long[g.members.length];
+                int n = 0;
+                for (int i = 0; i < g.members.length; i++) {
+                    if (g.members[i] != IntLinkedSet.TOMBSTONE) packed[n++] = (long) userNameId(g.members[i]) << 8 | (g.hours[i] & 0xff);
+                }
+                body.varint(n);
+                Arrays.sort(packed, 0, n);
+                int prev = 0;
+                for (int i = 0; i < n; i++) {
+                    int id = (int) (packed[i] >>> 8);
+                    body.varint(id - prev);
+                    prev = id;
+                }
+                body.ensure(n);
+                for (int i = 0; i < n; i++) body.buf.put((byte) packed[i]);
+                lengths[k] = body.buf.position() - offsets[k];
+            }
+            int dirBytes = 8 + ids.length * DIR_ENTRY;
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + dirBytes + body.buf.position());
+            block.putInt(MAGIC).putInt(0).putInt(0);
+            block.putInt((int) day.date.toEpochDay()).putInt(ids.length);
+            for (int k = 0; k < order.length; k++) block.putInt(ids[order[k]]).putInt(dirBytes + offsets[k]).putInt(lengths[k]);
+            block.put(body.buf.flip());
+            CRC32 crc = new CRC32();
+            crc.update(block.array(), BLOCK_HEADER, block.position() - BLOCK_HEADER);
+            block.putInt(4, block.position() - BLOCK_HEADER).putInt(8, (int) crc.getValue());
+            return block.flip();
+        }
+
+        // nameId of a USER_IDS id, cached by id since every member of each evaluated group is written every day.
+        private static int userNameId(int user) throws IOException {
+            if (user >= userNameIds.length) {
+                int from = userNameIds.length;
+                userNameIds = Arrays.copyOf(userNameIds, Math.max(user + 1, from * 2));
+                Arrays.fill(userNameIds, from, userNameIds.length, -1);
+            }
+            int id = userNameIds[user];
+            if (id < 0) userNameIds[user] = id = nameId(USER_IDS.name(user));
+            return id;
+        }
+
+        private static int nameId(String name) throws IOException {
+            Integer id = nameIds.get(name);
+            if (id != null) return id;
+            namesOut.writeUTF(name);
+            nameIds.put(name, names.size());
+            names.add(name);
+            return names.size() - 1;
+        }
+
+        static synchronized GroupHistory group(String group, LocalDate from, LocalDate to) {
+            GroupHistory h = new GroupHistory();
+            Integer gid = open() ? nameIds.get(group) : null;
+            if (gid == null) return h;
+            for (Block b : range(from, to)) {
+                ByteBuffer buf = section(b, gid);
+                if (buf == null) continue;
+                int streak = SnapshotCodec.varint(buf);
+                int target = SnapshotCodec.varint(buf);
+                SnapshotCodec.varint(buf);
+                int n = SnapshotCodec.varint(buf);
+                int[] ids = readIds(buf, n);
+                h.days++;
+                if (streak > 0) h.daysMet++;
+                h.longestStreak = Math.max(h.longestStreak, streak);
+                for (int i = 0; i < n; i++) {
+                    int v = buf.get() & 0xff;
+                    int hours = v & ~LOGGED;
+                    int[] m = h.members.computeIfAbsent(names.get(ids[i]), k -> new int[3]);
+                    m[0]++;
+                    if ((v & LOGGED) != 0 && hours >= target) m[1]++;
+                    m[2] += hours;
+                    h.hours += hours;
+                }
+            }
+            return h;
+        }
+
+        // {days recorded, days meeting the target, hours, longest run of days meeting the target}
+        static synchronized int[] member(String user, String group, LocalDate from, LocalDate to) {
+            int[] r = new int[4];
+            Integer gid = open() ? nameIds.get(group) : null;
+            Integer uid = nameIds.get(user);
+            if (gid == null || uid == null) return r;
+            int run = 0;
+            long lastDay = Long.MIN_VALUE;
+            for (Map.Entry<Long, List<Block>> e : blocks.subMap(from.toEpochDay(), true, to.toEpochDay(), true).entrySet()) {
+                ByteBuffer buf = null;
+                for (Block b : e.getValue()) {
+                    if ((buf = section(b, gid)) != null) break;
+                }
+                if (buf == null) continue;
+                SnapshotCodec.varint(buf);
+                int target = SnapshotCodec.varint(buf);
+                SnapshotCodec.varint(buf);
+                int n = SnapshotCodec.varint(buf);
+                int[] ids = readIds(buf, n);
+                int i = Arrays.binarySearch(ids, uid);
+                if (i < 0) continue;
+                int v = buf.get(buf.position() + i) & 0xff;
+                boolean met = (v & LOGGED) != 0 && (v & ~LOGGED) >= target;
+                r[0]++;
+                r[2] += v & ~LOGGED;
+                if (met) {
+                    r[1]++;
+                    run = lastDay == e.getKey() - 1 ? run + 1 : 1;
+                    lastDay = e.getKey();
+                    r[3] = Math.max(r[3], run);
+                }
+            }
+            return r;
+        }
+
+        interface RowVisitor {
+            void visit(int group, int member, int hours, boolean met);
+        }
+
+        static synchronized int nameCount() {
+            return open() ? names.size() : 0;
+        }
+
+        static synchronized String name(int id) {
+            return names.get(id);
+        }
+
+        // Visits every member row recorded between two dates (inclusive) by name id, with the day blocks read in
+        // parallel, so the visitor must be thread-safe. Returns the number of rows.
+        static synchronized long scan(LocalDate from, LocalDate to, RowVisitor visitor) {
+            if (!open()) return 0;
+            return range(from, to).parallelStream().mapToLong(b -> {
+                ByteBuffer year = years.get(b.year);
+                int count = year.getInt(b.payload + 4);
+                long rows = 0;
+                for (int k = 0; k < count; k++) {
+                    int entry = b.payload + 8 + k * DIR_ENTRY;
+                    int gid = year.getInt(entry);
+                    int at = b.payload + year.getInt(entry + 4);
+                    ByteBuffer buf = year.duplicate().limit(at + year.getInt(entry + 8)).position(at);
+                    SnapshotCodec.varint(buf);
+                    int target = SnapshotCodec.varint(buf);
+                    SnapshotCodec.varint(buf);
+                    int n = SnapshotCodec.varint(buf);
+                    int[] ids = readIds(buf, n);
+                    for (int i = 0; i < n; i++) {
+                        int v = buf.get() & 0xff;
+                        visitor.visit(gid, ids[i], v & ~LOGGED, (v & LOGGED) != 0 && (v & ~LOGGED) >= target);
+                    }
+                    rows += n;
+                }
+                return rows;
+            }).sum();
+        }
+
+        private static List<Block> range(LocalDate from, LocalDate to) {
+            List<Block> out = new ArrayList<>();
+            for (List<Block> day : blocks.subMap(from.toEpochDay(), true, to.toEpochDay(), true).values()) out.addAll(day);
+            return out;
+        }
+
+        private static int[] readIds(ByteBuffer buf, int n) {
+            int[] ids = new int[n];
+            int prev = 0;
+            for (int i = 0; i < n; i++) ids[i] = prev += SnapshotCodec.varint(buf);
+            return ids;
+        }
+
+        // The group's section of a block, or null if the group was not evaluated that day.
+        private static ByteBuffer section(Block b, int gid) {
+            ByteBuffer year = years.get(b.year);
+            int count = year.getInt(b.payload + 4);
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int entry = b.payload + 8 + mid * DIR_ENTRY;
+                int id = year.getInt(entry);
+                if (id < gid) {
+                    lo = mid + 1;
+                } else if (id > gid) {
+                    hi = mid - 1;
+                } else {
+                    int at = b.payload + year.getInt(entry + 4);
+                    return year.duplicate().limit(at + year.getInt(entry + 8)).position(at);
+                }
+            }
+            return null;
+        }
+
+        private static boolean open() {
+            if (opened) return true;
+            try {
+                Files.createDirectories(dir);
+                Path namesFile = dir.resolve("names.bin");
+                long good = 0;
+                if (Files.exists(namesFile)) {
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(namesFile)))) {
+                        while (true) {
+                            String name = in.readUTF();
+                            nameIds.put(name, names.size());
+                            names.add(name);
+                            good += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+                        }
+                    } catch (EOFException e) {
+                        // a torn last name is dropped below
+                    }
+                }
+                namesChannel = FileChannel.open(namesFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                namesChannel.truncate(good).position(good);
+                namesOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(namesChannel)));
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.ts")) {
+                    for (Path file : files) recover(file);
+                }
+                opened = true;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("History unavailable: " + e.getMessage());
+                close();
+            }
+            return opened;
+        }
+
+        // Indexes a year file's blocks and cuts off a block left incomplete by a crash.
+        private static void recover(Path file) throws IOException {
+            int year = Integer.parseInt(file.getFileName().toString().replace(".ts", ""));
+            ByteBuffer buf = map(year, file);
+            int pos = 0;
+            CRC32 crc = new CRC32();
+            while (pos + BLOCK_HEADER <= buf.limit() && buf.getInt(pos) == MAGIC) {
+                int len = buf.getInt(pos + 4);
+                if (len < 8 || pos + BLOCK_HEADER + len > buf.limit()) break;
+                crc.reset();
+                crc.update(buf.duplicate().position(pos + BLOCK_HEADER).limit(pos + BLOCK_HEADER + len));
+                if ((int) crc.getValue() != buf.getInt(pos + 8)) break;
+                blocks.computeIfAbsent((long) buf.getInt(pos + BLOCK_HEADER), k -> new ArrayList<>()).add(new Block(year, pos + BLOCK_HEADER, len));
+                pos += BLOCK_HEADER + len;
+            }
+            if (pos < buf.limit()) {
+                System.out.println("Truncating damaged history at " + file + " offset " + pos);
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ch.truncate(pos);
+                }
+                map(year, file);
+            }
+        }
+
+        private static ByteBuffer map(int year, Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                years.put(year, buf);
+                return buf;
+            }
+        }
+    }
+
+    // A bounded ring that producers claim slots on and one writer thread drains in batches into a Sink, shared
+    // by the activity log and the event stream. The writer wakes once wakeAt entries are queued, a sync() is
+    // waiting or parkNanos have passed; a full ring makes producers wait for it. The first append starts the
+    // writer, close() drains the ring and stops it, and a shutdown hook closes it at exit.
+    static final class RingWriter<E> {
+        // Owned by the writer thread once opened.
+        interface Sink<E> {
+            // Runs on the writer thread before the first entry is appended.
+            default void start() {}
+            void append(E e) throws IOException;
+            // Ends a batch of n entries, begun at t0 (System.nanoTime); sync is set when a sync() waits for it.
+            void endBatch(long n, long t0, boolean sync) throws IOException;
+            void close();
+        }
+
+        private final String name;
+        private final String label;
+        private final int capacity;
+        private final int mask;
+        private final int wakeAt;
+        private final long parkNanos;
+        private final java.util.function.Supplier<Sink<E>> open;
+        private final AtomicReferenceArray<E> ring;
+        private final AtomicLong tail = new AtomicLong();
+        private final Object syncLock = new Object();
+        private volatile long head = 0;
+        private volatile long synced = 0;
+        private volatile long syncRequested = 0;
+        private volatile boolean closing = false;
+        private volatile boolean muted = false;
+        private volatile Thread writer;
+        private boolean hookInstalled = false;
+
+        // capacity is rounded up to a power of two; open is called, on the thread that starts the writer, for
+        // the sink of each writer started.
+        RingWriter(String name, String label, int capacity, int wakeAt, long parkNanos, java.util.function.Supplier<Sink<E>> open) {
+            this.name = name;
+            this.label = label;
+            this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            this.mask = this.capacity - 1;
+            this.wakeAt = Math.min(this.capacity / 2, wakeAt);
+            this.parkNanos = parkNanos;
+            this.open = open;
+            ring = new AtomicReferenceArray<>(this.capacity);
+        }
+
+        void setMuted(boolean m) { muted = m; }
+        long queueDepth() { return tail.get() - head; }
+
+        void append(E e) {
+            if (muted) return;
+            Thread w = writer != null ? writer : start();
+            long t;
+            while (true) {
+                t = tail.get();
+                if (t - head >= capacity) {
+                    LockSupport.unpark(w);
+                    LockSupport.parkNanos(50_000);
+                } else if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            }
+            ring.lazySet((int) (t & mask), e);
+            if (t - head + 1 >= wakeAt) LockSupport.unpark(w);
+        }
+
+        // Blocks until every entry appended before the call has been through a batch ended with sync set.
+        void sync() {
+            Thread w = writer;
+            if (w == null) return;
+            long target = tail.get();
+            synchronized (syncLock) {
+                if (syncRequested < target) syncRequested = target;
+                LockSupport.unpark(w);
+                while (synced < target && w.isAlive()) {
+                    try {
+                        syncLock.wait(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Drains queued entries, closes the sink and stops the writer; the next append starts a new one.
+        synchronized void close() {
+            Thread w = writer;
+            if (w == null) return;
+            closing = true;
+            LockSupport.unpark(w);
+            boolean interrupted = false;
+            while (w.isAlive()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            writer = null;
+            closing = false;
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        synchronized Thread start() {
+            if (writer != null) return writer;
+            if (!hookInstalled) {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-drain"));
+                hookInstalled = true;
+            }
+            Sink<E> out = open.get();
+            Thread t = new Thread(() -> drain(out), name + "-writer");
+            t.setDaemon(true);
+            writer = t;
+            t.start();
+            return t;
+        }
+
+        private void drain(Sink<E> out) {
+            try {
+                out.start();
+                while (true) {
+                    boolean stopping = closing;
+                    long h = head;
+                    long end = tail.get();
+                    long t0 = System.nanoTime();
+                    for (; h < end; h++) {
+                        int i = (int) (h & mask);
+                        E e;
+                        while ((e = ring.get(i)) == null) Thread.onSpinWait();
+                        ring.lazySet(i, null);
+                        out.append(e);
+                    }
+                    long n = h - head;
+                    head = h;
+                    boolean sync = syncRequested > synced;
+                    if (n > 0 || sync) out.endBatch(n, t0, sync);
+                    if (sync) {
+                        synchronized (syncLock) {
+                            synced = h;
+                            syncLock.notifyAll();
+                        }
+                    }
+                    if (stopping && head == tail.get()) return;
+                    if (!closing && tail.get() - head < wakeAt && syncRequested <= synced) LockSupport.parkNanos(parkNanos);
+                }
+            } catch (IOException e) {
+                System.out.println(label + " writer stopped: " + e.getMessage());
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Lines are queued on a RingWriter, whose batch is written once FLUSH_LINES are queued or FLUSH_NANOS have
+    // passed. studystreak.log.fsync picks when the open segments are forced: "rollover" (on sync(), the
+    // default), "batch" (after every write) or "none".
+    //
+    // Lines go to ACTIVITY_DIR/<date>.<part>.log, one segment per simulated date, rolled early past
+    // SEGMENT_BYTES; up to OPEN_DATES dates have a segment open at once. Segments are cut into blocks of about
+    // BLOCK_BYTES; the .idx written when a segment is sealed lists the block offsets and, per group, the blocks
+    // holding that group's lines. Sealed segments are gzipped one member per block so a block can still be
+    // read on its own.
+    static class ActivityLogger {
+        private static final int CAPACITY = Integer.getInteger("studystreak.log.bufferLines", 8192);
+        private static final int FLUSH_LINES = Integer.getInteger("studystreak.log.flushLines", 256);
+        private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("studystreak.log.flushMillis", 200));
+        private static final String FSYNC = System.getProperty("studystreak.log.fsync", "rollover");
+        private static final long SEGMENT_BYTES = Long.getLong("studystreak.log.segmentBytes", 8 << 20);
+        private static final int OPEN_DATES = Math.max(1, Integer.getInteger("studystreak.log.openDates", 4));
+        private static final int BLOCK_BYTES = Integer.getInteger("studystreak.log.blockBytes", 16 << 10);
+        private static final boolean COMPRESS = !"false".equals(System.getProperty("studystreak.log.compress"));
+        private static final int INDEX_MAGIC = 0x53534149;
+        private static final String GLOBAL = "GLOBAL";
+
+        // dir is guarded by ring, so a writer is always started on the directory last redirected to.
+        private static Path dir = Paths.get(ACTIVITY_DIR);
+        private static final RingWriter<Entry> ring = new RingWriter<>("activity-log", "Activity log", CAPACITY, FLUSH_LINES,
+                FLUSH_NANOS, () -> new SegmentWriter(dir));
+
+        private static final class Entry {
+            final LocalDate date;
+            final String group;
+            final String message;
+
+            Entry(LocalDate date, String group, String message) {
+                this.date = date;
+                this.group = group;
+                this.message = message;
+            }
+        }
+
+        public static void log(String groupName, String message) {
+            appendLine(new Entry(currentDate, groupName, message));
+        }
+        // For lines about a day other than the current one, such as the results of a rollover.
+        public static void log(LocalDate day, String groupName, String message) {
+            appendLine(new Entry(day, groupName, message));
+        }
+        public static void logGlobal(String message) {
+            appendLine(new Entry(currentDate, GLOBAL, message));
+        }
+        static void setMuted(boolean m) { ring.setMuted(m); }
+        static long queueDepth() { return ring.queueDepth(); }
+
+        private static void appendLine(Entry e) {
+            ring.append(e);
+        }
+
+        // Blocks until every line logged before the call has been written and, unless fsync is "none", forced.
+        static void sync() {
+            ring.sync();
+        }
+
+        // Drains queued lines, seals the open segments and stops the writer; the next log call starts a new one.
+        static void close() {
+            ring.close();
+        }
+
+        static void redirect(Path p) {
+            synchronized (ring) {
+                ring.close();
+                dir = p;
+            }
+        }
+
+        // Streams the lines logged for a group between two simulated dates (inclusive), oldest segment first.
+        static int query(String group, LocalDate from, LocalDate to, java.util.function.Consumer<String> sink) throws IOException {
+            sync();
+            Path d;
+            synchronized (ring) {
+                d = dir;
+            }
+            int matched = 0;
+            for (Path log : segments(d, from, to)) {
+                String prefix = "[" + segmentDate(log) + "] [" + group + "] ";
+                SegmentIndex idx = SegmentIndex.read(indexPath(log));
+                if (idx == null) {
+                    matched += scan(log, prefix, sink);
+                    continue;
+                }
+                Path data = idx.compressed ? compressedPath(log) : log;
+                try (FileChannel ch = FileChannel.open(data, StandardOpenOption.READ)) {
+                    for (int b : idx.blocksOf(group)) {
+                        ByteBuffer block = ByteBuffer.allocate((int) (idx.offsets[b + 1] - idx.offsets[b]));
+                        while (block.hasRemaining()) {
+                            if (ch.read(block, idx.offsets[b] + block.position()) < 0) throw new EOFException("Truncated segment " + data);
+                        }
+                        InputStream in = new ByteArrayInputStream(block.array());
+                        if (idx.compressed) in = new GZIPInputStream(in);
+                        matched += filter(in, prefix, sink);
+                    }
+                }
+            }
+            return matched;
+        }
+
+        // Streams every line logged between two simulated dates (inclusive), segments in parallel and in no
+        // particular order, so the sink must be thread-safe.
+        static long scanAll(LocalDate from, LocalDate to, java.util.function.Consumer<String> sink) throws IOException {
+            sync();
+            Path d;
+            synchronized (ring) {
+                d = dir;
+            }
+            try {
+                return segments(d, from, to).parallelStream().mapToLong(log -> {
+                    try {
+                        return scan(log, "", sink);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).sum();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static int scan(Path log, String prefix, java.util.function.Consumer<String> sink) throws IOException {
+            try (InputStream in = Files.newInputStream(log)) {
+                return filter(in, prefix, sink);
+            } catch (NoSuchFileException sealedMeanwhile) {
+                Path gz = compressedPath(log);
+                if (!Files.exists(gz)) return 0;
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(gz))) {
+                    return filter(in, prefix, sink);
+                }
+            }
+        }
+
+        private static int filter(InputStream in, String prefix, java.util.function.Consumer<String> sink) throws IOException {
+            int matched = 0;
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.startsWith(prefix)) {
+                    sink.accept(line);
+                    matched++;
+                }
+            }
+            return matched;
+        }
+
+        private static List<Path> segments(Path d, LocalDate from, LocalDate to) {
+            Set<Path> found = new LinkedHashSet<>();
+            if (!Files.isDirectory(d)) return new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(d, "*.log*")) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    if (!name.endsWith(".log") && !name.endsWith(".log.gz")) continue;
+                    Path log = name.endsWith(".gz") ? d.resolve(name.substring(0, name.length() - 3)) : p;
+                    LocalDate date = segmentDate(log);
+                    if (date == null || date.isBefore(from) || date.isAfter(to)) continue;
+                    found.add(log);
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to list activity segments: " + e.getMessage());
+            }
+            List<Path> out = new ArrayList<>(found);
+            out.sort(Comparator.comparing(ActivityLogger::segmentDate).thenComparingInt(ActivityLogger::segmentPart));
+            return out;
+        }
+
+        private static LocalDate segmentDate(Path log) {
+            String name = log.getFileName().toString();
+            try {
+                return LocalDate.parse(name.substring(0, name.indexOf('.')));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static int segmentPart(Path log) {
+            String name = log.getFileName().toString();
+            String[] parts = name.split("\\.");
+            try {
+                return Integer.parseInt(parts[1]);
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
+        private static Path indexPath(Path log) {
+            return Paths.get(log.toString().replaceFirst("\\.log$", ".idx"));
+        }
+
+        private static Path compressedPath(Path log) {
+            return Paths.get(log + ".gz");
+        }
+
+        // Owned by the writer thread: the open segments, at most OPEN_DATES of them, one per date. Rollover lines
+        // for the day before interleave with lines for today, so each date keeps appending to its own segment
+        // rather than sealing one and opening another at every change of date; the least recently written is
+        // sealed when another date needs a slot.
+        private static final class SegmentWriter implements RingWriter.Sink<Entry> {
+            private final Path dir;
+            private final LinkedHashMap<LocalDate, Segment> open = new LinkedHashMap<>(16, 0.75f, true);
+
+            SegmentWriter(Path dir) {
+                this.dir = dir;
+            }
+
+            // Indexes the segments left without one by an earlier run that did not shut down cleanly.
+            @Override
+            public void start() {
+                if (!Files.isDirectory(dir)) return;
+                for (Path p : segments(dir, LocalDate.MIN, LocalDate.MAX)) {
+                    if (!Files.exists(p)) continue;
+                    try {
+                        SegmentIndex idx = SegmentIndex.read(indexPath(p));
+                        if (idx != null && idx.compressed) Files.delete(p);
+                    } catch (IOException e) {
+                        System.out.println("Failed to read activity index for " + p + ": " + e.getMessage());
+                    }
+                    if (Files.exists(p) && !Files.exists(indexPath(p))) {
+                        try {
+                            Segment.compact(p, SegmentIndex.build(p));
+                        } catch (IOException e) {
+                            System.out.println("Failed to index activity segment " + p + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void append(Entry e) {
+                byte[] line = ("[" + e.date + "] [" + e.group + "] " + e.message + "\n").getBytes(StandardCharsets.UTF_8);
+                Segment seg = open.get(e.date);
+                if (seg != null && seg.size >= SEGMENT_BYTES) {
+                    open.remove(e.date).seal();
+                    seg = null;
+                }
+                if (seg == null) {
+                    if (open.size() >= OPEN_DATES) {
+                        Iterator<Segment> eldest = open.values().iterator();
+                        eldest.next().seal();
+                        eldest.remove();
+                    }
+                    seg = new Segment(dir, e.date);
+                    open.put(e.date, seg);
+                }
+                seg.append(e.group, line);
+            }
+
+            @Override
+            public void endBatch(long lines, long t0, boolean sync) {
+                for (Segment seg : open.values()) seg.flush();
+                if (FSYNC.equals("batch") || (sync && !FSYNC.equals("none"))) {
+                    for (Segment seg : open.values()) seg.force();
+                }
+                if (lines > 0) {
+                    Metrics.LOG_WRITE.recordSince(t0);
+                    Metrics.LOG_LINES.add(lines);
+                }
+            }
+
+            // Seals the open segments.
+            @Override
+            public void close() {
+                for (Segment seg : open.values()) seg.seal();
+                open.clear();
+            }
+        }
+
+        // One open segment: its channel, buffered bytes and in-memory index.
+        private static final class Segment {
+            private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            private final Path log;
+            private final SegmentIndex index = new SegmentIndex();
+            private FileChannel ch;
+            private long size;
+
+            Segment(Path dir, LocalDate d) {
+                int part = 0;
+                while (Files.exists(dir.resolve(d + "." + part + ".log")) || Files.exists(dir.resolve(d + "." + part + ".log.gz"))) part++;
+                log = dir.resolve(d + "." + part + ".log");
+                try {
+                    Files.createDirectories(dir);
+                    ch = FileChannel.open(log, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    System.out.println("Failed to open activity segment " + log + ": " + e.getMessage());
+                    ch = null;
+                }
+            }
+
+            void append(String group, byte[] line) {
+                if (ch == null) return;
+                index.note(group, size);
+                if (line.length > buf.remaining()) flush();
+                if (line.length > buf.capacity()) {
+                    write(ByteBuffer.wrap(line));
+                } else {
+                    buf.put(line);
+                }
+                size += line.length;
+            }
+
+            void flush() {
+                if (ch == null || buf.position() == 0) return;
+                buf.flip();
+                write(buf);
+                buf.clear();
+            }
+
+            void force() {
+                if (ch == null) return;
+                try {
+                    ch.force(false);
+                } catch (IOException e) {
+                    System.out.println("Failed to sync activity log: " + e.getMessage());
+                }
+            }
+
+            void seal() {
+                flush();
+                if (ch == null) return;
+                try {
+                    ch.close();
+                    index.offsets = Arrays.copyOf(index.offsets, index.blocks + 1);
+                    index.offsets[index.blocks] = size;
+                    compact(log, index);
+                } catch (IOException e) {
+                    System.out.println("Failed to seal activity segment " + log + ": " + e.getMessage());
+                }
+                ch = null;
+            }
+
+            private void write(ByteBuffer b) {
+                try {
+                    while (b.hasRemaining()) ch.write(b);
+                } catch (IOException e) {
+                    System.out.println("Failed to write activity log: " + e.getMessage());
+                }
+            }
+
+            // Rewrites a sealed segment as gzip members, one per block, then writes its index and drops the raw file.
+            private static void compact(Path log, SegmentIndex index) throws IOException {
+                if (!COMPRESS) {
+                    index.write(indexPath(log));
+                    return;
+                }
+                Path gz = compressedPath(log);
+                long[] packed = new long[index.blocks + 1];
+                try (FileChannel in = FileChannel.open(log, StandardOpenOption.READ);
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(gz))) {
+                    long written = 0;
+                    for (int b = 0; b < index.blocks; b++) {
+                        ByteBuffer raw = ByteBuffer.allocate((int) (index.offsets[b + 1] - index.offsets[b]));
+                        while (raw.hasRemaining()) {
+                            if (in.read(raw, index.offsets[b] + raw.position()) < 0) throw new EOFException("Truncated segment " + log);
+                        }
+                        ByteArrayOutputStream member = new ByteArrayOutputStream(raw.capacity() / 4 + 64);
+                        try (GZIPOutputStream z = new GZIPOutputStream(member)) {
+                            z.write(raw.array());
+                        }
+                        packed[b] = written;
+                        member.writeTo(out);
+                        written += member.size();
+                    }
+                    packed[index.blocks] = written;
+                }
+                index.offsets = packed;
+                index.compressed = true;
+                index.write(indexPath(log));
+                Files.delete(log);
+            }
+        }
+
+        // Block offsets of one segment (raw or compressed bytes) and, per group, the blocks with its lines.
+        private static final class SegmentIndex {
+            boolean compressed;
+            int blocks;
+            long[] offsets = new long[16];
+            final Map<String, int[]> groups = new HashMap<>();
+            private final Map<String, Integer> counts = new HashMap<>();
+
+            void note(String group, long at) {
+                if (blocks == 0 || at - offsets[blocks - 1] >= BLOCK_BYTES) {
+                    if (blocks + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    offsets[blocks++] = at;
+                }
+                int block = blocks - 1;
+                int[] list = groups.get(group);
+                int n = counts.getOrDefault(group, 0);
+                if (list != null && list[n - 1] == block) return;
+                if (list == null) list = new int[4];
+                else if (n == list.length) list = Arrays.copyOf(list, n * 2);
+                list[n] = block;
+                groups.put(group, list);
+                counts.put(group, n + 1);
+            }
+
+            int[] blocksOf(String group) {
+                int[] list = groups.get(group);
+                return list == null ? new int[0] : Arrays.copyOf(list, counts.get(group));
+            }
+
+            void write(Path p) throws IOException {
+                Path tmp = Paths.get(p + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(INDEX_MAGIC);
+                    out.writeBoolean(compressed);
+                    out.writeInt(blocks);
+                    for (int b = 0; b <= blocks; b++) out.writeLong(offsets[b]);
+                    out.writeInt(groups.size());
+                    for (String g : groups.keySet()) {
+                        int[] list = blocksOf(g);
+                        out.writeUTF(g);
+                        out.writeInt(list.length);
+                        for (int b : list) out.writeInt(b);
+                    }
+                }
+                Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            static SegmentIndex read(Path p) throws IOException {
+                if (!Files.exists(p)) return null;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                    if (in.readInt() != INDEX_MAGIC) throw new IOException("Not an activity index: " + p);
+                    SegmentIndex idx = new SegmentIndex();
+                    idx.compressed = in.readBoolean();
+                    idx.blocks = in.readInt();
+                    idx.offsets = new long[idx.blocks + 1];
+                    for (int b = 0; b <= idx.blocks; b++) idx.offsets[b] = in.readLong();
+                    int groupCount = in.readInt();
+                    for (int g = 0; g < groupCount; g++) {
+                        String name = in.readUTF();
+                        int[] list = new int[in.readInt()];
+                        for (int i = 0; i < list.length; i++) list[i] = in.readInt();
+                        idx.groups.put(name, list);
+                        idx.counts.put(name, list.length);
+                    }
+                    return idx;
+                }
+            }
+
+            static SegmentIndex build(Path log) throws IOException {
+                SegmentIndex idx = new SegmentIndex();
+                long at = 0;
+                try (BufferedReader r = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+                    for (String line; (line = r.readLine()) != null; ) {
+                        int open = line.indexOf("] [");
+                        int close = open < 0 ? -1 : line.indexOf("] ", open + 3);
+                        if (close > 0) idx.note(line.substring(open + 3, close), at);
+                        at += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    }
+                }
+                idx.offsets = Arrays.copyOf(idx.offsets, idx.blocks + 1);
+                idx.offsets[idx.blocks] = Math.min(at, Files.size(log));
+                return idx;
+            }
+        }
+    }
+
+    // Typed events for downstream consumers, emitted where the activity log records the same facts. Events are
+    // queued on a RingWriter, as activity lines are; its writer thread gives each event the next offset and
+    // appends it, CRC-framed, to EVENTS_DIR/<first offset>.events, rolling segments at
+    // SEGMENT_BYTES. Consumers subscribe through java.util.concurrent.Flow: each subscription reads the
+    // segments from its consumer's committed offset on its own thread and delivers batches of up to BATCH
+    // events only as requested, so a slow subscriber falls behind on disk instead of holding up the operations
+    // that emit. Batch.commit writes <consumer>.offset, and a later subscription for that consumer resumes
+    // there. Segments are deleted once every consumer has committed past them, or, with no consumers, once
+    // KEEP_SEGMENTS newer ones exist. Replay does not emit, and events still in the ring when the process dies
+    // are lost.
+    static class Events {
+        static final byte HOURS_LOGGED = 1;
+        static final byte MEMBER_APPROVED = 2;
+        static final byte MEMBER_AUTO_REMOVED = 3;
+        static final byte STREAK_INCREMENTED = 4;
+        static final byte STREAK_BROKEN = 5;
+        private static final int CAPACITY = Integer.getInteger("studystreak.events.bufferEvents", 65536);
+        private static final int BATCH = Integer.getInteger("studystreak.events.batch", 4096);
+        private static final long SEGMENT_BYTES = Long.getLong("studystreak.events.segmentBytes", 64 << 20);
+        private static final int KEEP_SEGMENTS = Integer.getInteger("studystreak.events.keepSegments", 16);
+        private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("studystreak.events.flushMillis", 50));
+        private static final String SUFFIX = ".events";
+        private static final int MAX_RECORD = 8 + 1 + 4 + 2 * (2 + 65535) + 12;
+
+        private static final Map<String, Long> committed = new ConcurrentHashMap<>();
+        private static final Set<Thread> readers = ConcurrentHashMap.newKeySet();
+        private static volatile long written = 0;
+        // dir is guarded by ring, so a writer is always started on the directory last redirected to.
+        private static Path dir = Paths.get(EVENTS_DIR);
+        private static final RingWriter<Event> ring = new RingWriter<>("events", "Event log", CAPACITY, BATCH, FLUSH_NANOS, Events::open);
+
+        static class Event {
+            final long offset;
+            final byte type;
+            final LocalDate day;
+            final String group;
+            final String user;
+            final int a;
+            final int b;
+            final int c;
+
+            Event(long offset, byte type, LocalDate day, String group, String user, int a, int b, int c) {
+                this.offset = offset;
+                this.type = type;
+                this.day = day;
+                this.group = group;
+                this.user = user;
+                this.a = a;
+                this.b = b;
+                this.c = c;
+            }
+
+            static Event of(long offset, byte type, LocalDate day, String group, String user, int a, int b, int c) {
+                switch (type) {
+                    case HOURS_LOGGED: return new HoursLogged(offset, day, group, user, a, b);
+                    case MEMBER_APPROVED: return new MemberApproved(offset, day, group, user);
+                    case MEMBER_AUTO_REMOVED: return new MemberAutoRemoved(offset, day, group, user, a);
+                    case STREAK_INCREMENTED: return new StreakIncremented(offset, day, group, a, b, c);
+                    case STREAK_BROKEN: return new StreakBroken(offset, day, group, a, b, c);
+                    default: return new Event(offset, type, day, group, user, a, b, c);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return offset + " " + day + " " + getClass().getSimpleName() + " " + group + (user.isEmpty() ? "" : " " + user)
+                        + " " + a + " " + b + " " + c;
+            }
+        }
+
+        static final class HoursLogged extends Event {
+            HoursLogged(long offset, LocalDate day, String group, String user, int hours, int failures) {
+                super(offset, HOURS_LOGGED, day, group, user, hours, failures, 0);
+            }
+            int hours() { return a; }
+            int failures() { return b; }
+        }
+
+        static final class MemberApproved extends Event {
+            MemberApproved(long offset, LocalDate day, String group, String user) {
+                super(offset, MEMBER_APPROVED, day, group, user, 0, 0, 0);
+            }
+        }
+
+        static final class MemberAutoRemoved extends Event {
+            MemberAutoRemoved(long offset, LocalDate day, String group, String user, int failures) {
+                super(offset, MEMBER_AUTO_REMOVED, day, group, user, failures, 0, 0);
+            }
+            int failures() { return a; }
+        }
+
+        static final class StreakIncremented extends Event {
+            StreakIncremented(long offset, LocalDate day, String group, int streak, int met, int total) {
+                super(offset, STREAK_INCREMENTED, day, group, "", streak, met, total);
+            }
+            int streak() { return a; }
+            int met() { return b; }
+            int total() { return c; }
+        }
+
+        static final class StreakBroken extends Event {
+            StreakBroken(long offset, LocalDate day, String group, int met, int total, int required) {
+                super(offset, STREAK_BROKEN, day, group, "", met, total, required);
+            }
+            int met() { return a; }
+            int total() { return b; }
+            int required() { return c; }
+        }
+
+        static final class Batch {
+            final List<Event> events;
+            private final String consumer;
+
+            Batch(String consumer, List<Event> events) {
+                this.consumer = consumer;
+                this.events = events;
+            }
+
+            long lastOffset() {
+                return events.get(events.size() - 1).offset;
+            }
+
+            // Marks this batch and everything delivered before it as processed.
+            void commit() {
+                Events.commit(consumer, lastOffset() + 1);
+            }
+        }
+
+        static void hoursLogged(LocalDate day, String group, String user, int hours, int failures) {
+            publish(new HoursLogged(-1, day, group, user, hours, failures));
+        }
+        static void memberApproved(LocalDate day, String group, String user) {
+            publish(new MemberApproved(-1, day, group, user));
+        }
+        static void memberAutoRemoved(LocalDate day, String group, String user, int failures) {
+            publish(new MemberAutoRemoved(-1, day, group, user, failures));
+        }
+        static void streakIncremented(LocalDate day, String group, int streak, int met, int total) {
+            publish(new StreakIncremented(-1, day, group, streak, met, total));
+        }
+        static void streakBroken(LocalDate day, String group, int met, int total, int required) {
+            publish(new StreakBroken(-1, day, group, met, total, required));
+        }
+        static void setMuted(boolean m) { ring.setMuted(m); }
+        static long queueDepth() { return ring.queueDepth(); }
+
+        // Moves a consumer past everything written so far, for one that only wants events from now on.
+        static void skipToEnd(String consumer) {
+            ring.start();
+            commit(consumer, written);
+        }
+
+        static void publish(Event e) {
+            ring.append(e);
+        }
+
+        // A feed of the stream for one named consumer; every subscription to it starts after the consumer's
+        // committed offset, or at the oldest kept event if it has none.
+        static Flow.Publisher<Batch> feed(String consumer) {
+            if (!consumer.matches("[A-Za-z0-9_-]+")) throw new IllegalArgumentException("Consumer names are letters, digits, '-' and '_'");
+            return subscriber -> {
+                Reader r = new Reader(consumer, subscriber);
+                subscriber.onSubscribe(r);
+                r.thread.start();
+            };
+        }
+
+        // Blocks until every event emitted before the call has been written.
+        static void sync() {
+            ring.sync();
+        }
+
+        static void close() {
+            ring.close();
+        }
+
+        static void redirect(Path p) {
+            synchronized (ring) {
+                ring.close();
+                dir = p;
+                committed.clear();
+            }
+        }
+
+        // Opens the newest segment for a new writer thread, after loading the committed consumer offsets.
+        private static SegmentWriter open() {
+            Path d = dir;
+            SegmentWriter out = new SegmentWriter(d);
+            try {
+                Files.createDirectories(d);
+                loadOffsets(d);
+                written = out.recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open the event log in " + d, e);
+            }
+            return out;
+        }
+
+        private static void loadOffsets(Path d) throws IOException {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(d, "*.offset")) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    try {
+                        committed.merge(name.substring(0, name.length() - ".offset".length()),
+                                Long.parseLong(Files.readString(p).trim()), Math::max);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring unreadable consumer offset " + p);
+                    }
+                }
+            }
+        }
+
+        private static void commit(String consumer, long offset) {
+            Path d;
+            synchronized (ring) {
+                d = dir;
+            }
+            synchronized (committed) {
+                Long prev = committed.get(consumer);
+                if (prev != null && prev >= offset) return;
+                committed.put(consumer, offset);
+                try {
+                    Path tmp = d.resolve(consumer + ".offset.tmp");
+                    Files.writeString(tmp, Long.toString(offset));
+                    Files.move(tmp, d.resolve(consumer + ".offset"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to commit the offset of " + consumer, e);
+                }
+            }
+        }
+
+        private static long[] segmentStarts(Path d) throws IOException {
+            List<Long> starts = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(d, "*" + SUFFIX)) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    try {
+                        starts.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not a segment
+                    }
+                }
+            }
+            return starts.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        private static Path segmentPath(Path d, long start) {
+            return d.resolve(String.format("%020d", start) + SUFFIX);
+        }
+
+        // Sequential reads of one segment through a reused buffer, decoding records in place.
+        private static final class SegmentReader implements Closeable {
+            private final FileChannel ch;
+            private final ByteBuffer buf = ByteBuffer.allocate(256 * 1024).flip();
+            private final CRC32 crc = new CRC32();
+            private long position;
+
+            SegmentReader(Path p) throws IOException {
+                ch = FileChannel.open(p, StandardOpenOption.READ);
+            }
+
+            // Bytes of the segment taken by the records read so far.
+            long position() { return position; }
+
+            // Reads the next record, or skips it and returns null when its offset is below `from`. Throws
+            // EOFException at the end of what has been written, and IOException for a damaged record.
+            Event next(long from) throws IOException {
+                fill(8);
+                int len = buf.getInt(buf.position());
+                int sum = buf.getInt(buf.position() + 4);
+                if (len < 8 || len > MAX_RECORD) throw new IOException("damaged event record");
+                fill(8 + len);
+                int at = buf.position() + 8;
+                buf.position(at + len);
+                position += 8 + len;
+                long offset = buf.getLong(at);
+                if (offset < from) return null;
+                crc.reset();
+                crc.update(buf.slice(at, len));
+                if ((int) crc.getValue() != sum) throw new IOException("damaged event record");
+                byte type = buf.get(at + 8);
+                LocalDate day = LocalDate.ofEpochDay(buf.getInt(at + 9));
+                int userAt = at + 13 + 2 + (buf.getShort(at + 13) & 0xffff);
+                int intsAt = userAt + 2 + (buf.getShort(userAt) & 0xffff);
+                return Event.of(offset, type, day, utf(at + 13), utf(userAt), buf.getInt(intsAt), buf.getInt(intsAt + 4), buf.getInt(intsAt + 8));
+            }
+
+            private String utf(int at) throws IOException {
+                int n = buf.getShort(at) & 0xffff;
+                byte[] a = buf.array();
+                for (int i = at + 2; i < at + 2 + n; i++) {
+                    if (a[i] <= 0) return new DataInputStream(new ByteArrayInputStream(a, at, n + 2)).readUTF();
+                }
+                return new String(a, at + 2, n, StandardCharsets.ISO_8859_1);
+            }
+
+            private void fill(int n) throws IOException {
+                if (buf.remaining() >= n) return;
+                buf.compact();
+                try {
+                    while (buf.position() < n) {
+                        if (ch.read(buf) < 0) throw new EOFException();
+                    }
+                } finally {
+                    buf.flip();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                ch.close();
+            }
+        }
+
+        // Owned by the writer thread: the active segment and the next offset to give out.
+        private static final class SegmentWriter implements RingWriter.Sink<Event> {
+            private final Path dir;
+            private final ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+            private final CRC32 crc = new CRC32();
+            private FileChannel ch;
+            private long next;
+            private long size;
+
+            SegmentWriter(Path dir) {
+                this.dir = dir;
+            }
+
+            // Opens the newest segment, cutting off a record torn by a crash, and returns the next offset.
+            long recover() throws IOException {
+                long[] starts = segmentStarts(dir);
+                if (starts.length == 0) {
+                    open(0);
+                    return next;
+                }
+                long start = starts[starts.length - 1];
+                Path p = segmentPath(dir, start);
+                long good = 0;
+                next = start;
+                try (SegmentReader in = new SegmentReader(p)) {
+                    try {
+                        while (true) {
+                            Event e = in.next(next);
+                            if (e == null || e.offset != next) break;
+                            next++;
+                            good = in.position();
+                        }
+                    } catch (IOException endOrDamage) {
+                        // everything before this record is intact
+                    }
+                }
+                ch = FileChannel.open(p, StandardOpenOption.WRITE);
+                if (ch.size() > good) {
+                    System.out.println("Cut the event log " + p.getFileName() + " back to " + good + " bytes after a torn record.");
+                    ch.truncate(good);
+                }
+                ch.position(good);
+                size = good;
+                return next;
+            }
+
+            // Encodes the record straight into the write buffer, in the layout SegmentReader decodes.
+            @Override
+            public void append(Event e) throws IOException {
+                int len = payloadLength(e);
+                if (len > MAX_RECORD) throw new IOException("event names are too long to record");
+                if (buf.remaining() < len + 8) flush();
+                int start = buf.position();
+                buf.position(start + 8);
+                buf.putLong(next++).put(e.type).putInt((int) e.day.toEpochDay());
+                putUtf(e.group);
+                putUtf(e.user);
+                buf.putInt(e.a).putInt(e.b).putInt(e.c);
+                crc.reset();
+                crc.update(buf.slice(start + 8, len));
+                buf.putInt(start, len).putInt(start + 4, (int) crc.getValue());
+            }
+
+            private void putUtf(String s) {
+                buf.putShort((short) utfLength(s));
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c >= 1 && c <= 0x7f) {
+                        buf.put((byte) c);
+                    } else if (c <= 0x7ff) {
+                        buf.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+                    } else {
+                        buf.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+                    }
+                }
+            }
+
+            void flush() throws IOException {
+                buf.flip();
+                size += buf.remaining();
+                while (buf.hasRemaining()) ch.write(buf);
+                buf.clear();
+            }
+
+            // Publishes the batch to the readers and rolls the segment once it is past SEGMENT_BYTES.
+            @Override
+            public void endBatch(long events, long t0, boolean sync) throws IOException {
+                flush();
+                written = next;
+                for (Thread r : readers) LockSupport.unpark(r);
+                if (size >= SEGMENT_BYTES) roll();
+            }
+
+            void roll() throws IOException {
+                ch.force(false);
+                ch.close();
+                open(next);
+                prune();
+            }
+
+            private void open(long start) throws IOException {
+                next = start;
+                size = 0;
+                ch = FileChannel.open(segmentPath(dir, start), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            private void prune() throws IOException {
+                long[] starts = segmentStarts(dir);
+                long keepFrom = committed.isEmpty() ? starts[Math.max(0, starts.length - KEEP_SEGMENTS)]
+                        : committed.values().stream().mapToLong(Long::longValue).min().getAsLong();
+                for (int i = 0; i + 1 < starts.length && starts[i + 1] <= keepFrom; i++) {
+                    Files.deleteIfExists(segmentPath(dir, starts[i]));
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    if (buf.position() > 0) flush();
+                    ch.force(false);
+                    ch.close();
+                } catch (IOException e) {
+                    System.out.println("Failed to close the event log: " + e.getMessage());
+                }
+            }
+
+            private static int payloadLength(Event e) {
+                return 8 + 1 + 4 + 2 + utfLength(e.group) + 2 + utfLength(e.user) + 12;
+            }
+
+            private static int utfLength(String s) {
+                int n = 0;
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    n += c >= 1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+                }
+                return n;
+            }
+        }
+
+        // One subscription: reads events below `written` from the consumer's position and hands them to the
+        // subscriber in batches, one per requested item.
+        private static final class Reader implements Flow.Subscription {
+            private final String consumer;
+            private final Flow.Subscriber<? super Batch> subscriber;
+            private final AtomicLong requested = new AtomicLong();
+            private final Thread thread;
+            private volatile boolean cancelled;
+            private SegmentReader in;
+            private long cursor;
+
+            Reader(String consumer, Flow.Subscriber<? super Batch> subscriber) {
+                this.consumer = consumer;
+                this.subscriber = subscriber;
+                thread = new Thread(this::run, "events-" + consumer);
+                thread.setDaemon(true);
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("request(" + n + ")"));
+                    return;
+                }
+                requested.getAndAccumulate(n, (r, add) -> r + add < 0 ? Long.MAX_VALUE : r + add);
+                LockSupport.unpark(thread);
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                LockSupport.unpark(thread);
+            }
+
+            private void run() {
+                readers.add(thread);
+                try {
+                    Path d;
+                    synchronized (ring) {
+                        d = dir;
+                    }
+                    ring.start();
+                    cursor = committed.getOrDefault(consumer, 0L);
+                    while (!cancelled) {
+                        long end = written;
+                        if (requested.get() == 0 || cursor >= end) {
+                            LockSupport.parkNanos(FLUSH_NANOS);
+                            continue;
+                        }
+                        List<Event> batch = new ArrayList<>((int) Math.min(BATCH, end - cursor));
+                        while (batch.size() < BATCH && cursor < end) {
+                            if (in == null) open(d);
+                            Event e;
+                            try {
+                                e = in.next(cursor);
+                            } catch (EOFException endOfSegment) {
+                                in.close();
+                                in = null;
+                                continue;
+                            }
+                            if (e == null) continue;
+                            batch.add(e);
+                            cursor = e.offset + 1;
+                        }
+                        requested.getAndUpdate(r -> r == Long.MAX_VALUE ? r : r - 1);
+                        subscriber.onNext(new Batch(consumer, batch));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!cancelled) subscriber.onError(e);
+                } finally {
+                    readers.remove(thread);
+                    try {
+                        if (in != null) in.close();
+                    } catch (IOException ignored) {
+                        // read-only
+                    }
+                }
+            }
+
+            // Opens the segment holding the cursor; a cursor older than every kept segment moves to the oldest.
+            private void open(Path d) throws IOException {
+                long[] starts = segmentStarts(d);
+                int i = starts.length - 1;
+                while (i > 0 && starts[i] > cursor) i--;
+                if (i < 0) throw new IOException("no event segments in " + d);
+                if (starts[i] > cursor) cursor = starts[i];
+                in = new SegmentReader(segmentPath(d, starts[i]));
+            }
+        }
+    }
+
+    static class StorageManager {
+        private static final boolean JOURNALING = !"snapshot".equalsIgnoreCase(System.getProperty("studystreak.persistence", "journal"));
+        private static final int CHECKPOINT_INTERVAL = Integer.getInteger("studystreak.checkpointInterval", 1000);
+        private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "storage-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        private static Future<?> pendingCheckpoint;
+        private static volatile boolean checkpointDue = false;
+        private static volatile boolean snapshotDue = false;
+        private static final int SHARDS = Math.max(1, Integer.getInteger("studystreak.shards", 64));
+        private static volatile SnapshotCodec.Manifest manifest;
+        private static volatile boolean rewriteAll = false;
+        private static volatile SnapshotCodec.Manifest previous;
+        static final boolean FSYNC = !"false".equalsIgnoreCase(System.getProperty("studystreak.fsync"));
+        private static final String CRASH_AT = System.getProperty("studystreak.crashAt", "");
+        private static FileChannel lock;
+
+        // Returns false, leaving the checkpoints untouched, when another process holds the data directory or it
+        // holds checkpoints but none of them is intact.
+        public static boolean loadAll() {
+            long t0 = System.nanoTime();
+            Path dir = Paths.get(DATA_DIR).toAbsolutePath();
+            if (!lock(dir)) return false;
+            countLoadBytes(dir);
+            long seq = 0;
+            boolean migrating = false;
+            boolean upgrading = false;
+            Path manifestPath = dir.resolve(MANIFEST_FILE);
+            Path usersPath = Paths.get(USERS_FILE).toAbsolutePath();
+            Path groupsPath = Paths.get(GROUPS_FILE).toAbsolutePath();
+            Path previousPath = dir.resolve(PREVIOUS_MANIFEST_FILE);
+            if (Files.exists(manifestPath) || Files.exists(previousPath)) {
+                if (!openCheckpoint(dir, manifestPath) && !openCheckpoint(dir, previousPath)) {
+                    System.out.println("No usable checkpoint in " + dir + "; refusing to start so that it is not overwritten.");
+                    return false;
+                }
+                seq = manifest.seq;
+            } else if (!Files.exists(usersPath) && !Files.exists(groupsPath)
+                    && (Files.exists(Paths.get(LEGACY_USERS_FILE)) || Files.exists(Paths.get(LEGACY_GROUPS_FILE)))) {
+                seq = loadLegacy();
+                migrating = true;
+            } else if (Files.exists(usersPath) || Files.exists(groupsPath)) {
+                seq = loadSingleFiles(usersPath, groupsPath);
+                upgrading = true;
+            } else {
+                System.out.println("No snapshot found in " + dir);
+                try {
+                    users = UserStore.open(dir, null, SHARDS);
+                } catch (IOException e) {
+                    System.out.println("Failed to open user store in " + dir + ", keeping users in memory: " + e.getMessage());
+                }
+            }
+
+            if (!(groups instanceof ConcurrentHashMap)) groups = new ConcurrentHashMap<>(groups);
+            if (!(users instanceof UserStore) && !(users instanceof ConcurrentHashMap)) users = new ConcurrentHashMap<>(users);
+            for (Group g : groups.values()) g.resetTodayMaps();
+            GroupIndex.rebuild(groups.values());
+
+            int replayed = Journal.replay(seq);
+            System.out.println("Loaded " + users.size() + " users and " + groups.size() + " groups from disk"
+                    + (replayed > 0 ? " (replayed " + replayed + " journal records)." : "."));
+            if (Journal.damaged()) {
+                saveAll();
+                if (manifest != null && manifest.seq == Journal.lastSeq()) Journal.setAsideDamaged();
+            }
+            if (migrating || upgrading) {
+                saveAll();
+                if (manifest != null) {
+                    try {
+                        users = UserStore.open(dir, manifest, manifest.userShards.length);
+                    } catch (IOException e) {
+                        System.out.println("Failed to reopen users from " + dir + ", keeping them in memory: " + e.getMessage());
+                    }
+                    if (migrating) retire(LEGACY_USERS_FILE, LEGACY_GROUPS_FILE);
+                    if (upgrading) retire(USERS_FILE, GROUPS_FILE);
+                    System.out.println("Migrated " + (migrating ? LEGACY_USERS_FILE + "/" + LEGACY_GROUPS_FILE : USERS_FILE + "/" + GROUPS_FILE)
+                            + " to " + manifest.userShards.length + " user and " + manifest.groupShards.length + " group shards in " + dir + ".");
+                }
+            }
+            Metrics.LOAD.recordSince(t0);
+            return true;
+        }
+
+        // Takes data/LOCK for the life of the process. Two processes sharing a directory would overwrite each
+        // other's checkpoints and journal segments, so a second server, worker, import or report refuses to start.
+        private static boolean lock(Path dir) {
+            if (lock != null) return true;
+            try {
+                Files.createDirectories(dir);
+                FileChannel ch = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (ch.tryLock() == null) {
+                    ch.close();
+                    System.out.println("Another process is using " + dir + "; refusing to start.");
+                    return false;
+                }
+                lock = ch;
+                return true;
+            } catch (IOException e) {
+                System.out.println("Failed to lock " + dir + "; refusing to start: " + e.getMessage());
+                return false;
+            }
+        }
+
+        // Loads the checkpoint named by a manifest after checking the manifest and every shard against their
+        // checksums. MANIFEST.prev is only tried when MANIFEST fails; its shards and the journal since its
+        // sequence are kept until the checkpoint after it, so falling back loses nothing that was committed.
+        private static boolean openCheckpoint(Path dir, Path path) {
+            if (!Files.exists(path)) return false;
+            SnapshotCodec.Manifest m;
+            Map<String, Group> loaded = new HashMap<>();
+            try {
+                m = SnapshotCodec.Manifest.read(path);
+                m.validate(dir);
+                for (String f : m.groupShards) loaded.putAll(SnapshotCodec.decodeGroups(readFile(dir.resolve(f))).data);
+                users = UserStore.open(dir, m, m.userShards.length);
+            } catch (Exception e) {
+                System.out.println("Checkpoint " + path.getFileName() + " in " + dir + " is unusable: " + e.getMessage());
+                return false;
+            }
+            groups = loaded;
+            manifest = m;
+            if (path.getFileName().toString().equals(MANIFEST_FILE)) {
+                try {
+                    previous = SnapshotCodec.Manifest.read(dir.resolve(PREVIOUS_MANIFEST_FILE));
+                } catch (IOException e) {
+                    previous = null;
+                }
+                sweep(dir);
+            } else {
+                System.out.println("Recovered from the previous checkpoint (generation " + m.generation + ").");
+                previous = null;
+                rewriteAll = true;
+            }
+            return true;
+        }
+
+        // Deletes shard and temp files left by a checkpoint that crashed before its manifest was written.
+        private static void sweep(Path dir) {
+            Set<String> kept = manifest.files();
+            if (previous != null) kept.addAll(previous.files());
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "{users,groups}-*.bin")) {
+                for (Path p : ds) {
+                    if (!kept.contains(p.getFileName().toString())) Files.deleteIfExists(p);
+                }
+                Files.deleteIfExists(dir.resolve(MANIFEST_FILE + ".tmp"));
+                Files.deleteIfExists(dir.resolve(PREVIOUS_MANIFEST_FILE + ".tmp"));
+            } catch (IOException e) {
+                System.out.println("Failed to remove unreferenced shards from " + dir + ": " + e.getMessage());
+            }
+        }
+
+        private static void countLoadBytes(Path dir) {
+            List<Path> files = new ArrayList<>();
+            for (String f : new String[] { USERS_FILE, GROUPS_FILE, LEGACY_USERS_FILE, LEGACY_GROUPS_FILE, JOURNAL_FILE }) files.add(Paths.get(f));
+            if (Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                    for (Path p : ds) files.add(p);
+                } catch (IOException ignored) {
+                    // only counted
+                }
+            }
+            for (Path p : files) {
+                try {
+                    if (Files.exists(p)) Metrics.LOAD_BYTES.add(Files.size(p));
+                } catch (IOException ignored) {
+                    // only counted
+                }
+            }
+        }
+
+        // users.bin/groups.bin, from before shards; they are decoded in full and rewritten as shards.
+        private static long loadSingleFiles(Path usersPath, Path groupsPath) {
+            long usersSeq = 0;
+            long groupsSeq = 0;
+            try {
+                if (!Files.exists(usersPath)) {
+                    System.out.println("Users file not found: " + usersPath);
+                } else if (SnapshotCodec.peekVersion(readHeaderBytes(usersPath)) < SnapshotCodec.USERS_VERSION) {
+                    SnapshotCodec.Snapshot<Map<String, User>> s = SnapshotCodec.decodeUsersV1(readFile(usersPath));
+                    users = s.data;
+                    usersSeq = s.seq;
+                } else {
+                    SnapshotCodec.UserFile file = new SnapshotCodec.UserFile(readFile(usersPath));
+                    Map<String, User> loaded = new HashMap<>(Math.max(16, file.count * 4 / 3 + 1));
+                    int off = file.firstRecord();
+                    for (int i = 0; i < file.count; i++, off = file.nextRecord(off)) {
+                        User u = SnapshotCodec.readUserPayload(file.payloadAt(off), file.groupTable);
+                        loaded.put(u.getUsername(), u);
+                    }
+                    users = loaded;
+                    usersSeq = file.seq;
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to load users from " + usersPath + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            try {
+                SnapshotCodec.Snapshot<Map<String, Group>> s = SnapshotCodec.decodeGroups(readFile(groupsPath));
+                groups = s.data;
+                groupsSeq = s.seq;
+            } catch (NoSuchFileException ignored) {
+                System.out.println("Groups file not found: " + groupsPath);
+            } catch (Exception e) {
+                System.out.println("Failed to load groups from " + groupsPath + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            return Math.min(usersSeq, groupsSeq);
+        }
+
+        private static long loadLegacy() {
+            long usersSeq = 0;
+            long groupsSeq = 0;
+            Path usersPath = Paths.get(LEGACY_USERS_FILE).toAbsolutePath();
+            try (ObjectInputStream ois = new LegacyFormat.Input(new FileInputStream(usersPath.toFile()))) {
+                Object o = ois.readObject();
+                if (o instanceof Map) {
+                    users = LegacyFormat.toUsers((Map<?, ?>) o);
+                }
+                usersSeq = readLegacySeq(ois);
+            } catch (FileNotFoundException ignored) {
+                System.out.println("Users file not found: " + usersPath);
+            } catch (Exception e) {
+                System.out.println("Failed to load users from " + usersPath + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+
+            Path groupsPath = Paths.get(LEGACY_GROUPS_FILE).toAbsolutePath();
+            try (ObjectInputStream ois = new LegacyFormat.Input(new FileInputStream(groupsPath.toFile()))) {
+                Object o = ois.readObject();
+                if (o instanceof Map) {
+                    groups = LegacyFormat.toGroups((Map<?, ?>) o);
+                }
+                groupsSeq = readLegacySeq(ois);
+            } catch (FileNotFoundException ignored) {
+                System.out.println("Groups file not found: " + groupsPath);
+            } catch (Exception e) {
+                System.out.println("Failed to load groups from " + groupsPath + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            return Math.min(usersSeq, groupsSeq);
+        }
+
+        private static long readLegacySeq(ObjectInputStream ois) throws IOException {
+            try {
+                return ois.readLong();
+            } catch (EOFException noSeq) {
+                return 0;
+            }
+        }
+
+        private static void retire(String... files) {
+            for (String f : files) {
+                try {
+                    Path p = Paths.get(f);
+                    if (Files.exists(p)) Files.move(p, Paths.get(f + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.out.println("Failed to retire " + f + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private static ByteBuffer readHeaderBytes(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(64, ch.size()));
+                while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+                return buf.flip();
+            }
+        }
+
+        private static ByteBuffer readFile(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+                while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+                buf.flip();
+                return buf;
+            }
+        }
+
+        public static void commit(byte type, String a, String b, int n) {
+            commitAt(currentDate, type, a, b, n);
+        }
+
+        // Runs inside the caller's operation; a checkpoint it makes due is taken by checkpointIfDue afterwards.
+        public static void commitAt(LocalDate day, byte type, String a, String b, int n) {
+            if (!JOURNALING) {
+                snapshotDue = true;
+                return;
+            }
+            try {
+                Journal.append(day, type, a, b, n);
+            } catch (IOException e) {
+                System.out.println("Failed to append journal record, writing full snapshot instead: " + e.getMessage());
+                snapshotDue = true;
+                return;
+            }
+            if (Journal.recordsSinceRotation() >= CHECKPOINT_INTERVAL) {
+                checkpointDue = true;
+            }
+        }
+
+        // Unlike commit, a batch never schedules a checkpoint by itself: bulk writers call saveAll once they finish.
+        public static void commitBatch(List<Journal.Entry> entries) {
+            if (entries.isEmpty()) return;
+            if (!JOURNALING) {
+                snapshotDue = true;
+                return;
+            }
+            try {
+                Journal.appendAll(currentDate, entries);
+            } catch (IOException e) {
+                System.out.println("Failed to append journal records, writing full snapshot instead: " + e.getMessage());
+                snapshotDue = true;
+            }
+        }
+
+        static void checkpointIfDue() {
+            if (!checkpointDue && !snapshotDue) return;
+            STATE_LOCK.writeLock().lock();
+            try {
+                if (snapshotDue) {
+                    snapshotDue = checkpointDue = false;
+                    checkpoint(true);
+                } else if (checkpointDue) {
+                    checkpointDue = false;
+                    checkpoint(false);
+                }
+            } finally {
+                STATE_LOCK.writeLock().unlock();
+            }
+        }
+
+        public static void saveAll() {
+            STATE_LOCK.writeLock().lock();
+            try {
+                checkpoint(true);
+            } finally {
+                STATE_LOCK.writeLock().unlock();
+            }
+        }
+
+        // Rewrites only the shards holding users or groups changed since the last checkpoint, and nothing at all
+        // when no entity is dirty and the journal is empty. After a failed write, a fallback to MANIFEST.prev or a
+        // manifest without checksums, every shard is rewritten. The checkpoint it replaces stays on disk as
+        // MANIFEST.prev together with its shards and journal segments.
+        private static synchronized void checkpoint(boolean wait) {
+            if (pendingCheckpoint != null && !pendingCheckpoint.isDone()) {
+                if (!wait) return;
+                awaitPending();
+            }
+            long t0 = System.nanoTime();
+            long seq = Journal.lastSeq();
+            SnapshotCodec.Manifest current = manifest;
+            UserStore store = users instanceof UserStore ? (UserStore) users : null;
+            boolean all = current == null || current.userChecks == null || rewriteAll || store == null;
+            rewriteAll = false;
+            int userShards = current != null ? current.userShards.length : store != null ? store.shards() : SHARDS;
+            int groupShards = current != null ? current.groupShards.length : SHARDS;
+            Map<Integer, ByteBuffer> userBytes;
+            try {
+                userBytes = store != null ? store.encodeShards(seq, all) : SnapshotCodec.encodeUserShards(users.values(), seq, userShards);
+            } catch (IOException e) {
+                System.out.println("Failed to capture users snapshot: " + e.getMessage());
+                rewriteAll = true;
+                return;
+            }
+            Map<Integer, ByteBuffer> groupBytes = encodeGroupShards(seq, groupShards, all);
+            if (current != null && userBytes.isEmpty() && groupBytes.isEmpty() && seq == current.seq) {
+                if (wait) System.out.println("No changes to save.");
+                return;
+            }
+            long generation = (current == null ? 0 : current.generation) + 1;
+            String[] userFiles = current == null ? new String[userShards] : current.userShards.clone();
+            String[] groupFiles = current == null ? new String[groupShards] : current.groupShards.clone();
+            for (int s : userBytes.keySet()) userFiles[s] = shardFile("users", s, generation);
+            for (int s : groupBytes.keySet()) groupFiles[s] = shardFile("groups", s, generation);
+            long[] userChecks = current != null && current.userChecks != null ? current.userChecks.clone() : new long[userShards];
+            long[] groupChecks = current != null && current.groupChecks != null ? current.groupChecks.clone() : new long[groupShards];
+            SnapshotCodec.Manifest next = new SnapshotCodec.Manifest(seq, generation, userFiles, groupFiles, userChecks, groupChecks);
+            Journal.rotate();
+            Metrics.CAPTURE.recordSince(t0);
+            pendingCheckpoint = compactor.submit(() -> {
+                long t1 = System.nanoTime();
+                Path dir = Paths.get(DATA_DIR).toAbsolutePath();
+                Map<Integer, Path> written = new HashMap<>();
+                for (Map.Entry<Integer, ByteBuffer> e : userBytes.entrySet()) userChecks[e.getKey()] = SnapshotCodec.Manifest.check(e.getValue());
+                for (Map.Entry<Integer, ByteBuffer> e : groupBytes.entrySet()) groupChecks[e.getKey()] = SnapshotCodec.Manifest.check(e.getValue());
+                boolean ok = writeShards(dir, userBytes, userFiles, written) & writeShards(dir, groupBytes, groupFiles, null);
+                crashPoint("shards");
+                // MANIFEST.prev is rewritten first, so the checkpoint being replaced stays loadable whatever happens next
+                ok = ok && (current == null || writeSnapshot(current.encode(), dir.resolve(PREVIOUS_MANIFEST_FILE), "previous manifest"));
+                crashPoint("previous");
+                ok = ok && writeSnapshot(next.encode(), dir.resolve(MANIFEST_FILE), "manifest");
+                crashPoint("manifest");
+                Metrics.SNAPSHOT_WRITE.recordSince(t1);
+                long bytes = 0;
+                for (ByteBuffer b : userBytes.values()) bytes += b.remaining();
+                for (ByteBuffer b : groupBytes.values()) bytes += b.remaining();
+                Metrics.SNAPSHOT_BYTES.add(bytes);
+                if (!ok) {
+                    rewriteAll = true;
+                    deleteShards(dir, next, current, previous);
+                    return;
+                }
+                SnapshotCodec.Manifest superseded = previous;
+                manifest = next;
+                previous = current;
+                if (store != null) {
+                    try {
+                        store.rebase(written);
+                    } catch (IOException e) {
+                        System.out.println("Failed to remap user shards: " + e.getMessage());
+                    }
+                }
+                if (current != null) Journal.discardThrough(current.seq);
+                if (superseded != null) deleteShards(dir, superseded, next, current);
+                if (wait) System.out.println("Saved " + userBytes.size() + " user and " + groupBytes.size() + " group shard(s) to " + dir);
+            });
+            if (wait) awaitPending();
+        }
+
+        private static Map<Integer, ByteBuffer> encodeGroupShards(long seq, int shards, boolean all) {
+            boolean[] changed = new boolean[shards];
+            boolean any = all;
+            for (Group g : groups.values()) {
+                if (!all && g.isDirty()) changed[SnapshotCodec.shardOf(g.getGroupName(), shards)] = any = true;
+            }
+            Map<Integer, ByteBuffer> out = new TreeMap<>();
+            if (!any) return out;
+            List<List<Group>> parts = SnapshotCodec.partition(groups.values(), shards, Group::getGroupName);
+            for (int s = 0; s < shards; s++) {
+                if (!all && !changed[s]) continue;
+                out.put(s, SnapshotCodec.encodeGroups(parts.get(s), seq));
+                for (Group g : parts.get(s)) g.clearDirty();
+            }
+            return out;
+        }
+
+        private static String shardFile(String kind, int shard, long generation) {
+            return String.format("%s-%03d.%d.bin", kind, shard, generation);
+        }
+
+        private static boolean writeShards(Path dir, Map<Integer, ByteBuffer> shards, String[] files, Map<Integer, Path> written) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                System.out.println("Failed to create " + dir + ": " + e.getMessage());
+                return false;
+            }
+            for (Map.Entry<Integer, ByteBuffer> e : shards.entrySet()) {
+                Path path = dir.resolve(files[e.getKey()]);
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer buf = e.getValue().duplicate();
+                    while (buf.hasRemaining()) ch.write(buf);
+                    if (FSYNC) ch.force(false);
+                } catch (IOException ex) {
+                    System.out.println("Failed to write shard " + path + ": " + ex.getMessage());
+                    return false;
+                }
+                if (written != null) written.put(e.getKey(), path);
+            }
+            return true;
+        }
+
+        // Deletes the shard files named by from that neither keep nor alsoKeep names.
+        private static void deleteShards(Path dir, SnapshotCodec.Manifest from, SnapshotCodec.Manifest keep, SnapshotCodec.Manifest alsoKeep) {
+            Set<String> kept = new HashSet<>();
+            if (keep != null) kept.addAll(keep.files());
+            if (alsoKeep != null) kept.addAll(alsoKeep.files());
+            for (String f : from.files()) {
+                if (kept.contains(f)) continue;
+                try {
+                    Files.deleteIfExists(dir.resolve(f));
+                } catch (IOException e) {
+                    System.out.println("Failed to delete superseded shard " + f + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Makes renames and new files in dir durable. Not every platform can open a directory; there the
+        // rename itself is all that can be done.
+        static void syncDirectory(Path dir) {
+            if (!FSYNC) return;
+            try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException e) {
+                // not supported here
+            }
+        }
+
+        // -Dstudystreak.crashAt=<point> halts the process at that point of a checkpoint or journal append, as
+        // a power cut would, so recovery can be exercised from outside.
+        static void crashPoint(String point) {
+            if (CRASH_AT.equals(point)) Runtime.getRuntime().halt(137);
+        }
+
+        private static void awaitPending() {
+            try {
+                pendingCheckpoint.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.out.println("Checkpoint failed: " + e.getCause());
+            }
+        }
+
+        private static boolean writeSnapshot(ByteBuffer data, Path path, String label) {
+            Path tmp = Paths.get(path + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = data.duplicate();
+                while (buf.hasRemaining()) ch.write(buf);
+                if (FSYNC) ch.force(false);
+            } catch (Exception e) {
+                System.out.println("Failed to write " + label + " temp file " + tmp + ": " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+            try {
+                try {
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                syncDirectory(path.getParent());
+                return true;
+            } catch (Exception e) {
+                System.out.println("Failed to move " + tmp + " to " + path + ": " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // Reads users.dat/groups.dat written by the Serializable model. The stream's class names are mapped onto
+    // stand-ins with the same serial form, which are then converted into the current model.
+    static class LegacyFormat {
+        static class LegacyUser implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private String username;
+            private String passwordHash;
+            private Map<String, Boolean> groupAdminMap;
+            private Map<String, LegacyUserGroupStatus> groupStatuses;
+        }
+
+        static class LegacyUserGroupStatus implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private String groupName;
+            private int todayHours;
+            private boolean hasLoggedToday;
+            private int consecutiveFailures;
+            private LocalDate lastLogDate;
+        }
+
+        static class LegacyGroup implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private String groupName;
+            private int targetHours;
+            private int streakCount;
+            private String adminUsername;
+            private List<String> members;
+            private List<String> joinRequests;
+            private LocalDate lastUpdatedDate;
+        }
+
+        static class Input extends ObjectInputStream {
+            Input(InputStream in) throws IOException {
+                super(in);
+            }
+
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass desc = super.readClassDescriptor();
+                switch (desc.getName()) {
+                    case "StudyStreak$User": return ObjectStreamClass.lookup(LegacyUser.class);
+                    case "StudyStreak$UserGroupStatus": return ObjectStreamClass.lookup(LegacyUserGroupStatus.class);
+                    case "StudyStreak$Group": return ObjectStreamClass.lookup(LegacyGroup.class);
+                    default: return desc;
+                }
+            }
+        }
+
+        static Map<String, User> toUsers(Map<?, ?> legacy) {
+            Map<String, User> out = new HashMap<>();
+            for (Object o : legacy.values()) {
+                LegacyUser lu = (LegacyUser) o;
+                User u = new User(lu.username, lu.passwordHash);
+                if (lu.groupStatuses != null) {
+                    for (LegacyUserGroupStatus ls : lu.groupStatuses.values()) {
+                        u.joinGroupDirect(ls.groupName);
+                        UserGroupStatus s = u.getStatus(ls.groupName);
+                        s.setTodayHours(ls.todayHours);
+                        s.setHasLoggedToday(ls.hasLoggedToday);
+                        s.setConsecutiveFailures(ls.consecutiveFailures);
+                        s.setLastLogDate(ls.lastLogDate);
+                    }
+                }
+                if (lu.groupAdminMap != null) {
+                    for (Map.Entry<String, Boolean> e : lu.groupAdminMap.entrySet()) u.setAdminForGroup(e.getKey(), e.getValue());
+                }
+                out.put(u.getUsername(), u);
+            }
+            return out;
+        }
+
+        static Map<String, Group> toGroups(Map<?, ?> legacy) {
+            Map<String, Group> out = new HashMap<>();
+            for (Object o : legacy.values()) {
+                LegacyGroup lg = (LegacyGroup) o;
+                Group g = new Group(lg.groupName, lg.adminUsername, lg.targetHours);
+                g.setStreakCount(lg.streakCount);
+                g.setLastUpdatedDate(lg.lastUpdatedDate);
+                if (lg.members != null) for (String m : lg.members) g.addMember(m);
+                if (lg.joinRequests != null) for (String r : lg.joinRequests) g.addJoinRequestDirect(r);
+                out.put(g.getGroupName(), g);
+            }
+            return out;
+        }
+    }
+
+    static class UserStore extends AbstractMap<String, User> {
+        private static final String OVERFLOW_PREFIX = "users." + ProcessHandle.current().pid() + ".";
+        private static final AtomicInteger overflows = new AtomicInteger();
+        private final int capacity;
+        private final Path dir;
+        private FileChannel overflow;
+        private final SnapshotCodec.StringTable groupTable = new SnapshotCodec.StringTable();
+        private final LinkedHashMap<String, User> cache;
+        private final Map<String, LiveRef> live = new HashMap<>();
+        private final ReferenceQueue<User> collected = new ReferenceQueue<>();
+        private final Map<String, User> dirty = new ConcurrentHashMap<>();
+        private final Map<String, Long> overflowIndex = new HashMap<>();
+        private final Set<String> newKeys = new LinkedHashSet<>();
+        private final SnapshotCodec.Out scratch = new SnapshotCodec.Out(256);
+        private final SnapshotCodec.UserFile[] bases;
+        private int baseCount = 0;
+        private long overflowEnd = 0;
+        private long checkpointMark = 0;
+        private Set<String> checkpointNewKeys = Collections.emptySet();
+        private int scans = 0;
+
+        private static class LiveRef extends WeakReference<User> {
+            final String key;
+            LiveRef(String key, User u, ReferenceQueue<User> q) { super(u, q); this.key = key; }
+        }
+
+        private UserStore(SnapshotCodec.UserFile[] bases, Path dir, int capacity) throws IOException {
+            this.bases = bases;
+            this.dir = dir;
+            this.capacity = capacity;
+            List<String> longest = Collections.emptyList();
+            for (SnapshotCodec.UserFile f : bases) {
+                if (f == null) continue;
+                baseCount += f.count;
+                if (f.groupTable.size() > longest.size()) longest = f.groupTable;
+            }
+            for (String g : longest) groupTable.id(g);
+            overflow = openOverflow(dir);
+            cache = new LinkedHashMap<String, User>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+                    if (size() <= UserStore.this.capacity) return false;
+                    if (eldest.getValue().isDirty()) writeBack(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        // Without a manifest the store starts empty with the given number of shards. Every store spills to its
+        // own overflow file named for the process; those left by earlier processes are deleted, which is safe
+        // because StorageManager holds data/LOCK.
+        static UserStore open(Path dir, SnapshotCodec.Manifest manifest, int shards) throws IOException {
+            SnapshotCodec.UserFile[] bases = new SnapshotCodec.UserFile[manifest == null ? shards : manifest.userShards.length];
+            for (int s = 0; manifest != null && s < bases.length; s++) {
+                bases[s] = SnapshotCodec.UserFile.map(dir.resolve(manifest.userShards[s]));
+            }
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "users*.overflow")) {
+                for (Path p : ds) {
+                    if (!p.getFileName().toString().startsWith(OVERFLOW_PREFIX)) Files.deleteIfExists(p);
+                }
+            }
+            return new UserStore(bases, dir, USER_CACHE_SIZE);
+        }
+
+        private static FileChannel openOverflow(Path dir) throws IOException {
+            return FileChannel.open(dir.resolve(OVERFLOW_PREFIX + overflows.incrementAndGet() + ".overflow"), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        int shards() {
+            return bases.length;
+        }
+
+        private SnapshotCodec.UserFile baseOf(String name) {
+            return bases[SnapshotCodec.shardOf(name, bases.length)];
+        }
+
+        @Override
+        public synchronized User get(Object key) {
+            if (!(key instanceof String)) return null;
+            String name = (String) key;
+            User u = cache.get(name);
+            if (u != null) return u;
+            expungeCollected();
+            LiveRef ref = live.get(name);
+            u = ref == null ? null : ref.get();
+            if (u == null) {
+                u = load(name);
+                if (u == null) return null;
+                u.attachStore(this);
+                live.put(name, new LiveRef(name, u, collected));
+            }
+            cache.put(name, u);
+            return u;
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            if (!(key instanceof String)) return false;
+            String name = (String) key;
+            SnapshotCodec.UserFile base = baseOf(name);
+            return cache.containsKey(name) || overflowIndex.containsKey(name) || newKeys.contains(name)
+                    || (base != null && base.find(name) >= 0);
+        }
+
+        @Override
+        public synchronized User put(String name, User u) {
+            SnapshotCodec.UserFile base = baseOf(name);
+            if (!newKeys.contains(name) && !overflowIndex.containsKey(name) && (base == null || base.find(name) < 0)) {
+                newKeys.add(name);
+            }
+            u.attachStore(this);
+            live.put(name, new LiveRef(name, u, collected));
+            cache.put(name, u);
+            u.markDirty();
+            return null;
+        }
+
+        @Override
+        public synchronized int size() {
+            return baseCount + newKeys.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, User>> entrySet() {
+            return new AbstractSet<Map.Entry<String, User>>() {
+                @Override
+                public int size() { return UserStore.this.size(); }
+
+                @Override
+                public Iterator<Map.Entry<String, User>> iterator() {
+                    Iterator<String> keys = keyIterator();
+                    return new Iterator<Map.Entry<String, User>>() {
+                        public boolean hasNext() { return keys.hasNext(); }
+                        public Map.Entry<String, User> next() {
+                            String k = keys.next();
+                            return new AbstractMap.SimpleImmutableEntry<>(k, get(k));
+                        }
+                    };
+                }
+            };
+        }
+
+        private synchronized Iterator<String> keyIterator() {
+            SnapshotCodec.UserFile[] files = bases.clone();
+            List<String> added = new ArrayList<>(newKeys);
+            return new Iterator<String>() {
+                int shard = -1;
+                SnapshotCodec.UserFile file = null;
+                int i = 0;
+                int off = 0;
+                Iterator<String> tail = added.iterator();
+
+                public boolean hasNext() {
+                    while (file == null || i >= file.count) {
+                        if (++shard >= files.length) return tail.hasNext();
+                        file = files[shard];
+                        i = 0;
+                        off = file == null ? 0 : file.firstRecord();
+                    }
+                    return true;
+                }
+
+                public String next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    if (shard >= files.length) return tail.next();
+                    String name = file.nameAt(off);
+                    off = file.nextRecord(off);
+                    i++;
+                    return name;
+                }
+            };
+        }
+
+        void noteDirty(User u) {
+            dirty.put(u.getUsername(), u);
+        }
+
+        // Detached copies of every user, decoded one at a time from the mapped shards and the overflow file with
+        // the shards read in parallel, so only the users in flight are on the heap. Dirty users are spilled
+        // first; changes made after the call are not seen. The overflow file is not compacted until every shard
+        // has been read or the stream is closed.
+        synchronized Stream<User> scan() {
+            for (User u : new ArrayList<>(dirty.values())) writeBack(u);
+            SnapshotCodec.UserFile[] files = bases.clone();
+            Map<String, Long> spilled = new HashMap<>(overflowIndex);
+            List<List<String>> added = SnapshotCodec.partition(newKeys, files.length, name -> name);
+            List<String> groupNames = new ArrayList<>(groupTable.strings);
+            FileChannel from = overflow;
+            AtomicInteger unread = new AtomicInteger(files.length);
+            Runnable release = () -> {
+                synchronized (this) {
+                    scans--;
+                }
+            };
+            scans++;
+            return IntStream.range(0, files.length).parallel().boxed()
+                    .flatMap(s -> StreamSupport.stream(new ShardSpliterator(files[s], added.get(s), spilled, groupNames, from, () -> {
+                        if (unread.decrementAndGet() == 0) release.run();
+                    }), false))
+                    .onClose(() -> {
+                        if (unread.getAndSet(-1) > 0) release.run();
+                    });
+        }
+
+        private static class ShardSpliterator extends Spliterators.AbstractSpliterator<User> {
+            private final SnapshotCodec.UserFile file;
+            private final Iterator<String> added;
+            private final Map<String, Long> spilled;
+            private final List<String> groupNames;
+            private final FileChannel overflow;
+            private Runnable done;
+            private int i = 0;
+            private int off;
+
+            ShardSpliterator(SnapshotCodec.UserFile file, List<String> added, Map<String, Long> spilled, List<String> groupNames,
+                    FileChannel overflow, Runnable done) {
+                super((file == null ? 0 : file.count) + added.size(), Spliterator.NONNULL | Spliterator.SIZED);
+                this.file = file;
+                this.added = added.iterator();
+                this.spilled = spilled;
+                this.groupNames = groupNames;
+                this.overflow = overflow;
+                this.done = done;
+                off = file == null ? 0 : file.firstRecord();
+            }
+
+            @Override
+            public boolean tryAdvance(java.util.function.Consumer<? super User> action) {
+                try {
+                    ByteBuffer payload;
+                    if (file != null && i < file.count) {
+                        Long at = spilled.get(file.nameAt(off));
+                        payload = at != null ? readOverflow(overflow, at) : file.payloadAt(off);
+                        off = file.nextRecord(off);
+                        i++;
+                    } else if (added.hasNext()) {
+                        payload = readOverflow(overflow, spilled.get(added.next()));
+                    } else {
+                        if (done != null) done.run();
+                        done = null;
+                        return false;
+                    }
+                    action.accept(SnapshotCodec.readUserPayload(payload, groupNames));
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read a user shard", e);
+                }
+            }
+        }
+
+        // Captures the shards holding users changed since the last checkpoint, or every shard when all is set.
+        // Dirty users are spilled first, so each record is copied as raw bytes from the overflow file or its shard.
+        synchronized Map<Integer, ByteBuffer> encodeShards(long seq, boolean all) throws IOException {
+            for (User u : new ArrayList<>(dirty.values())) writeBack(u);
+            checkpointMark = overflowEnd;
+            checkpointNewKeys = new HashSet<>(newKeys);
+            boolean[] changed = new boolean[bases.length];
+            for (String name : overflowIndex.keySet()) changed[SnapshotCodec.shardOf(name, bases.length)] = true;
+            List<List<String>> added = SnapshotCodec.partition(newKeys, bases.length, name -> name);
+            Map<Integer, ByteBuffer> out = new TreeMap<>();
+            for (int s = 0; s < bases.length; s++) {
+                if (!all && !changed[s]) continue;
+                SnapshotCodec.UserFile base = bases[s];
+                SnapshotCodec.UserFileWriter w = new SnapshotCodec.UserFileWriter(
+                        (base == null ? 0 : base.buf.capacity()) + added.get(s).size() * 96);
+                if (base != null) {
+                    int off = base.firstRecord();
+                    for (int i = 0; i < base.count; i++, off = base.nextRecord(off)) {
+                        String name = base.nameAt(off);
+                        Long spilled = overflowIndex.get(name);
+                        w.addRaw(name, spilled != null ? readOverflow(overflow, spilled) : base.payloadAt(off));
+                    }
+                }
+                for (String name : added.get(s)) w.addRaw(name, readOverflow(overflow, overflowIndex.get(name)));
+                out.put(s, w.finish(seq, groupTable.strings));
+            }
+            return out;
+        }
+
+        // Called once the shards from encodeShards are current; spills made after the capture stay authoritative.
+        synchronized void rebase(Map<Integer, Path> files) throws IOException {
+            for (Map.Entry<Integer, Path> e : files.entrySet()) {
+                SnapshotCodec.UserFile old = bases[e.getKey()];
+                SnapshotCodec.UserFile now = SnapshotCodec.UserFile.map(e.getValue());
+                baseCount += now.count - (old == null ? 0 : old.count);
+                bases[e.getKey()] = now;
+            }
+            overflowIndex.values().removeIf(o -> o < checkpointMark);
+            newKeys.removeAll(checkpointNewKeys);
+            checkpointNewKeys = Collections.emptySet();
+            compactOverflow();
+        }
+
+        // Everything spilled before the checkpoint mark is in the shards now, so the overflow file is emptied,
+        // or, when users were spilled while the shards were written, those records move to a fresh file. Left
+        // alone while a scan may still read at the old offsets; the next checkpoint catches up.
+        private void compactOverflow() throws IOException {
+            if (scans > 0 || overflowEnd == 0) return;
+            checkpointMark = 0;
+            if (overflowIndex.isEmpty()) {
+                overflow.truncate(0);
+                overflowEnd = 0;
+                return;
+            }
+            FileChannel fresh = openOverflow(dir);
+            Map<String, Long> moved = new HashMap<>();
+            long end = 0;
+            try {
+                for (Map.Entry<String, Long> e : overflowIndex.entrySet()) {
+                    ByteBuffer payload = readOverflow(overflow, e.getValue());
+                    ByteBuffer record = ByteBuffer.allocate(4 + payload.remaining()).putInt(payload.remaining()).put(payload).flip();
+                    moved.put(e.getKey(), end);
+                    while (record.hasRemaining()) end += fresh.write(record, end);
+                }
+            } catch (IOException e) {
+                fresh.close();
+                throw e;
+            }
+            overflow.close();
+            overflow = fresh;
+            overflowEnd = end;
+            overflowIndex.putAll(moved);
+        }
+
+        private User load(String name) {
+            try {
+                Long spilled = overflowIndex.get(name);
+                if (spilled != null) return SnapshotCodec.readUserPayload(readOverflow(overflow, spilled), groupTable.strings);
+                SnapshotCodec.UserFile base = baseOf(name);
+                if (base == null) return null;
+                int off = base.find(name);
+                return off < 0 ? null : SnapshotCodec.readUserPayload(base.payloadAt(off), groupTable.strings);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load user " + name, e);
+            }
+        }
+
+        private void writeBack(User u) {
+            synchronized (u) {
+                scratch.buf.clear();
+                scratch.buf.putInt(0);
+                SnapshotCodec.writeUserPayload(scratch, u, groupTable);
+                ByteBuffer b = scratch.buf.flip();
+                b.putInt(0, b.remaining() - 4);
+                try {
+                    long at = overflowEnd;
+                    while (b.hasRemaining()) overflowEnd += overflow.write(b, overflowEnd);
+                    overflowIndex.put(u.getUsername(), at);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to spill user " + u.getUsername(), e);
+                }
+                u.clearDirty();
+                dirty.remove(u.getUsername());
+            }
+        }
+
+        private static ByteBuffer readOverflow(FileChannel overflow, long at) throws IOException {
+            ByteBuffer len = ByteBuffer.allocate(4);
+            while (len.hasRemaining()) {
+                if (overflow.read(len, at + len.position()) < 0) throw new EOFException("Truncated overflow record at " + at);
+            }
+            ByteBuffer payload = ByteBuffer.allocate(len.getInt(0));
+            while (payload.hasRemaining()) {
+                if (overflow.read(payload, at + 4 + payload.position()) < 0) throw new EOFException("Truncated overflow record at " + at);
+            }
+            return payload.flip();
+        }
+
+        private void expungeCollected() {
+            for (Reference<? extends User> r; (r = collected.poll()) != null; ) {
+                LiveRef ref = (LiveRef) r;
+                live.remove(ref.key, ref);
+            }
+        }
+    }
+
+    static class Journal {
+        static final byte REGISTER = 1;
+        static final byte CREATE_GROUP = 2;
+        static final byte JOIN_REQUEST = 3;
+        static final byte APPROVE = 4;
+        static final byte REJECT = 5;
+        static final byte LOG_HOURS = 6;
+        static final byte ROLLOVER = 7;
+        static final byte REHASH = 8;
+        static final byte SCHEDULE = 9;
+
+        private static final int MAX_RECORD_BYTES = 1 << 20;
+
+        private static FileOutputStream file;
+        private static DataOutputStream out;
+        private static final ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        private static final DataOutputStream recordOut = new DataOutputStream(record);
+        private static final CRC32 crc = new CRC32();
+        private static long lastSeq = 0;
+        private static int sinceRotation = 0;
+        private static final List<Path> damaged = new ArrayList<>();
+
+        static synchronized long lastSeq() { return lastSeq; }
+        static synchronized int recordsSinceRotation() { return sinceRotation; }
+
+        static final class Entry {
+            final byte type;
+            final String a;
+            final String b;
+            final int n;
+
+            Entry(byte type, String a, String b, int n) {
+                this.type = type;
+                this.a = a;
+                this.b = b;
+                this.n = n;
+            }
+        }
+
+        static synchronized void append(LocalDate day, byte type, String a, String b, int n) throws IOException {
+            long t0 = System.nanoTime();
+            write(day, type, a, b, n);
+            sync();
+            Metrics.JOURNAL_APPEND.recordSince(t0);
+        }
+
+        // Writes all records with a single flush and fsync.
+        static synchronized void appendAll(LocalDate day, List<Entry> entries) throws IOException {
+            long t0 = System.nanoTime();
+            for (Entry e : entries) write(day, e.type, e.a, e.b, e.n);
+            sync();
+            Metrics.JOURNAL_APPEND.recordSince(t0);
+        }
+
+        // A record is its length and CRC32 followed by seq, type, day, a, b and n.
+        private static void write(LocalDate day, byte type, String a, String b, int n) throws IOException {
+            if (out == null) {
+                file = new FileOutputStream(JOURNAL_FILE, true);
+                out = new DataOutputStream(new BufferedOutputStream(file));
+            }
+            record.reset();
+            recordOut.writeLong(lastSeq + 1);
+            recordOut.writeByte(type);
+            recordOut.writeInt((int) day.toEpochDay());
+            recordOut.writeUTF(a == null ? "" : a);
+            recordOut.writeUTF(b == null ? "" : b);
+            recordOut.writeInt(n);
+            byte[] bytes = record.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+            lastSeq++;
+            sinceRotation++;
+        }
+
+        // An operation is acknowledged only once its record is on disk.
+        private static void sync() throws IOException {
+            out.flush();
+            if (StorageManager.FSYNC) file.getChannel().force(false);
+            StorageManager.crashPoint("journal");
+        }
+
+        // Seals the active journal as journal.<lastSeq>.log so a checkpoint covering lastSeq can drop it later.
+        static synchronized void rotate() {
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                    file = null;
+                }
+                Path active = Paths.get(JOURNAL_FILE);
+                if (Files.exists(active)) {
+                    if (Files.size(active) == 0) {
+                        Files.delete(active);
+                    } else {
+                        Files.move(active, segmentPath(lastSeq), StandardCopyOption.REPLACE_EXISTING);
+                        StorageManager.syncDirectory(active.toAbsolutePath().getParent());
+                    }
+                }
+                sinceRotation = 0;
+            } catch (IOException e) {
+                System.out.println("Failed to rotate journal: " + e.getMessage());
+            }
+        }
+
+        static void discardThrough(long seq) {
+            for (Path p : sealedSegments()) {
+                if (segmentSeq(p) <= seq) {
+                    try {
+                        Files.deleteIfExists(p);
+                    } catch (IOException e) {
+                        System.out.println("Failed to delete journal segment " + p + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Replay stops at the first record that fails its checksum or does not follow the one before it; the
+        // segment holding it and every later one are listed in damaged, and records past that point are ignored.
+        static int replay(long afterSeq) {
+            List<Path> files = sealedSegments();
+            if (Files.exists(Paths.get(JOURNAL_FILE))) files.add(Paths.get(JOURNAL_FILE));
+            LocalDate sessionDate = currentDate;
+            int applied = 0;
+            long maxSeq = afterSeq;
+            ActivityLogger.setMuted(true);
+            Events.setMuted(true);
+            try {
+                segments:
+                for (int i = 0; i < files.size(); i++) {
+                    Path p = files.get(i);
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                        while (true) {
+                            DataInputStream r = nextRecord(in);
+                            long seq = r == null ? -1 : r.readLong();
+                            if (r == null || (seq > afterSeq && seq != maxSeq + 1)) {
+                                System.out.println("Journal " + p + (r == null ? " has a damaged record" : " is missing records "
+                                        + (maxSeq + 1) + " to " + (seq - 1)) + "; replay stops after record " + maxSeq + ".");
+                                synchronized (Journal.class) {
+                                    damaged.addAll(files.subList(i, files.size()));
+                                }
+                                break segments;
+                            }
+                            byte type = r.readByte();
+                            LocalDate day = LocalDate.ofEpochDay(r.readInt());
+                            String a = r.readUTF();
+                            String b = r.readUTF();
+                            int n = r.readInt();
+                            if (seq <= afterSeq) continue;
+                            maxSeq = seq;
+                            currentDate = day;
+                            try {
+                                apply(type, a, b, n);
+                                applied++;
+                            } catch (Exception e) {
+                                System.out.println("Skipping journal record " + seq + ": " + e.getMessage());
+                            }
+                        }
+                    } catch (EOFException endOfSegment) {
+                        // a torn trailing record is simply the end of what was committed
+                    } catch (IOException e) {
+                        System.out.println("Failed to read journal segment " + p + ": " + e.getMessage());
+                    }
+                }
+            } finally {
+                ActivityLogger.setMuted(false);
+                Events.setMuted(false);
+                currentDate = sessionDate;
+            }
+            synchronized (Journal.class) {
+                lastSeq = maxSeq;
+                // the active journal is sealed under the last applied sequence number just below
+                damaged.replaceAll(p -> p.equals(Paths.get(JOURNAL_FILE)) ? segmentPath(lastSeq) : p);
+            }
+            rotate();
+            return applied;
+        }
+
+        // Returns a stream over the next record's fields, or null if the record fails its checksum. Records
+        // from before checksums have no frame; they start with the high half of their seq, which is zero.
+        private static DataInputStream nextRecord(DataInputStream in) throws IOException {
+            in.mark(4);
+            int length = in.readInt();
+            if (length == 0) {
+                in.reset();
+                return in;
+            }
+            int expected = in.readInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != expected) return null;
+            return new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        static synchronized boolean damaged() {
+            return !damaged.isEmpty();
+        }
+
+        // Called once a checkpoint covers everything replayed: the damaged segments are renamed so that they
+        // no longer stand between that checkpoint and the records written after it.
+        static synchronized void setAsideDamaged() {
+            for (Path p : damaged) {
+                if (!Files.exists(p)) continue;
+                Path aside = Paths.get(p + ".damaged");
+                try {
+                    Files.move(p, aside, StandardCopyOption.REPLACE_EXISTING);
+                    System.out.println("Moved " + p + " aside to " + aside + ".");
+                } catch (IOException e) {
+                    System.out.println("Failed to move damaged journal " + p + " aside: " + e.getMessage());
+                }
+            }
+            damaged.clear();
+        }
+
+        private static void apply(byte type, String a, String b, int n) throws Exception {
+            switch (type) {
+                case REGISTER: registerUser(a, b); break;
+                case CREATE_GROUP: createGroup(requireUser(a), b, n); break;
+                case JOIN_REQUEST: requireGroup(b).addJoinRequest(a); break;
+                case APPROVE: approveJoin(requireGroup(b), a, users.get(a)); break;
+                case REJECT: requireGroup(b).rejectRequest(a); break;
+                case LOG_HOURS: logHours(requireUser(a), requireGroup(b), n); break;
+                case ROLLOVER: rollover(a, LocalDate.ofEpochDay(n)); break;
+                case REHASH: requireUser(a).setPasswordHash(b); break;
+                case SCHEDULE: {
+                    String[] zoneAndCutoff = b.split(" ");
+                    Group g = requireGroup(a);
+                    g.setSchedule(ZoneId.of(zoneAndCutoff[0]), LocalTime.parse(zoneAndCutoff[1]));
+                    g.setLastUpdatedDate(LocalDate.ofEpochDay(n).minusDays(1));
+                    break;
+                }
+                default: throw new IOException("Unknown journal record type " + type);
+            }
+        }
+
+        // Records from before per-group rollover name no group and closed the record's day for every group.
+        private static void rollover(String gname, LocalDate day) throws GroupNotFoundException {
+            if (gname.isEmpty()) {
+                EvaluationEngine.catchUp(new ArrayList<>(groups.values()), g -> currentDate, false);
+            } else {
+                EvaluationEngine.catchUp(Collections.singletonList(requireGroup(gname)), g -> day, false);
+            }
+        }
+
+        private static User requireUser(String uname) throws InvalidLoginException {
+            User u = users.get(uname);
+            if (u == null) throw new InvalidLoginException("User not found: " + uname);
+            return u;
+        }
+
+        private static Group requireGroup(String gname) throws GroupNotFoundException {
+            Group g = groups.get(gname);
+            if (g == null) throw new GroupNotFoundException("Group not found: " + gname);
+            return g;
+        }
+
+        private static Path segmentPath(long seq) {
+            return Paths.get(JOURNAL_FILE.replace(".log", "." + seq + ".log"));
+        }
+
+        private static long segmentSeq(Path p) {
+            String name = p.getFileName().toString();
+            return Long.parseLong(name.substring(name.indexOf('.') + 1, name.lastIndexOf('.')));
+        }
+
+        private static List<Path> sealedSegments() {
+            List<Path> segments = new ArrayList<>();
+            String prefix = JOURNAL_FILE.substring(0, JOURNAL_FILE.indexOf('.') + 1);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get("."), prefix + "*.log")) {
+                for (Path p : ds) {
+                    String mid = p.getFileName().toString();
+                    mid = mid.substring(prefix.length(), mid.length() - ".log".length());
+                    if (!mid.isEmpty() && mid.chars().allMatch(Character::isDigit)) segments.add(p);
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to list journal segments: " + e.getMessage());
+            }
+            segments.sort(Comparator.comparingLong(Journal::segmentSeq));
+            return segments;
+        }
+    }
+
+    static class SnapshotCodec {
+        static final int MAGIC = 0x53534442; // "SSDB"
+        static final short VERSION = 1;
+        static final short USERS_VERSION = 2;
+        static final short GROUPS_VERSION = 3;
+        static final byte KIND_USERS = 1;
+        static final byte KIND_GROUPS = 2;
+        private static final int NO_DATE = Integer.MIN_VALUE;
+        private static final int USERS_HEADER_BYTES = 35;
+
+        static class Snapshot<T> {
+            final T data;
+            final long seq;
+            Snapshot(T data, long seq) { this.data = data; this.seq = seq; }
+        }
+
+        // Shard files share one group-name table that only grows, so every shard's table is a prefix of the longest.
+        static Map<Integer, ByteBuffer> encodeUserShards(Collection<User> users, long seq, int shards) {
+            StringTable table = new StringTable();
+            Map<Integer, ByteBuffer> out = new TreeMap<>();
+            List<List<User>> parts = partition(users, shards, User::getUsername);
+            for (int s = 0; s < shards; s++) {
+                UserFileWriter w = new UserFileWriter(64 + parts.get(s).size() * 96);
+                for (User u : parts.get(s)) w.add(u, table);
+                out.put(s, w.finish(seq, table.strings));
+            }
+            return out;
+        }
+
+        static <T> List<List<T>> partition(Collection<T> items, int shards, java.util.function.Function<T, String> name) {
+            List<List<T>> parts = new ArrayList<>(shards);
+            for (int s = 0; s < shards; s++) parts.add(new ArrayList<>());
+            for (T item : items) parts.get(shardOf(name.apply(item), shards)).add(item);
+            return parts;
+        }
+
+        // Takes the high bits of a multiplicative hash, so names within one shard still spread over its index slots.
+        static int shardOf(String name, int shards) {
+            int h = name.hashCode() * 0x9E3779B9;
+            return (int) (((h & 0xffffffffL) * shards) >>> 32);
+        }
+
+        static ByteBuffer encodeGroups(Collection<Group> groups, long seq) {
+            StringTable table = new StringTable();
+            Out body = new Out(64 + groups.size() * 64);
+            body.varint(groups.size());
+            for (Group g : groups) {
+                body.varint(table.id(g.getGroupName()));
+                body.varint(g.getTargetHours());
+                body.varint(g.getStreakCount());
+                body.varint(table.id(g.getAdminUsername()));
+                body.date(g.getLastUpdatedDate());
+                body.varint(table.id(g.getZone().getId()));
+                body.varint(g.getCutoff().toSecondOfDay());
+                body.varint(g.getMembers().size());
+                for (String m : g.getMembers()) {
+                    body.varint(table.id(m));
+                    body.varint(g.expiresIn(m));
+                }
+                body.varint(g.getJoinRequests().size());
+                for (String r : g.getJoinRequests()) body.varint(table.id(r));
+            }
+            return finish(KIND_GROUPS, GROUPS_VERSION, seq, table, body);
+        }
+
+        static short peekVersion(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 7 || buf.getInt(buf.position()) != MAGIC) throw new IOException("Not a StudyStreak snapshot");
+            return buf.getShort(buf.position() + 4);
+        }
+
+        // Version 1 users files interned usernames too; they are only read now, to upgrade them.
+        static Snapshot<Map<String, User>> decodeUsersV1(ByteBuffer buf) throws IOException {
+            long seq = readHeader(buf, KIND_USERS, VERSION);
+            String[] table = readTable(buf);
+            int count = varint(buf);
+            Map<String, User> result = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                User u = new User(table[varint(buf)], string(buf));
+                readMemberships(buf, u, Arrays.asList(table));
+                result.put(u.getUsername(), u);
+            }
+            return new Snapshot<>(result, seq);
+        }
+
+        // Version 1 groups files have no timezone or cutoff; those groups get the defaults. Files before version
+        // 3 have no member expiry, so all their members are evaluated at the next rollover.
+        static Snapshot<Map<String, Group>> decodeGroups(ByteBuffer buf) throws IOException {
+            short version = peekVersion(buf);
+            long seq = readHeader(buf, KIND_GROUPS, version >= VERSION && version < GROUPS_VERSION ? version : GROUPS_VERSION);
+            String[] table = readTable(buf);
+            int count = varint(buf);
+            Map<String, Group> result = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String name = table[varint(buf)];
+                int target = varint(buf);
+                int streak = varint(buf);
+                Group g = new Group(name, table[varint(buf)], target);
+                g.setStreakCount(streak);
+                g.setLastUpdatedDate(date(buf));
+                if (version >= 2) g.setSchedule(ZoneId.of(table[varint(buf)]), LocalTime.ofSecondOfDay(varint(buf)));
+                int members = varint(buf);
+                for (int m = 0; m < members; m++) {
+                    String member = table[varint(buf)];
+                    g.addMember(member);
+                    if (version >= 3) g.setExpiresIn(member, varint(buf));
+                }
+                int requests = varint(buf);
+                for (int r = 0; r < requests; r++) g.addJoinRequestDirect(table[varint(buf)]);
+                g.clearDirty();
+                result.put(name, g);
+            }
+            return new Snapshot<>(result, seq);
+        }
+
+        static void writeUserPayload(Out out, User u, StringTable groupTable) {
+            out.string(u.getUsername());
+            out.string(u.getPasswordHash());
+            List<UserGroupStatus> statuses = u.getStatuses();
+            int admins = 0;
+            for (UserGroupStatus s : statuses) if (s.isAdmin()) admins++;
+            out.varint(admins);
+            for (UserGroupStatus s : statuses) {
+                if (!s.isAdmin()) continue;
+                out.varint(groupTable.id(s.getGroupName()));
+                out.u8(1);
+            }
+            out.varint(statuses.size());
+            for (UserGroupStatus s : statuses) {
+                out.varint(groupTable.id(s.getGroupName()));
+                out.varint(s.getTodayHours());
+                out.u8(s.isHasLoggedToday() ? 1 : 0);
+                out.varint(s.getConsecutiveFailures());
+                out.date(s.getLastLogDate());
+            }
+        }
+
+        static User readUserPayload(ByteBuffer buf, List<String> groupTable) {
+            User u = new User(string(buf), string(buf));
+            readMemberships(buf, u, groupTable);
+            return u;
+        }
+
+        // Admin entries precede the statuses on disk but only apply to groups the user is a member of.
+        private static void readMemberships(ByteBuffer buf, User u, List<String> groupTable) {
+            int admins = varint(buf);
+            String[] adminOf = new String[admins];
+            boolean[] isAdmin = new boolean[admins];
+            for (int a = 0; a < admins; a++) {
+                adminOf[a] = groupTable.get(varint(buf));
+                isAdmin[a] = buf.get() != 0;
+            }
+            int statuses = varint(buf);
+            for (int s = 0; s < statuses; s++) {
+                String g = groupTable.get(varint(buf));
+                u.joinGroupDirect(g);
+                UserGroupStatus st = u.getStatus(g);
+                st.setTodayHours(varint(buf));
+                st.setHasLoggedToday(buf.get() != 0);
+                st.setConsecutiveFailures(varint(buf));
+                st.setLastLogDate(date(buf));
+            }
+            for (int a = 0; a < admins; a++) u.setAdminForGroup(adminOf[a], isAdmin[a]);
+            u.clearDirty();
+        }
+
+        private static ByteBuffer finish(byte kind, short version, long seq, StringTable table, Out body) {
+            Out head = new Out(32 + table.bytes);
+            head.buf.putInt(MAGIC).putShort(version).put(kind).putLong(seq);
+            head.varint(table.strings.size());
+            for (String s : table.strings) head.string(s);
+            ByteBuffer all = ByteBuffer.allocate(head.buf.position() + body.buf.position());
+            all.put(head.buf.flip()).put(body.buf.flip()).flip();
+            return all;
+        }
+
+        private static long readHeader(ByteBuffer buf, byte kind, short expectedVersion) throws IOException {
+            if (buf.remaining() < 15 || buf.getInt() != MAGIC) throw new IOException("Not a StudyStreak snapshot");
+            short version = buf.getShort();
+            if (version != expectedVersion) throw new IOException("Unsupported snapshot version " + version);
+            if (buf.get() != kind) throw new IOException("Snapshot holds a different record kind");
+            return buf.getLong();
+        }
+
+        private static String[] readTable(ByteBuffer buf) {
+            String[] table = new String[varint(buf)];
+            for (int i = 0; i < table.length; i++) table[i] = string(buf);
+            return table;
+        }
+
+        static int varint(ByteBuffer buf) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        static String string(ByteBuffer buf) {
+            int len = varint(buf);
+            if (buf.hasArray()) {
+                String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+                buf.position(buf.position() + len);
+                return s;
+            }
+            byte[] b = new byte[len];
+            buf.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        static LocalDate date(ByteBuffer buf) {
+            int day = buf.getInt();
+            return day == NO_DATE ? null : LocalDate.ofEpochDay(day);
+        }
+
+        static int slot(int hash, int mask) {
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        // Users file layout (version 2): header | [varint len][record]... | group-name table | open-addressed index.
+        // Records carry their username inline so a lookup only touches the index slot and the one record.
+        static class UserFileWriter {
+            private final Out out;
+            private final Out scratch = new Out(256);
+            private int[] offsets = new int[1024];
+            private int[] hashes = new int[1024];
+            private int count = 0;
+
+            UserFileWriter(int capacity) {
+                out = new Out(Math.max(USERS_HEADER_BYTES, capacity));
+                out.buf.position(USERS_HEADER_BYTES);
+            }
+
+            void add(User u, StringTable groupTable) {
+                scratch.buf.clear();
+                writeUserPayload(scratch, u, groupTable);
+                addRaw(u.getUsername(), scratch.buf.duplicate().flip());
+            }
+
+            void addRaw(String username, ByteBuffer payload) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                offsets[count] = out.buf.position();
+                hashes[count] = username.hashCode();
+                count++;
+                out.varint(payload.remaining());
+                out.bytes(payload);
+            }
+
+            ByteBuffer finish(long seq, List<String> groupTable) {
+                int tableOffset = out.buf.position();
+                out.varint(groupTable.size());
+                for (String s : groupTable) out.string(s);
+                int slots = 16;
+                while (slots < count * 2) slots <<= 1;
+                long[] index = new long[slots];
+                for (int i = 0; i < count; i++) {
+                    int s = slot(hashes[i], slots - 1);
+                    while (index[s] != 0) s = (s + 1) & (slots - 1);
+                    index[s] = offsets[i];
+                }
+                int indexOffset = out.buf.position();
+                out.ensure(4 + slots * 8);
+                out.buf.putInt(slots);
+                for (long o : index) out.buf.putLong(o);
+                ByteBuffer b = out.buf;
+                b.putInt(0, MAGIC).putShort(4, USERS_VERSION).put(6, KIND_USERS).putLong(7, seq)
+                        .putInt(15, count).putLong(19, tableOffset).putLong(27, indexOffset);
+                b.flip();
+                return b;
+            }
+        }
+
+        static class UserFile {
+            final ByteBuffer buf;
+            final long seq;
+            final int count;
+            final List<String> groupTable;
+            private final int indexOffset;
+            private final int slots;
+
+            static UserFile map(Path path) throws IOException {
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return new UserFile(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                }
+            }
+
+            UserFile(ByteBuffer buf) throws IOException {
+                this.buf = buf;
+                ByteBuffer b = buf.duplicate();
+                seq = readHeader(b, KIND_USERS, USERS_VERSION);
+                count = b.getInt();
+                b.position((int) b.getLong());
+                indexOffset = (int) b.getLong(27);
+                groupTable = Arrays.asList(readTable(b));
+                slots = buf.getInt(indexOffset);
+            }
+
+            int firstRecord() { return USERS_HEADER_BYTES; }
+
+            int nextRecord(int off) {
+                ByteBuffer b = at(off);
+                int len = varint(b);
+                return b.position() + len;
+            }
+
+            String nameAt(int off) {
+                ByteBuffer b = at(off);
+                varint(b);
+                return string(b);
+            }
+
+            ByteBuffer payloadAt(int off) {
+                ByteBuffer b = at(off);
+                int len = varint(b);
+                b.limit(b.position() + len);
+                return b.slice();
+            }
+
+            int find(String username) {
+                byte[] key = username.getBytes(StandardCharsets.UTF_8);
+                int mask = slots - 1;
+                for (int s = slot(username.hashCode(), mask); ; s = (s + 1) & mask) {
+                    int off = (int) buf.getLong(indexOffset + 4 + s * 8);
+                    if (off == 0) return -1;
+                    if (nameEquals(off, key)) return off;
+                }
+            }
+
+            private boolean nameEquals(int off, byte[] key) {
+                ByteBuffer b = at(off);
+                varint(b);
+                if (varint(b) != key.length) return false;
+                int p = b.position();
+                for (int i = 0; i < key.length; i++) {
+                    if (buf.get(p + i) != key[i]) return false;
+                }
+                return true;
+            }
+
+            private ByteBuffer at(int off) {
+                ByteBuffer b = buf.duplicate();
+                b.position(off);
+                return b;
+            }
+        }
+
+        // data/MANIFEST names the file currently holding each user and group shard, with its length and CRC32, and
+        // the journal sequence they cover; a trailing CRC32 covers the manifest itself. Shard files are never
+        // rewritten in place: a checkpoint writes new generations of the shards it changed, and replacing the
+        // manifest is what makes them current. Version 1 manifests carry no checksums and are not validated.
+        static class Manifest {
+            static final int MAGIC = 0x53534d46; // "SSMF"
+            static final short MANIFEST_VERSION = 2;
+            final long seq;
+            final long generation;
+            final String[] userShards;
+            final String[] groupShards;
+            // (length << 32) | crc32 of each shard file; null for a version 1 manifest
+            final long[] userChecks;
+            final long[] groupChecks;
+
+            Manifest(long seq, long generation, String[] userShards, String[] groupShards, long[] userChecks, long[] groupChecks) {
+                this.seq = seq;
+                this.generation = generation;
+                this.userShards = userShards;
+                this.groupShards = groupShards;
+                this.userChecks = userChecks;
+                this.groupChecks = groupChecks;
+            }
+
+            static long check(ByteBuffer data) {
+                CRC32 crc = new CRC32();
+                crc.update(data.duplicate());
+                return ((long) data.remaining() << 32) | crc.getValue();
+            }
+
+            static Manifest read(Path path) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+                if (buf.remaining() < 22 || buf.getInt() != MAGIC) throw new IOException("Not a StudyStreak manifest");
+                short version = buf.getShort();
+                if (version == MANIFEST_VERSION) {
+                    CRC32 crc = new CRC32();
+                    crc.update(buf.array(), 0, buf.limit() - 4);
+                    if ((int) crc.getValue() != buf.getInt(buf.limit() - 4)) throw new IOException("Manifest checksum mismatch");
+                } else if (version != VERSION) {
+                    throw new IOException("Unsupported manifest version " + version);
+                }
+                try {
+                    long seq = buf.getLong();
+                    long generation = buf.getLong();
+                    String[] users = readTable(buf);
+                    long[] userChecks = version == VERSION ? null : readChecks(buf, users.length);
+                    String[] groups = readTable(buf);
+                    long[] groupChecks = version == VERSION ? null : readChecks(buf, groups.length);
+                    return new Manifest(seq, generation, users, groups, userChecks, groupChecks);
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IOException("Truncated manifest");
+                }
+            }
+
+            private static long[] readChecks(ByteBuffer buf, int n) {
+                long[] checks = new long[n];
+                for (int i = 0; i < n; i++) checks[i] = buf.getLong();
+                return checks;
+            }
+
+            // Confirms every shard file exists with the recorded length and CRC32; names the first one that does not.
+            void validate(Path dir) throws IOException {
+                if (userChecks == null) return;
+                validate(dir, userShards, userChecks);
+                validate(dir, groupShards, groupChecks);
+            }
+
+            private static void validate(Path dir, String[] files, long[] checks) throws IOException {
+                for (int i = 0; i < files.length; i++) {
+                    if (files[i] == null) continue;
+                    Path path = dir.resolve(files[i]);
+                    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                        long size = ch.size();
+                        if (size != checks[i] >>> 32) throw new IOException(files[i] + " is " + size + " bytes, expected " + (checks[i] >>> 32));
+                        if (check(ch.map(FileChannel.MapMode.READ_ONLY, 0, size)) != checks[i]) throw new IOException(files[i] + " fails its checksum");
+                    } catch (NoSuchFileException e) {
+                        throw new IOException(files[i] + " is missing");
+                    }
+                }
+            }
+
+            Set<String> files() {
+                Set<String> names = new HashSet<>(Arrays.asList(userShards));
+                names.addAll(Arrays.asList(groupShards));
+                names.remove(null);
+                return names;
+            }
+
+            ByteBuffer encode() {
+                Out out = new Out(64 + (userShards.length + groupShards.length) * 32);
+                out.buf.putInt(MAGIC).putShort(userChecks == null ? VERSION : MANIFEST_VERSION).putLong(seq).putLong(generation);
+                table(out, userShards, userChecks);
+                table(out, groupShards, groupChecks);
+                if (userChecks == null) return out.buf.flip();
+                CRC32 crc = new CRC32();
+                crc.update(out.buf.array(), 0, out.buf.position());
+                out.ensure(4);
+                out.buf.putInt((int) crc.getValue());
+                return out.buf.flip();
+            }
+
+            private static void table(Out out, String[] files, long[] checks) {
+                out.varint(files.length);
+                for (String f : files) out.string(f);
+                if (checks == null) return;
+                out.ensure(files.length * 8);
+                for (long c : checks) out.buf.putLong(c);
+            }
+        }
+
+        static class StringTable {
+            final Map<String, Integer> ids = new HashMap<>();
+            final List<String> strings = new ArrayList<>();
+            int bytes = 0;
+
+            int id(String s) {
+                Integer id = ids.get(s);
+                if (id == null) {
+                    id = strings.size();
+                    ids.put(s, id);
+                    strings.add(s);
+                    bytes += 5 + s.length() * 3;
+                }
+                return id;
+            }
+        }
+
+        static class Out {
+            ByteBuffer buf;
+
+            Out(int capacity) { buf = ByteBuffer.allocate(Math.max(64, capacity)); }
+
+            void ensure(int n) {
+                if (buf.remaining() >= n) return;
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+
+            void u8(int v) {
+                ensure(1);
+                buf.put((byte) v);
+            }
+
+            void varint(int v) {
+                ensure(5);
+                while ((v & ~0x7f) != 0) {
+                    buf.put((byte) ((v & 0x7f) | 0x80));
+                    v >>>= 7;
+                }
+                buf.put((byte) v);
+            }
+
+            void string(String s) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                varint(b.length);
+                ensure(b.length);
+                buf.put(b);
+            }
+
+            void bytes(ByteBuffer src) {
+                ensure(src.remaining());
+                buf.put(src.duplicate());
+            }
+
+            void date(LocalDate d) {
+                ensure(4);
+                buf.putInt(d == null ? NO_DATE : (int) d.toEpochDay());
+            }
+        }
+    }
+
+    // Stored hashes are either "<scheme>$<fields>" or, from before schemes existed, bare SHA-256 hex. New
+    // passwords use studystreak.password.scheme; a login with a hash in any other scheme, or with fewer
+    // iterations than configured, is rehashed. Digests and MACs are kept per thread.
+    static class SecurityUtil {
+        private static final String SCHEME = System.getProperty("studystreak.password.scheme", Pbkdf2.ID);
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final SecureRandom RANDOM = new SecureRandom();
+        private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        private static final Map<String, PasswordScheme> SCHEMES = new LinkedHashMap<>();
+
+        static {
+            register(new Pbkdf2());
+            register(new LegacySha256());
+        }
+
+        interface PasswordScheme {
+            String id();
+            String hash(String plain);
+            boolean verify(String plain, String stored);
+            // False if a successful login should store a fresh hash.
+            boolean isCurrent(String stored);
+        }
+
+        static void register(PasswordScheme scheme) {
+            SCHEMES.put(scheme.id(), scheme);
+        }
+
+        // Unsalted SHA-256 as lowercase hex, the format of hashes written before schemes existed.
+        public static String hash(String input) {
+            byte[] digest = SHA256.get().digest(input.getBytes(StandardCharsets.UTF_8));
+            char[] out = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                out[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                out[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(out);
+        }
+
+        public static String hashPassword(String plain) {
+            long t0 = System.nanoTime();
+            String hash = scheme(SCHEME).hash(plain);
+            Metrics.PASSWORD_HASH.recordSince(t0);
+            return hash;
+        }
+
+        public static boolean verify(String plain, String stored) {
+            long t0 = System.nanoTime();
+            PasswordScheme s = schemeOf(stored);
+            boolean ok = s != null && s.verify(plain, stored);
+            Metrics.PASSWORD_VERIFY.recordSince(t0);
+            return ok;
+        }
+
+        public static boolean needsRehash(String stored) {
+            PasswordScheme s = schemeOf(stored);
+            return s == null || !s.id().equals(SCHEME) || !s.isCurrent(stored);
+        }
+
+        private static PasswordScheme schemeOf(String stored) {
+            int sep = stored.indexOf('$');
+            return SCHEMES.get(sep < 0 ? LegacySha256.ID : stored.substring(0, sep));
+        }
+
+        private static PasswordScheme scheme(String id) {
+            PasswordScheme s = SCHEMES.get(id);
+            if (s == null) throw new IllegalStateException("Unknown password scheme " + id);
+            return s;
+        }
+
+        static class LegacySha256 implements PasswordScheme {
+            static final String ID = "sha256";
+
+            public String id() { return ID; }
+            public String hash(String plain) { return SecurityUtil.hash(plain); }
+            public boolean isCurrent(String stored) { return true; }
+
+            // Compares the digest nibble by nibble against the stored hex instead of encoding it.
+            public boolean verify(String plain, String stored) {
+                if (stored.length() != 64) return false;
+                byte[] digest = SHA256.get().digest(plain.getBytes(StandardCharsets.UTF_8));
+                int diff = 0;
+                for (int i = 0; i < digest.length; i++) {
+                    diff |= HEX[(digest[i] >> 4) & 0xf] ^ stored.charAt(2 * i);
+                    diff |= HEX[digest[i] & 0xf] ^ stored.charAt(2 * i + 1);
+                }
+                return diff == 0;
+            }
+        }
+
+        // PBKDF2-HMAC-SHA256 with a 16-byte salt and one 32-byte block, as "pbkdf2-sha256$<iterations>$<salt>$<hash>"
+        // with base64 salt and hash. HMAC is computed over the per-thread digest with per-thread pads, since
+        // javax.crypto.Mac allocates its result on every round.
+        static class Pbkdf2 implements PasswordScheme {
+            static final String ID = "pbkdf2-sha256";
+            private static final int ITERATIONS = Integer.getInteger("studystreak.pbkdf2.iterations", 100_000);
+            private static final int BLOCK = 64;
+            private static final ThreadLocal<byte[][]> PADS = ThreadLocal.withInitial(() -> new byte[][] { new byte[BLOCK], new byte[BLOCK] });
+
+            public String id() { return ID; }
+
+            public String hash(String plain) {
+                byte[] salt = new byte[16];
+                RANDOM.nextBytes(salt);
+                Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+                return ID + "$" + ITERATIONS + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(plain, salt, ITERATIONS));
+            }
+
+            public boolean verify(String plain, String stored) {
+                String[] f = stored.split("\\$");
+                if (f.length != 4) return false;
+                try {
+                    Base64.Decoder b64 = Base64.getDecoder();
+                    return MessageDigest.isEqual(derive(plain, b64.decode(f[2]), Integer.parseInt(f[1])), b64.decode(f[3]));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+            }
+
+            public boolean isCurrent(String stored) {
+                String[] f = stored.split("\\$");
+                try {
+                    return f.length == 4 && Integer.parseInt(f[1]) >= ITERATIONS;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+
+            static byte[] derive(String plain, byte[] salt, int iterations) {
+                if (iterations < 1) throw new IllegalArgumentException("iterations must be positive");
+                MessageDigest md = SHA256.get();
+                byte[][] pads = PADS.get();
+                byte[] ipad = pads[0];
+                byte[] opad = pads[1];
+                byte[] key = plain.getBytes(StandardCharsets.UTF_8);
+                if (key.length > BLOCK) key = md.digest(key);
+                for (int i = 0; i < BLOCK; i++) {
+                    byte k = i < key.length ? key[i] : 0;
+                    ipad[i] = (byte) (k ^ 0x36);
+                    opad[i] = (byte) (k ^ 0x5c);
+                }
+                byte[] u = new byte[32];
+                byte[] t = new byte[32];
+                try {
+                    md.update(ipad);
+                    md.update(salt);
+                    md.update(new byte[] { 0, 0, 0, 1 });
+                    md.digest(u, 0, 32);
+                    md.update(opad);
+                    md.update(u);
+                    md.digest(u, 0, 32);
+                    System.arraycopy(u, 0, t, 0, 32);
+                    for (int i = 1; i < iterations; i++) {
+                        md.update(ipad);
+                        md.update(u);
+                        md.digest(u, 0, 32);
+                        md.update(opad);
+                        md.update(u);
+                        md.digest(u, 0, 32);
+                        for (int j = 0; j < 32; j++) t[j] ^= u[j];
+                    }
+                } catch (DigestException e) {
+                    throw new IllegalStateException("PBKDF2 failed", e);
+                }
+                return t;
+            }
+        }
+    }
+
+    // `java StudyStreak import <file> [rejects-file]` ingests (user, group, date, hours) rows from CSV or
+    // NDJSON. Rows are streamed in chunks of CHUNK; each chunk's groups are first rolled over to their open day,
+    // as logHoursFlow does, then the chunk is validated and applied with logHours under the write side of
+    // STATE_LOCK, journaled with one flush and logged as one activity line per group. The snapshot is written
+    // once at the end. Rejected rows are reported with their line number and reason.
+    static class Importer {
+        private static final int CHUNK = Integer.getInteger("studystreak.import.chunk", 1000);
+
+        static class Row {
+            final int line;
+            final String raw;
+            String user;
+            String group;
+            String date;
+            String hours;
+
+            Row(int line, String raw) {
+                this.line = line;
+                this.raw = raw;
+            }
+        }
+
+        static class Result {
+            int accepted;
+            int rejected;
+        }
+
+        static void run(String[] args) {
+            if (args.length < 2) {
+                System.out.println("Usage: java StudyStreak import <file.csv|file.ndjson> [rejects-file]");
+                return;
+            }
+            Path file = Paths.get(args[1]);
+            if (!Files.isRegularFile(file)) {
+                System.out.println("File not found: " + file);
+                return;
+            }
+            if (!StorageManager.loadAll()) return;
+            PrintStream rejects = System.out;
+            try {
+                if (args.length > 2) rejects = new PrintStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(args[2]))), false, StandardCharsets.UTF_8);
+                long t0 = System.nanoTime();
+                Result r = importFile(file, rejects);
+                System.out.printf("Imported %d rows, rejected %d, in %d ms.%n", r.accepted, r.rejected, (System.nanoTime() - t0) / 1_000_000);
+            } catch (IOException e) {
+                System.out.println("Import failed: " + e.getMessage());
+            } finally {
+                if (rejects != System.out) rejects.close();
+            }
+            StorageManager.saveAll();
+            ActivityLogger.close();
+        }
+
+        static Result importFile(Path file, PrintStream rejects) throws IOException {
+            Result result = new Result();
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                List<Row> chunk = new ArrayList<>(CHUNK);
+                Boolean json = null;
+                int lineNo = 0;
+                for (String line; (line = in.readLine()) != null; ) {
+                    lineNo++;
+                    if (line.isBlank()) continue;
+                    if (json == null) {
+                        json = line.trim().startsWith("{");
+                        if (!json && isCsvHeader(line)) continue;
+                    }
+                    Row row = new Row(lineNo, line);
+                    if (json ? !parseJson(row) : !parseCsv(row)) {
+                        reject(rejects, result, row, "malformed row");
+                        continue;
+                    }
+                    chunk.add(row);
+                    if (chunk.size() == CHUNK) {
+                        applyChunk(chunk, rejects, result);
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty()) applyChunk(chunk, rejects, result);
+            }
+            return result;
+        }
+
+        private static void applyChunk(List<Row> chunk, PrintStream rejects, Result result) {
+            List<Journal.Entry> committed = new ArrayList<>(chunk.size());
+            Map<String, StringBuilder> perGroup = new LinkedHashMap<>();
+            List<Events.Event> logged = new ArrayList<>(chunk.size());
+            Set<String> caughtUp = new HashSet<>();
+            for (Row row : chunk) {
+                Group g = groups.get(row.group);
+                if (g != null && caughtUp.add(row.group)) RolloverScheduler.catchUp(g);
+            }
+            STATE_LOCK.writeLock().lock();
+            try {
+                for (Row row : chunk) {
+                    try {
+                        int hrs = Integer.parseInt(row.hours.trim());
+                        if (hrs < 0 || hrs > MAX_HOURS_PER_DAY) throw new InvalidHoursException("Hours must be between 0 and " + MAX_HOURS_PER_DAY);
+                        User user = users.get(row.user);
+                        if (user == null) throw new InvalidLoginException("User not found");
+                        Group g = groups.get(row.group);
+                        if (g == null) throw new GroupNotFoundException("Group not found");
+                        String today = g.openDay().toString();
+                        if (!row.date.isEmpty() && !row.date.equals(today)) throw new LateLogException("Date " + row.date + " is not the current day " + today);
+                        if (!user.isMemberOfGroup(row.group)) throw new UserNotInGroupException("Not a member of this group");
+                        logHours(user, g, hrs);
+                        committed.add(new Journal.Entry(Journal.LOG_HOURS, row.user, row.group, hrs));
+                        logged.add(new Events.HoursLogged(-1, g.openDay(), row.group, row.user, hrs,
+                                g.failuresOf(row.user, user.getStatus(row.group).getConsecutiveFailures())));
+                        StringBuilder line = perGroup.computeIfAbsent(row.group, k -> new StringBuilder());
+                        line.append(line.length() == 0 ? "" : ", ").append(row.user).append('=').append(hrs);
+                        result.accepted++;
+                    } catch (NumberFormatException e) {
+                        reject(rejects, result, row, "hours is not an integer");
+                    } catch (Exception e) {
+                        reject(rejects, result, row, e.getMessage());
+                    }
+                }
+                StorageManager.commitBatch(committed);
+            } finally {
+                STATE_LOCK.writeLock().unlock();
+            }
+            for (Map.Entry<String, StringBuilder> e : perGroup.entrySet()) {
+                ActivityLogger.log(e.getKey(), "Bulk import logged hours: " + e.getValue());
+            }
+            for (Events.Event e : logged) Events.publish(e);
+            StorageManager.checkpointIfDue();
+        }
+
+        private static void reject(PrintStream rejects, Result result, Row row, String reason) {
+            result.rejected++;
+            rejects.println("line " + row.line + ": " + reason + ": " + row.raw);
+        }
+
+        private static boolean isCsvHeader(String line) {
+            List<String> f = csvFields(line);
+            return f != null && f.size() >= 4 && f.get(0).trim().equalsIgnoreCase("user");
+        }
+
+        // user,group,date,hours with optional double-quoted fields.
+        private static boolean parseCsv(Row row) {
+            List<String> f = csvFields(row.raw);
+            if (f == null || f.size() != 4) return false;
+            row.user = f.get(0).trim();
+            row.group = f.get(1).trim();
+            row.date = f.get(2).trim();
+            row.hours = f.get(3).trim();
+            return true;
+        }
+
+        private static List<String> csvFields(String line) {
+            List<String> out = new ArrayList<>(4);
+            StringBuilder cur = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cur.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        cur.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    out.add(cur.toString());
+                    cur.setLength(0);
+                } else {
+                    cur.append(c);
+                }
+            }
+            if (quoted) return null;
+            out.add(cur.toString());
+            return out;
+        }
+
+        // A flat object such as {"user":"alice","group":"math","date":"2024-05-01","hours":3}.
+        private static boolean parseJson(Row row) {
+            String s = row.raw.trim();
+            if (!s.startsWith("{") || !s.endsWith("}")) return false;
+            int i = 1;
+            int end = s.length() - 1;
+            row.date = "";
+            while (true) {
+                i = skipSpace(s, i);
+                if (i >= end) break;
+                if (s.charAt(i) != '"') return false;
+                StringBuilder key = new StringBuilder();
+                i = readString(s, i, key);
+                i = skipSpace(s, i);
+                if (i < 0 || i >= end || s.charAt(i) != ':') return false;
+                i = skipSpace(s, i + 1);
+                StringBuilder value = new StringBuilder();
+                if (i < end && s.charAt(i) == '"') {
+                    i = readString(s, i, value);
+                    if (i < 0) return false;
+                } else {
+                    while (i < end && s.charAt(i) != ',' && !Character.isWhitespace(s.charAt(i))) value.append(s.charAt(i++));
+                }
+                switch (key.toString()) {
+                    case "user": row.user = value.toString(); break;
+                    case "group": row.group = value.toString(); break;
+                    case "date": row.date = value.toString(); break;
+                    case "hours": row.hours = value.toString(); break;
+                    default: break;
+                }
+                i = skipSpace(s, i);
+                if (i < end && s.charAt(i) == ',') i++;
+                else if (i < end) return false;
+            }
+            return row.user != null && row.group != null && row.hours != null;
+        }
+
+        private static int skipSpace(String s, int i) {
+            while (i >= 0 && i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+            return i;
+        }
+
+        // Reads a JSON string starting at the opening quote; returns the index after the closing quote, or -1.
+        private static int readString(String s, int i, StringBuilder out) {
+            for (i = i + 1; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') return i + 1;
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (++i >= s.length()) return -1;
+                char e = s.charAt(i);
+                switch (e) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 >= s.length()) return -1;
+                        out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default: out.append(e); break;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // `java StudyStreak report <name> [--json] [--days N] [--limit N] [out-file]` writes one report as CSV, or
+    // with --json as one JSON object per row, from the stored data as of its last evaluated day:
+    //   streaks   groups and members per current streak length
+    //   at-risk   memberships one missed day from auto-removal
+    //   top       studiers with the most hours across all groups over the last N days, from history
+    //   backlog   groups with pending join requests, most pending first
+    //   activity  activity log events per day over the last N days
+    // Users are streamed shard by shard rather than loaded, and history blocks and activity segments are
+    // scanned in parallel, so memory does not grow with the number of memberships.
+    static class Reports {
+        private static final List<String> NAMES = Arrays.asList("streaks", "at-risk", "top", "backlog", "activity");
+
+        // Rows as CSV under a header line, or as JSON objects one per line.
+        static final class Sink {
+            private final PrintStream out;
+            private final boolean json;
+            private final String[] columns;
+            private long rows;
+
+            Sink(PrintStream out, boolean json, String... columns) {
+                this.out = out;
+                this.json = json;
+                this.columns = columns;
+                if (!json) out.println(String.join(",", columns));
+            }
+
+            synchronized void row(Object... values) {
+                StringBuilder sb = new StringBuilder(json ? "{" : "");
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) sb.append(',');
+                    if (json) quote(sb, columns[i]).append(':');
+                    Object v = values[i];
+                    if (v == null) {
+                        if (json) sb.append("null");
+                    } else if (v instanceof Number || v instanceof Boolean) {
+                        sb.append(v);
+                    } else if (json) {
+                        quote(sb, v.toString());
+                    } else {
+                        csv(sb, v.toString());
+                    }
+                }
+                out.println(json ? sb.append('}') : sb);
+                rows++;
+            }
+
+            synchronized long rows() { return rows; }
+
+            private static StringBuilder quote(StringBuilder sb, String s) {
+                sb.append('"');
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        sb.append('\\').append(c);
+                    } else if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                return sb.append('"');
+            }
+
+            private static void csv(StringBuilder sb, String s) {
+                if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+                    sb.append(s);
+                } else {
+                    sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+                }
+            }
+        }
+
+        static void run(String[] args) {
+            String name = args.length > 1 ? args[1] : "";
+            boolean json = false;
+            int days = 30;
+            int limit = 100;
+            Path file = null;
+            try {
+                for (int i = 2; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--json": json = true; break;
+                        case "--days": days = Integer.parseInt(args[++i]); break;
+                        case "--limit": limit = Integer.parseInt(args[++i]); break;
+                        default: file = Paths.get(args[i]); break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                name = "";
+            }
+            if (!NAMES.contains(name) || days < 1 || limit < 1) {
+                System.out.println("Usage: java StudyStreak report <" + String.join("|", NAMES) + "> [--json] [--days N] [--limit N] [out-file]");
+                return;
+            }
+            // load messages go to stderr so that stdout carries only the report
+            PrintStream stdout = System.out;
+            System.setOut(System.err);
+            try {
+                if (!StorageManager.loadAll()) return;
+            } finally {
+                System.setOut(stdout);
+            }
+            LocalDate to = currentDate;
+            LocalDate from = to.minusDays(days - 1);
+            PrintStream out = stdout;
+            try {
+                if (file != null) out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024), false, StandardCharsets.UTF_8);
+                long t0 = System.nanoTime();
+                Sink sink;
+                switch (name) {
+                    case "streaks":
+                        sink = new Sink(out, json, "streak", "groups", "members");
+                        streaks(groups.values(), sink);
+                        break;
+                    case "at-risk":
+                        sink = new Sink(out, json, "group", "user", "failures", "logged_today", "today_hours", "last_log_date");
+                        atRisk(allUsers(), groups, sink);
+                        break;
+                    case "top":
+                        sink = new Sink(out, json, "rank", "user", "hours", "group_days_met");
+                        top(from, to, limit, sink);
+                        break;
+                    case "backlog":
+                        sink = new Sink(out, json, "group", "admin", "pending", "members");
+                        backlog(groups.values(), sink);
+                        break;
+                    default:
+                        sink = new Sink(out, json, "date", "event", "count");
+                        activity(from, to, sink);
+                        break;
+                }
+                out.flush();
+                System.err.printf("Wrote %d %s rows%s in %d ms.%n", sink.rows(), name, file == null ? "" : " to " + file,
+                        (System.nanoTime() - t0) / 1_000_000);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Report failed: " + e.getMessage());
+            } finally {
+                if (out != stdout) out.close();
+            }
+        }
+
+        static Stream<User> allUsers() {
+            return users instanceof UserStore ? ((UserStore) users).scan() : users.values().parallelStream();
+        }
+
+        static void streaks(Collection<Group> groups, Sink out) {
+            Map<Integer, IntSummaryStatistics> byStreak = groups.parallelStream()
+                    .collect(Collectors.groupingByConcurrent(Group::getStreakCount, Collectors.summarizingInt(Group::memberCount)));
+            new TreeMap<>(byStreak).forEach((streak, s) -> out.row(streak, s.getCount(), s.getSum()));
+        }
+
+        // Failure counts are brought up to each group's last evaluated day as settling would, without changing
+        // anything. A member that has already logged enough today is still listed until the day is evaluated.
+        static void atRisk(Stream<User> users, Map<String, Group> groups, Sink out) {
+            users.forEach(u -> {
+                for (UserGroupStatus s : u.getStatuses()) {
+                    Group g = groups.get(s.getGroupName());
+                    if (g == null) continue;
+                    int failures = g.failuresOf(u.getUsername(), s.getConsecutiveFailures());
+                    if (failures == AUTO_REMOVE_FAILURES - 1) {
+                        out.row(g.getGroupName(), u.getUsername(), failures, s.isHasLoggedToday(), s.getTodayHours(), s.getLastLogDate());
+                    }
+                }
+            });
+        }
+
+        // Hours are summed per history name id, so memory follows the number of names rather than of rows.
+        static void top(LocalDate from, LocalDate to, int limit, Sink out) {
+            int n = HistoryStore.nameCount();
+            AtomicLongArray hours = new AtomicLongArray(n);
+            AtomicIntegerArray met = new AtomicIntegerArray(n);
+            HistoryStore.scan(from, to, (group, member, h, m) -> {
+                if (member >= n) return;
+                if (h > 0) hours.addAndGet(member, h);
+                if (m) met.incrementAndGet(member);
+            });
+            Comparator<Integer> byHours = Comparator.<Integer>comparingLong(hours::get).thenComparing(Comparator.<Integer>reverseOrder());
+            PriorityQueue<Integer> best = new PriorityQueue<>(byHours);
+            for (int id = 0; id < n; id++) {
+                if (hours.get(id) == 0) continue;
+                best.add(id);
+                if (best.size() > limit) best.poll();
+            }
+            List<Integer> ranked = new ArrayList<>(best);
+            ranked.sort(byHours.reversed());
+            for (int i = 0; i < ranked.size(); i++) {
+                int id = ranked.get(i);
+                out.row(i + 1, HistoryStore.name(id), hours.get(id), met.get(id));
+            }
+        }
+
+        static void backlog(Collection<Group> groups, Sink out) {
+            groups.parallelStream()
+                    .filter(g -> g.joinRequestCount() > 0)
+                    .sorted(Comparator.comparingInt(Group::joinRequestCount).reversed().thenComparing(Group::getGroupName))
+                    .forEachOrdered(g -> out.row(g.getGroupName(), g.getAdminUsername(), g.joinRequestCount(), g.memberCount()));
+        }
+
+        static void activity(LocalDate from, LocalDate to, Sink out) throws IOException {
+            Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+            ActivityLogger.scanAll(from, to, line -> {
+                int group = line.indexOf("] [");
+                int message = group < 0 ? -1 : line.indexOf("] ", group + 3);
+                if (!line.startsWith("[") || message < 0) return;
+                counts.computeIfAbsent(line.substring(1, group) + " " + event(line.substring(message + 2)), k -> new LongAdder()).increment();
+            });
+            new TreeMap<>(counts).forEach((key, c) -> {
+                int space = key.indexOf(' ');
+                out.row(key.substring(0, space), key.substring(space + 1), c.sum());
+            });
+        }
+
+        private static String event(String message) {
+            if (message.startsWith("User registered")) return "registered";
+            if (message.startsWith("User logged out")) return "logged_out";
+            if (message.startsWith("Group created")) return "group_created";
+            if (message.startsWith("Join request")) return "join_requested";
+            if (message.startsWith("Bulk import")) return "hours_imported";
+            if (message.startsWith("Auto-removed")) return "auto_removed";
+            if (message.startsWith("Streak incremented")) return "streak_incremented";
+            if (message.startsWith("Streak broken")) return "streak_broken";
+            if (message.startsWith("Admin ")) {
+                if (message.contains(" approved ")) return "join_approved";
+                if (message.contains(" rejected ")) return "join_rejected";
+                if (message.contains(" set the day to close ")) return "schedule_changed";
+            }
+            if (message.endsWith(" hours today.")) return "hours_logged";
+            return "other";
+        }
+    }
+
+    // `java StudyStreak serve [port]` accepts line-based sessions on the loopback interface. Each connection
+    // runs the console menus on its own thread with its own input and output over the shared data.
+    static class Server {
+        private static final int DEFAULT_PORT = Integer.getInteger("studystreak.port", 7070);
+        static final ThreadLocal<Session> SESSION = new ThreadLocal<>();
+
+        static class Session {
+            final Scanner in;
+            final PrintStream out;
+
+            Session(Socket s) throws IOException {
+                this(new Scanner(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)),
+                        new PrintStream(new BufferedOutputStream(s.getOutputStream(), 16 * 1024), false, StandardCharsets.UTF_8));
+            }
+
+            Session(Scanner in, PrintStream out) {
+                this.in = in;
+                this.out = out;
+            }
+
+            String readLine() {
+                out.flush();
+                return in.nextLine();
+            }
+        }
+
+        static void run(String[] args) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+            System.out.println("=== Group Study Streak System (server) ===");
+            System.out.println("Simulated date: " + currentDate);
+            Metrics.start();
+            if (!StorageManager.loadAll()) return;
+            RolloverScheduler.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(StorageManager::saveAll, "server-shutdown"));
+            listen(port, Server::serve);
+        }
+
+        static void listen(int port, Consumer<Socket> handler) {
+            ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "session");
+                t.setDaemon(true);
+                return t;
+            });
+            try (ServerSocket server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress())) {
+                System.out.println("Listening on " + server.getLocalSocketAddress());
+                while (true) {
+                    Socket s = server.accept();
+                    sessions.execute(() -> handler.accept(s));
+                }
+            } catch (IOException e) {
+                System.out.println("Server stopped: " + e.getMessage());
+            }
+        }
+
+        static void serve(Socket socket) {
+            try (Socket s = socket) {
+                s.setTcpNoDelay(true);
+                Session session = new Session(s);
+                SESSION.set(session);
+                out().println("=== Group Study Streak System ===");
+                if (!Partitions.routed()) out().println("Simulated date: " + currentDate);
+                startMenu();
+                out().println("Bye.");
+                out().flush();
+            } catch (IOException | NoSuchElementException disconnected) {
+                // the client went away; anything it committed is already journaled
+            } finally {
+                SESSION.remove();
+            }
+        }
+    }
+
+    // `java StudyStreak worker <index> <count> [port]` serves one of `count` partitions: the groups whose names
+    // hash to `index` and the users whose names do. Run each worker in its own directory, since storage, the
+    // journal and the logs are relative to it; each rolls its own groups over. `java StudyStreak route <port>
+    // <worker port>...` puts the usual menus in front of the workers, listed in partition order. An operation
+    // keyed on a user or group name runs on the partition owning that name, and a membership is kept with its
+    // group, so every operation touches one partition. Statuses and day evaluation go to all of them. Workers
+    // listen on loopback and trust the user name the router sends.
+    static class Partitions {
+        private static final int MARK = 1;
+        private static final int INPUT = '?';
+        private static final int OK = '+';
+        private static final int FAILED = '-';
+        private static final Set<String> FAN_OUT = Set.of("statuses", "evaluate", "search");
+        private static final ThreadLocal<Link[]> LINKS = new ThreadLocal<>();
+        private static volatile int[] workerPorts;
+        private static int index;
+        private static int count;
+
+        static boolean routed() {
+            return workerPorts != null;
+        }
+
+        static void worker(String[] args) {
+            if (args.length < 3) {
+                System.out.println("Usage: java StudyStreak worker <index> <count> [port]");
+                return;
+            }
+            index = Integer.parseInt(args[1]);
+            count = Integer.parseInt(args[2]);
+            if (count < 1 || index < 0 || index >= count) {
+                System.out.println("Partition index must be from 0 to count - 1.");
+                return;
+            }
+            int port = args.length > 3 ? Integer.parseInt(args[3]) : Server.DEFAULT_PORT + 1 + index;
+            System.out.println("=== Group Study Streak System (partition " + index + " of " + count + ") ===");
+            System.out.println("Simulated date: " + currentDate);
+            Metrics.start();
+            if (!StorageManager.loadAll()) return;
+            RolloverScheduler.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(StorageManager::saveAll, "worker-shutdown"));
+            Server.listen(port, Partitions::serveRouter);
+        }
+
+        static void route(String[] args) {
+            if (args.length < 3) {
+                System.out.println("Usage: java StudyStreak route <port> <worker port>...");
+                return;
+            }
+            int port = Integer.parseInt(args[1]);
+            int[] ports = new int[args.length - 2];
+            for (int i = 0; i < ports.length; i++) ports[i] = Integer.parseInt(args[i + 2]);
+            workerPorts = ports;
+            System.out.println("=== Group Study Streak System (router for " + ports.length + " partitions) ===");
+            Server.listen(port, Partitions::serveClient);
+        }
+
+        private static void serveClient(Socket socket) {
+            Link[] links = new Link[workerPorts.length];
+            LINKS.set(links);
+            try {
+                Server.serve(socket);
+            } finally {
+                LINKS.remove();
+                for (Link l : links) {
+                    if (l != null) l.close();
+                }
+            }
+        }
+
+        // Runs the operation on the partition owning the key and relays its prompts and output to the client.
+        static boolean forward(String op, User user, String key) {
+            return call(SnapshotCodec.shardOf(key, workerPorts.length), op, user, key, null);
+        }
+
+        static void statuses(User user) {
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            for (int p = 0; p < workerPorts.length; p++) call(p, "statuses", user, "", lines);
+            if (lines.size() == 0) {
+                out().println("You are not in any group.");
+                return;
+            }
+            out().println("Your group statuses:");
+            out().print(lines.toString(StandardCharsets.UTF_8));
+        }
+
+        // Each partition returns its best `limit` matches, one per line; the best `limit` of those are kept.
+        static List<GroupIndex.Hit> search(String query, int limit) {
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            for (int p = 0; p < workerPorts.length; p++) call(p, "search", null, limit + " " + query, lines);
+            List<GroupIndex.Hit> hits = new ArrayList<>();
+            for (String line : lines.toString(StandardCharsets.UTF_8).split("\n")) {
+                String[] f = line.split("\t", 4);
+                if (f.length < 4) continue;
+                hits.add(new GroupIndex.Hit(f[3], Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[0])));
+            }
+            hits.sort(GroupIndex.Hit.ORDER);
+            return hits.subList(0, Math.min(limit, hits.size()));
+        }
+
+        static void evaluate() {
+            for (int p = 0; p < workerPorts.length; p++) {
+                out().println("\nPartition " + p + ":");
+                call(p, "evaluate", null, "", null);
+            }
+        }
+
+        private static boolean call(int partition, String op, User user, String key, OutputStream capture) {
+            Link[] links = LINKS.get();
+            try {
+                if (links[partition] == null) links[partition] = new Link(partition);
+                Link link = links[partition];
+                link.send(op, user == null ? "" : user.getUsername(), key);
+                OutputStream to = capture != null ? capture : out();
+                while (true) {
+                    int b = link.in.read();
+                    if (b < 0) throw new EOFException("the worker closed the connection");
+                    if (b != MARK) {
+                        to.write(b);
+                        continue;
+                    }
+                    int marker = link.in.read();
+                    if (marker != INPUT) return marker == OK;
+                    link.send(readLine());
+                }
+            } catch (IOException e) {
+                if (links[partition] != null) links[partition].close();
+                links[partition] = null;
+                out().println("Partition " + partition + " is unavailable: " + e.getMessage());
+                return false;
+            }
+        }
+
+        private static class Link implements Closeable {
+            private final Socket socket;
+            private final InputStream in;
+            private final OutputStream out;
+
+            Link(int partition) throws IOException {
+                socket = new Socket(InetAddress.getLoopbackAddress(), workerPorts[partition]);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                StringBuilder hello = new StringBuilder();
+                for (int b; (b = in.read()) != '\n'; ) {
+                    if (b < 0) throw new EOFException("the worker closed the connection");
+                    hello.append((char) b);
+                }
+                String expected = "partition " + partition + " of " + workerPorts.length;
+                if (!hello.toString().equals(expected)) {
+                    socket.close();
+                    throw new IOException("port " + workerPorts[partition] + " serves " + hello + ", expected " + expected);
+                }
+            }
+
+            void send(String... lines) throws IOException {
+                for (String line : lines) out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already gone
+                }
+            }
+        }
+
+        private static void serveRouter(Socket socket) {
+            try (Socket s = socket) {
+                s.setTcpNoDelay(true);
+                Scanner in = new Scanner(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream reply = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+                Call call = new Call(in, reply);
+                Server.SESSION.set(call);
+                reply.write(("partition " + index + " of " + count + "\n").getBytes(StandardCharsets.UTF_8));
+                reply.flush();
+                while (true) call.run(in.nextLine(), in.nextLine(), in.nextLine());
+            } catch (IOException | UncheckedIOException | NoSuchElementException disconnected) {
+                // the router went away; anything it committed is already journaled
+            } finally {
+                Server.SESSION.remove();
+            }
+        }
+
+        // A router's session on a worker. Output is held until the operation asks for a line or finishes, then
+        // sent followed by a marker saying which.
+        private static class Call extends Server.Session {
+            private final ByteArrayOutputStream pending;
+            private final OutputStream reply;
+            private String key;
+
+            Call(Scanner in, OutputStream reply) {
+                this(in, new ByteArrayOutputStream(), reply);
+            }
+
+            private Call(Scanner in, ByteArrayOutputStream pending, OutputStream reply) {
+                super(in, new PrintStream(pending, false, StandardCharsets.UTF_8));
+                this.pending = pending;
+                this.reply = reply;
+            }
+
+            // The router has already shown the prompt for the key and read it, so the prompt is dropped.
+            @Override
+            String readLine() {
+                out.flush();
+                if (key != null) {
+                    String k = key;
+                    key = null;
+                    pending.reset();
+                    return k;
+                }
+                send(INPUT);
+                return in.nextLine();
+            }
+
+            void run(String op, String username, String key) {
+                boolean ok = false;
+                try {
+                    int owner = SnapshotCodec.shardOf(key, count);
+                    if (FAN_OUT.contains(op)) {
+                        ok = dispatch(op, username, key);
+                    } else if (owner != index) {
+                        out.println("Error: " + key + " belongs to partition " + owner + ", not " + index + ".");
+                    } else {
+                        this.key = key;
+                        ok = dispatch(op, username, key);
+                    }
+                } catch (Exception e) {
+                    out.println("Operation failed: " + e.getMessage());
+                }
+                this.key = null;
+                send(ok ? OK : FAILED);
+            }
+
+            private boolean dispatch(String op, String username, String key) throws Exception {
+                switch (op) {
+                    case "register": registerFlow(); return true;
+                    case "login": return login() != null;
+                    case "logout": ActivityLogger.logGlobal("User logged out: " + username); return true;
+                    case "create": createGroupFlow(account(username, !groups.containsKey(key))); return true;
+                    case "join": requestJoinFlow(account(username, groups.containsKey(key))); return true;
+                    case "manage": manageRequestsFlow(account(username, false)); return true;
+                    case "log": logHoursFlow(account(username, false)); return true;
+                    case "schedule": setGroupScheduleFlow(account(username, false)); return true;
+                    case "dashboard": viewGroupDashboardFlow(); return true;
+                    case "activity": viewGroupActivityFlow(); return true;
+                    case "history": viewGroupHistoryFlow(account(username, false)); return true;
+                    case "statuses": {
+                        User u = users.get(username);
+                        if (u != null) {
+                            u.settleGroups();
+                            u.printStatusLines();
+                        }
+                        return true;
+                    }
+                    case "evaluate": evaluateAllGroups(); return true;
+                    case "search": {
+                        int sp = key.indexOf(' ');
+                        for (GroupIndex.Hit h : GroupIndex.live().search(key.substring(sp + 1), Integer.parseInt(key.substring(0, sp)))) {
+                            out.println(h.distance + "\t" + h.members + "\t" + h.streak + "\t" + h.name);
+                        }
+                        return true;
+                    }
+                    default:
+                        out.println("Unknown operation " + op + ".");
+                        return false;
+                }
+            }
+
+            private void send(int marker) {
+                out.flush();
+                byte[] b = pending.toByteArray();
+                pending.reset();
+                for (int i = 0; i < b.length; i++) {
+                    if (b[i] == MARK) b[i] = '?';
+                }
+                try {
+                    reply.write(b);
+                    reply.write(MARK);
+                    reply.write(marker);
+                    reply.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        // A user is registered on the partition their name hashes to. Elsewhere they get an account without a
+        // password the first time they create or ask to join a group there; other operations only need the name.
+        private static User account(String name, boolean create) throws Exception {
+            User u = users.get(name);
+            if (u != null) return u;
+            if (!create) return new User(name, "");
+            atomically(NAMES, NAMES, () -> {
+                if (users.containsKey(name)) return;
+                registerUser(name, "");
+                StorageManager.commit(Journal.REGISTER, name, "", 0);
+            });
+            return users.get(name);
+        }
+    }
+
+    // `java StudyStreak load [port] [clients] [groups] [rounds]` drives a running server through the same menus
+    // a person would use. The first `groups` clients each create a group and approve the join requests of
+    // the clients assigned to it; then every client logs hours once and views its group dashboard `rounds`
+    // times. Reports wall time per phase and latency per operation.
+    static class LoadGenerator {
+        private static final String[] OPS = { "register+login", "create group", "request join", "approve", "log hours", "dashboard" };
+
+        static void run(String[] args) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT;
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+            int groupCount = Math.min(clients, args.length > 3 ? Integer.parseInt(args[3]) : 10);
+            int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+            String tag = Long.toString(System.currentTimeMillis(), 36);
+            long[][][] latencies = new long[clients][OPS.length][];
+            for (long[][] perClient : latencies) {
+                for (int op = 0; op < OPS.length; op++) perClient[op] = new long[0];
+            }
+            CyclicBarrier barrier = new CyclicBarrier(clients + 1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int id = i;
+                Thread t = new Thread(() -> drive(port, tag, id, groupCount, rounds, barrier, latencies[id]), "load-" + i);
+                t.start();
+                threads.add(t);
+            }
+            String[] phases = { "connect, register, login, create groups", "request to join", "approve requests", "log hours and view dashboards" };
+            try {
+                long start = System.nanoTime();
+                for (String phase : phases) {
+                    barrier.await();
+                    long now = System.nanoTime();
+                    System.out.printf("%-40s %9.1f ms%n", phase, (now - start) / 1e6);
+                    if (phase == phases[phases.length - 1]) {
+                        System.out.printf("%-40s %9.0f ops/s%n", "", clients * (1 + rounds) / ((now - start) / 1e9));
+                    }
+                    start = now;
+                }
+            } catch (Exception e) {
+                System.out.println("Load run aborted: " + e);
+            }
+            join(threads);
+            report(latencies);
+        }
+
+        private static void join(List<Thread> threads) {
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private static void drive(int port, String tag, int id, int groupCount, int rounds, CyclicBarrier barrier, long[][] lat) {
+            String name = "load-" + tag + "-" + id;
+            String group = "load-" + tag + "-g" + (id % groupCount);
+            boolean admin = id < groupCount;
+            try (Client c = new Client(port)) {
+                c.expect("Choose: ");
+                long t0 = System.nanoTime();
+                c.send("2", "username: ");
+                c.send(name, "password: ");
+                c.send("pw", "Choose: ");
+                c.send("1", "Username: ");
+                c.send(name, "Password: ");
+                c.send("pw", "Choose: ");
+                lat[0] = add(lat[0], System.nanoTime() - t0);
+                if (admin) {
+                    t0 = System.nanoTime();
+                    c.send("1", "group name: ");
+                    c.send(group, "(integer): ");
+                    c.send("2", "Choose: ");
+                    lat[1] = add(lat[1], System.nanoTime() - t0);
+                }
+                barrier.await();
+                if (!admin) {
+                    t0 = System.nanoTime();
+                    c.send("2", "request join: ");
+                    c.send(group, "Choose: ");
+                    lat[2] = add(lat[2], System.nanoTime() - t0);
+                }
+                barrier.await();
+                if (admin) {
+                    while (true) {
+                        t0 = System.nanoTime();
+                        c.send("3", "manage requests: ");
+                        if (c.send(group, "Choose: ", "cancel): ").endsWith("Choose: ")) break;
+                        c.send("1", "? ");
+                        c.send("A", "Choose: ");
+                        lat[3] = add(lat[3], System.nanoTime() - t0);
+                    }
+                }
+                barrier.await();
+                t0 = System.nanoTime();
+                c.send("4", "log for: ");
+                c.send(group, "max 24): ");
+                c.send(Integer.toString(1 + id % 4), "Choose: ");
+                lat[4] = add(lat[4], System.nanoTime() - t0);
+                for (int r = 0; r < rounds; r++) {
+                    t0 = System.nanoTime();
+                    c.send("5", "dashboard: ");
+                    c.send(group, "Choose: ");
+                    lat[5] = add(lat[5], System.nanoTime() - t0);
+                }
+                barrier.await();
+                c.send("7", "Choose: ");
+                c.send("4", "Bye.");
+            } catch (Exception e) {
+                System.out.println("Client " + id + " failed: " + e);
+                barrier.reset();
+            }
+        }
+
+        private static long[] add(long[] xs, long x) {
+            long[] out = Arrays.copyOf(xs, xs.length + 1);
+            out[xs.length] = x;
+            return out;
+        }
+
+        private static void report(long[][][] latencies) {
+            for (int op = 0; op < OPS.length; op++) {
+                int n = 0;
+                for (long[][] perClient : latencies) n += perClient[op].length;
+                long[] all = new long[n];
+                int k = 0;
+                for (long[][] perClient : latencies) {
+                    System.arraycopy(perClient[op], 0, all, k, perClient[op].length);
+                    k += perClient[op].length;
+                }
+                if (n == 0) continue;
+                Arrays.sort(all);
+                System.out.printf("%-16s %7d ops   p50 %8.2f ms   p99 %8.2f ms   max %8.2f ms%n", OPS[op], n,
+                        all[n / 2] / 1e6, all[Math.min(n - 1, (int) (n * 0.99))] / 1e6, all[n - 1] / 1e6);
+            }
+        }
+
+        static class Client implements Closeable {
+            private final Socket socket;
+            private final InputStream in;
+            private final OutputStream out;
+            private final StringBuilder seen = new StringBuilder();
+
+            Client(int port) throws IOException {
+                socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+
+            String send(String line, String... until) throws IOException {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                return expect(until);
+            }
+
+            // Reads until the output ends with one of the prompts and returns everything read.
+            String expect(String... prompts) throws IOException {
+                seen.setLength(0);
+                while (true) {
+                    int b = in.read();
+                    if (b < 0) throw new EOFException("Server closed the session after: " + seen);
+                    seen.append((char) b);
+                    for (String p : prompts) {
+                        if (b == p.charAt(p.length() - 1) && seen.length() >= p.length()
+                                && seen.lastIndexOf(p) == seen.length() - p.length()) return seen.toString();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        }
+    }
+
+    // Counters, gauges and latency histograms for the hot paths, as a text dump in the Prometheus exposition
+    // format and as attributes of the StudyStreak:type=Metrics MBean. Recording never allocates. With
+    // studystreak.metrics.port set, each connection to that loopback port is answered with the dump, as plain
+    // HTTP when the client sends a GET.
+    static class Metrics {
+        private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+        static final Counter LOGIN_SUCCESS = counter("login_success_total", "Successful logins.");
+        static final Counter LOGIN_FAILURE = counter("login_failure_total", "Logins rejected for an unknown user or a wrong password.");
+        static final Histogram PASSWORD_VERIFY = histogram("password_verify_ms", "Time to verify a password.");
+        static final Histogram PASSWORD_HASH = histogram("password_hash_ms", "Time to hash a new password.");
+        static final Counter HOURS_UPDATES = counter("group_hours_updates_total", "Calls to Group.updateTodayStudy.");
+        static final Histogram EVALUATE_GROUP = histogram("evaluate_group_ms", "Time to evaluate one group at rollover.");
+        static final Counter EVALUATE_MEMBERS = counter("evaluate_members_total", "Members evaluated at rollover: touched since the last one or expiring.");
+        static final Histogram ROLLOVER_DELAY = histogram("rollover_delay_ms", "Time from a group's cutoff to the scheduler evaluating it.");
+        static final Histogram LOAD = histogram("storage_load_ms", "Time of loadAll, including journal replay.");
+        static final Counter LOAD_BYTES = counter("storage_load_bytes_total", "Bytes of snapshots and journal found by loadAll.");
+        static final Histogram CAPTURE = histogram("storage_capture_ms", "Time a checkpoint holds the state lock to capture snapshots.");
+        static final Histogram SNAPSHOT_WRITE = histogram("storage_write_ms", "Time to write the changed shards and the manifest.");
+        static final Counter SNAPSHOT_BYTES = counter("storage_write_bytes_total", "Bytes of snapshots written.");
+        static final Histogram JOURNAL_APPEND = histogram("journal_append_ms", "Time to append and flush journal records.");
+        static final Histogram LOG_WRITE = histogram("activity_log_write_ms", "Time for the log writer to write and flush one batch.");
+        static final Counter LOG_LINES = counter("activity_log_lines_total", "Activity log lines written.");
+
+        static {
+            gauge("activity_log_queue_depth", "Activity log lines waiting for the writer.", ActivityLogger::queueDepth);
+            gauge("event_queue_depth", "Events waiting for the writer.", Events::queueDepth);
+            gauge("dashboard_cache_hits_total", "Dashboards served from the cache.", DashboardCache::hits);
+            gauge("dashboard_cache_misses_total", "Dashboards rendered.", DashboardCache::misses);
+        }
+
+        interface Metric {
+            void write(String name, StringBuilder out);
+            void snapshot(String name, Map<String, Number> out);
+        }
+
+        static final class Counter implements Metric {
+            private final LongAdder value = new LongAdder();
+
+            void inc() { value.increment(); }
+            void add(long n) { value.add(n); }
+            long get() { return value.sum(); }
+
+            public void write(String name, StringBuilder out) {
+                out.append(name).append(' ').append(get()).append('\n');
+            }
+
+            public void snapshot(String name, Map<String, Number> out) {
+                out.put(name, get());
+            }
+        }
+
+        static final class Gauge implements Metric {
+            private final java.util.function.LongSupplier value;
+
+            Gauge(java.util.function.LongSupplier value) { this.value = value; }
+
+            public void write(String name, StringBuilder out) {
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+
+            public void snapshot(String name, Map<String, Number> out) {
+                out.put(name, value.getAsLong());
+            }
+        }
+
+        // Nanosecond values in log-linear buckets: exact below 32, then 16 buckets per power of two, so a
+        // reported quantile is within 1/16 of the recorded value.
+        static final class Histogram implements Metric {
+            private static final int SUB_BITS = 4;
+            private static final int SUB = 1 << SUB_BITS;
+            private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+            private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder sum = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            void recordSince(long startNanos) {
+                record(System.nanoTime() - startNanos);
+            }
+
+            void record(long nanos) {
+                long v = Math.max(0, nanos);
+                counts.incrementAndGet(index(v));
+                sum.add(v);
+                long m;
+                while (v > (m = max.get()) && !max.compareAndSet(m, v)) { }
+            }
+
+            static int index(long v) {
+                if (v < 2 * SUB) return (int) v;
+                int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+                return (shift + 1) * SUB + (int) ((v >>> shift) - SUB);
+            }
+
+            // Highest value that falls in the bucket.
+            static long upperBound(int index) {
+                if (index < 2 * SUB) return index;
+                int shift = index / SUB - 1;
+                return ((long) (index % SUB + SUB + 1) << shift) - 1;
+            }
+
+            long count() {
+                long n = 0;
+                for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+                return n;
+            }
+
+            long quantile(double q) {
+                long total = count();
+                if (total == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * total));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts.get(i);
+                    if (seen >= rank) return Math.min(upperBound(i), max.get());
+                }
+                return max.get();
+            }
+
+            public void write(String name, StringBuilder out) {
+                for (double q : QUANTILES) out.append(name).append("{quantile=\"").append(q).append("\"} ").append(millis(quantile(q))).append('\n');
+                out.append(name).append("{quantile=\"1.0\"} ").append(millis(max.get())).append('\n');
+                out.append(name).append("_sum ").append(millis(sum.sum())).append('\n');
+                out.append(name).append("_count ").append(count()).append('\n');
+            }
+
+            public void snapshot(String name, Map<String, Number> out) {
+                out.put(name + "_count", count());
+                out.put(name + "_p50", millis(quantile(0.5)));
+                out.put(name + "_p99", millis(quantile(0.99)));
+                out.put(name + "_max", millis(max.get()));
+            }
+
+            private static double millis(long nanos) {
+                return Math.round(nanos / 1e3) / 1e3;
+            }
+        }
+
+        static Counter counter(String name, String help) {
+            return register(name, help, new Counter());
+        }
+
+        static Histogram histogram(String name, String help) {
+            return register(name, help, new Histogram());
+        }
+
+        static Gauge gauge(String name, String help, java.util.function.LongSupplier value) {
+            return register(name, help, new Gauge(value));
+        }
+
+        private static <M extends Metric> M register(String name, String help, M metric) {
+            registry.put("studystreak_" + name, new Described(help, metric));
+            return metric;
+        }
+
+        private static final class Described implements Metric {
+            final String help;
+            final Metric metric;
+
+            Described(String help, Metric metric) {
+                this.help = help;
+                this.metric = metric;
+            }
+
+            public void write(String name, StringBuilder out) {
+                String type = metric instanceof Histogram ? "summary" : metric instanceof Counter ? "counter" : "gauge";
+                out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                metric.write(name, out);
+            }
+
+            public void snapshot(String name, Map<String, Number> out) {
+                metric.snapshot(name, out);
+            }
+        }
+
+        static String dump() {
+            StringBuilder out = new StringBuilder(4096);
+            for (Map.Entry<String, Metric> e : registry.entrySet()) e.getValue().write(e.getKey(), out);
+            return out.toString();
+        }
+
+        static Map<String, Number> snapshot() {
+            Map<String, Number> out = new TreeMap<>();
+            for (Map.Entry<String, Metric> e : registry.entrySet()) e.getValue().snapshot(e.getKey(), out);
+            return out;
+        }
+
+        private static boolean started = false;
+
+        static synchronized void start() {
+            if (started) return;
+            started = true;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("StudyStreak:type=Metrics"));
+            } catch (JMException e) {
+                System.out.println("Failed to register metrics MBean: " + e.getMessage());
+            }
+            Integer port = Integer.getInteger("studystreak.metrics.port");
+            if (port == null) return;
+            try {
+                ServerSocket socket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+                Thread t = new Thread(() -> scrapeLoop(socket), "metrics-endpoint");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                System.out.println("Failed to open metrics port " + port + ": " + e.getMessage());
+            }
+        }
+
+        private static void scrapeLoop(ServerSocket socket) {
+            while (true) {
+                try (Socket s = socket.accept()) {
+                    s.setSoTimeout(200);
+                    boolean http = false;
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                    try {
+                        String line = in.readLine();
+                        http = line != null && line.startsWith("GET ");
+                        while (http && line != null && !line.isEmpty()) line = in.readLine();
+                    } catch (SocketTimeoutException quiet) {
+                        // a plain client that sends nothing
+                    }
+                    byte[] body = dump().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = s.getOutputStream();
+                    if (http) {
+                        out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length + "\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                    }
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    System.out.println("Metrics scrape failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // Read-only attributes named like the dump, with histograms as _count, _p50, _p99 and _max in milliseconds.
+        static final class MetricsMBean implements DynamicMBean {
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                Number v = snapshot().get(attribute);
+                if (v == null) throw new AttributeNotFoundException(attribute);
+                return v;
+            }
+
+            public AttributeList getAttributes(String[] attributes) {
+                Map<String, Number> all = snapshot();
+                AttributeList list = new AttributeList();
+                for (String a : attributes) {
+                    if (all.containsKey(a)) list.add(new Attribute(a, all.get(a)));
+                }
+                return list;
+            }
+
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+            }
+
+            public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+                if (actionName.equals("dump")) return dump();
+                throw new MBeanException(new UnsupportedOperationException(actionName));
+            }
+
+            public MBeanInfo getMBeanInfo() {
+                List<MBeanAttributeInfo> attrs = new ArrayList<>();
+                for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+                    attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+                }
+                MBeanOperationInfo dumpOp = new MBeanOperationInfo("dump", "Text dump of all metrics", new MBeanParameterInfo[0],
+                        String.class.getName(), MBeanOperationInfo.INFO);
+                return new MBeanInfo(MetricsMBean.class.getName(), "Study streak metrics", attrs.toArray(new MBeanAttributeInfo[0]),
+                        null, new MBeanOperationInfo[] { dumpOp }, null);
+            }
+        }
+    }
+
+    // `java StudyStreak bench [case]` runs every case, or one of: membership, memory, leaderboard, dashboard,
+    // history, evaluate, scheduler, storage, report, search, logging, events, hash, metrics. Each timed case
+    // runs once to warm up and then studystreak.bench.runs times.
+    static class Benchmarks {
+        private static final int RUNS = Integer.getInteger("studystreak.bench.runs", 5);
+        private static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+        public static void run(String[] args) {
+            ActivityLogger.setMuted(true);
+            Events.setMuted(true);
+            HistoryStore.setEnabled(false);
+            String only = args.length > 1 ? args[1] : null;
+            System.out.println("java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors()
+                    + " cpu(s), " + EVAL_THREADS + " eval thread(s), " + (Runtime.getRuntime().maxMemory() >> 20) + " MB max heap");
+            if (only == null || only.equals("membership")) membership();
+            if (only == null || only.equals("memory")) memory();
+            if (only == null || only.equals("leaderboard")) leaderboard();
+            if (only == null || only.equals("dashboard")) dashboard();
+            if (only == null || only.equals("history")) history();
+            if (only == null || only.equals("evaluate")) evaluate();
+            if (only == null || only.equals("scheduler")) scheduler();
+            if (only == null || only.equals("storage")) storage();
+            if (only == null || only.equals("report")) report();
+            if (only == null || only.equals("search")) search();
+            if (only == null || only.equals("logging")) logging();
+            if (only == null || only.equals("events")) events();
+            if (only == null || only.equals("hash")) hash();
+            if (only == null || only.equals("metrics")) metrics();
+        }
+
+        // Synthetic users, groups and memberships. Group popularity is skewed so a few groups are large, a
+        // share of members logs each day with hours spread around the group target, and some users have
+        // pending join requests.
+        static class Population {
+            final Map<String, User> users = new HashMap<>();
+            final Map<String, Group> groups = new HashMap<>();
+
+            static Population generate(int userCount, int groupCount, int perUser, double logRate, long seed) {
+                Random r = new Random(seed);
+                Population p = new Population();
+                Group[] all = new Group[groupCount];
+                for (int g = 0; g < groupCount; g++) {
+                    all[g] = new Group("group" + g, "user0", 1 + r.nextInt(4));
+                    p.groups.put(all[g].getGroupName(), all[g]);
+                }
+                for (int i = 0; i < userCount; i++) {
+                    User u = new User("user" + i, "");
+                    p.users.put(u.getUsername(), u);
+                    for (int k = 0; k < perUser; k++) {
+                        Group g = all[(int) (groupCount * Math.pow(r.nextDouble(), 2))];
+                        if (u.isMemberOfGroup(g.getGroupName())) continue;
+                        u.joinGroupDirect(g.getGroupName());
+                        g.addMember(u.getUsername());
+                        UserGroupStatus s = u.getStatus(g.getGroupName());
+                        s.setConsecutiveFailures(r.nextInt(3));
+                        if (r.nextDouble() >= logRate) continue;
+                        int hours = (int) Math.max(0, Math.min(MAX_HOURS_PER_DAY, Math.round(g.getTargetHours() + r.nextGaussian() * 2)));
+                        s.setTodayHours(hours);
+                        s.setHasLoggedToday(true);
+                        s.setLastLogDate(currentDate);
+                        g.updateTodayStudy(u.getUsername(), hours);
+                    }
+                    if (r.nextInt(20) == 0) {
+                        Group g = all[r.nextInt(groupCount)];
+                        if (!u.isMemberOfGroup(g.getGroupName())) g.addJoinRequestDirect(u.getUsername());
+                    }
+                }
+                return p;
+            }
+
+            Group largest() {
+                return Collections.max(groups.values(), Comparator.comparingInt(Group::memberCount));
+            }
+        }
+
+        static void leaderboard() {
+            for (int size : new int[] { 100, 10_000, 100_000 }) {
+                Population p = Population.generate(size, 1, 1, 0.0, 11);
+                Group g = p.largest();
+                List<String> members = new ArrayList<>(g.getMembers());
+                Random r = new Random(5);
+                measure("updateTodayStudy for every member of a " + size + "-member group", RUNS, () -> null, ignored -> {
+                    for (String m : members) g.updateTodayStudy(m, 1 + r.nextInt(MAX_HOURS_PER_DAY));
+                });
+                measure("printLeaderboard top " + LEADERBOARD_PREVIEW + " x1000 on a " + size + "-member group", RUNS, () -> null,
+                        ignored -> quietly(() -> {
+                            for (int i = 0; i < 1000; i++) g.printLeaderboard(0, LEADERBOARD_PREVIEW);
+                        }));
+                measure("printLeaderboard (all) on a " + size + "-member group", RUNS, () -> null, ignored -> quietly(g::printLeaderboard));
+            }
+        }
+
+        // A view after each of 1000 log updates re-renders; repeated views without changes are cache hits.
+        static void dashboard() {
+            for (int size : new int[] { 100, 10_000, 100_000 }) {
+                Population p = Population.generate(size, 1, 1, 0.7, 13);
+                Group g = p.largest();
+                List<String> members = new ArrayList<>(g.getMembers());
+                Random r = new Random(7);
+                measure("uncached full dashboard on a " + size + "-member group", RUNS, () -> null,
+                        ignored -> quietly(() -> {
+                            System.out.println("Members (" + g.getMembers().size() + "): " + String.join(", ", g.getMembers()));
+                            g.printLeaderboard();
+                            System.out.println("Pending join requests: " + g.getJoinRequests());
+                        }));
+                measure("cached dashboard x1000 on a " + size + "-member group", RUNS, () -> null, ignored -> {
+                    for (int i = 0; i < 1000; i++) DashboardCache.get(g);
+                });
+                measure("update + dashboard x1000 on a " + size + "-member group", RUNS, () -> null, ignored -> {
+                    for (int i = 0; i < 1000; i++) {
+                        g.updateTodayStudy(members.get(r.nextInt(members.size())), 1 + r.nextInt(MAX_HOURS_PER_DAY));
+                        DashboardCache.get(g);
+                    }
+                });
+            }
+            System.out.println(DashboardCache.stats());
+        }
+
+        // A year of days for a 20,000-user population, written directly rather than through rollover.
+        static void history() {
+            Population p = Population.generate(20_000, 200, 3, 0.7, 17);
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("bench-history");
+            } catch (IOException e) {
+                System.out.println("Failed to create benchmark directory: " + e.getMessage());
+                return;
+            }
+            HistoryStore.redirect(dir);
+            HistoryStore.setEnabled(true);
+            Random r = new Random(3);
+            LocalDate first = currentDate.minusDays(365);
+            long memberDays = 0;
+            long t0 = System.nanoTime();
+            for (int d = 0; d < 365; d++) {
+                HistoryStore.Day day = HistoryStore.begin(first.plusDays(d));
+                for (Group g : p.groups.values()) {
+                    int[] ids = g.memberIds();
+                    HistoryStore.GroupDay gd = new HistoryStore.GroupDay(g.getGroupName(), ids);
+                    for (int slot = 0; slot < ids.length; slot++) gd.add(slot, r.nextInt(MAX_HOURS_PER_DAY + 1) / 4, r.nextInt(10) < 7);
+                    gd.finish(r.nextInt(30), g.getTargetHours(), 0);
+                    day.add(gd);
+                    memberDays += g.memberCount();
+                }
+                HistoryStore.commit(day);
+            }
+            long t1 = System.nanoTime();
+            long bytes;
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                bytes = files.mapToLong(f -> f.toFile().length()).sum();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            System.out.printf("write 365 days of %d member-days: %d ms, %.2f bytes per member-day%n",
+                    memberDays, (t1 - t0) / 1_000_000, (double) bytes / memberDays);
+            Group g = p.largest();
+            String member = g.getMembers().iterator().next();
+            LocalDate last = first.plusDays(364);
+            for (int days : new int[] { 7, 30, 365 }) {
+                measure(days + "-day group totals, " + g.memberCount() + "-member group", RUNS, () -> null,
+                        ignored -> HistoryStore.group(g.getGroupName(), last.minusDays(days - 1), last));
+            }
+            measure("365-day member totals and longest run", RUNS, () -> null,
+                    ignored -> HistoryStore.member(member, g.getGroupName(), last.minusDays(364), last));
+            HistoryStore.setEnabled(false);
+            HistoryStore.redirect(Paths.get(HISTORY_DIR));
+        }
+
+        static void evaluate() {
+            int userCount = 100_000;
+            int groupCount = 1_000;
+            measure("evaluateTodayAndUpdate, largest group of a " + userCount + "-user population", RUNS,
+                    () -> Population.generate(userCount, groupCount, 5, 0.7, 21),
+                    p -> p.largest().evaluateTodayAndUpdate(p.users));
+            Map<String, User> savedUsers = users;
+            Map<String, Group> savedGroups = groups;
+            LocalDate today = currentDate;
+            measure("full rollover of " + userCount + " users x5 memberships in " + groupCount + " groups", RUNS,
+                    () -> Population.generate(userCount, groupCount, 5, 0.7, 21),
+                    p -> {
+                        users = p.users;
+                        groups = p.groups;
+                        EvaluationEngine.catchUp(new ArrayList<>(p.groups.values()), g -> today, false);
+                    });
+            for (double active : new double[] { 1.0, 0.1 }) {
+                long[] counts = new long[2];
+                measure("rollover after a day everyone met the target, " + Math.round(active * 100) + "% logging", RUNS, () -> {
+                    Population p = Population.generate(userCount, groupCount, 5, 0.7, 21);
+                    users = p.users;
+                    groups = p.groups;
+                    EvaluationEngine.catchUp(new ArrayList<>(p.groups.values()), g -> today, false);
+                    logAll(p, 1.0);
+                    EvaluationEngine.catchUp(new ArrayList<>(p.groups.values()), g -> today.plusDays(1), false);
+                    for (User u : p.users.values()) u.clearDirty();
+                    logAll(p, active);
+                    return p;
+                }, p -> {
+                    long before = Metrics.EVALUATE_MEMBERS.get();
+                    EvaluationEngine.catchUp(new ArrayList<>(p.groups.values()), g -> today.plusDays(2), false);
+                    counts[0] = Metrics.EVALUATE_MEMBERS.get() - before;
+                    counts[1] = p.users.values().stream().filter(User::isDirty).count();
+                });
+                System.out.printf("%-70s %9d members, %d users dirty%n", "  evaluated that day", counts[0], counts[1]);
+            }
+            users = savedUsers;
+            groups = savedGroups;
+            currentDate = today;
+        }
+
+        // Logs the target hours for the given share of memberships.
+        private static void logAll(Population p, double share) {
+            Random r = new Random(7);
+            for (User u : p.users.values()) {
+                for (UserGroupStatus s : u.getStatuses()) {
+                    if (r.nextDouble() >= share) continue;
+                    Group g = p.groups.get(s.getGroupName());
+                    try {
+                        logHours(u, g, g.getTargetHours());
+                    } catch (LateLogException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+
+        static void scheduler() {
+            int groupCount = 100_000;
+            List<Group> all = new ArrayList<>(groupCount);
+            for (int i = 0; i < groupCount; i++) all.add(new Group("group" + i, "admin", 2));
+            long close = all.get(0).closesAt().toEpochMilli();
+            long spread = RolloverScheduler.SPREAD_MILLIS;
+            long step = RolloverScheduler.SLOT_MILLIS;
+            measure("schedule " + groupCount + " groups sharing one cutoff", RUNS, () -> {
+                RolloverScheduler.clear();
+                return null;
+            }, ignored -> {
+                for (Group g : all) RolloverScheduler.schedule(g);
+            });
+            int[] busiest = new int[1];
+            measure("take them off the wheel one " + step + " ms tick at a time over a " + spread / 1000 + " s spread", RUNS, () -> {
+                RolloverScheduler.clear();
+                for (Group g : all) RolloverScheduler.schedule(g);
+                RolloverScheduler.takeDue(close - 1);
+                return null;
+            }, ignored -> {
+                int taken = 0;
+                for (long t = close; t <= close + spread; t += step) {
+                    int n = RolloverScheduler.takeDue(t).size();
+                    busiest[0] = Math.max(busiest[0], n);
+                    taken += n;
+                }
+                if (taken != groupCount) throw new IllegalStateException("took " + taken + " of " + groupCount);
+            });
+            System.out.printf("%-70s %9d groups%n", "most groups due in one tick", busiest[0]);
+            RolloverScheduler.clear();
+        }
+
+        static void storage() {
+            int userCount = 100_000;
+            int shards = StorageManager.SHARDS;
+            Population p = Population.generate(userCount, 1_000, 5, 0.7, 31);
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("bench-storage");
+            } catch (IOException e) {
+                System.out.println("Failed to create benchmark directory: " + e.getMessage());
+                return;
+            }
+            String[] userFiles = new String[shards];
+            String[] groupFiles = new String[shards];
+            long[] userChecks = new long[shards];
+            long[] groupChecks = new long[shards];
+            measure("save " + userCount + " users and " + p.groups.size() + " groups in " + shards + " shards (encode, write, force)", RUNS, () -> null, ignored -> {
+                try {
+                    for (Map.Entry<Integer, ByteBuffer> e : SnapshotCodec.encodeUserShards(p.users.values(), 1, shards).entrySet()) {
+                        userFiles[e.getKey()] = StorageManager.shardFile("users", e.getKey(), 1);
+                        userChecks[e.getKey()] = SnapshotCodec.Manifest.check(e.getValue());
+                        writeForced(dir.resolve(userFiles[e.getKey()]), e.getValue());
+                    }
+                    List<List<Group>> parts = SnapshotCodec.partition(p.groups.values(), shards, Group::getGroupName);
+                    for (int s = 0; s < shards; s++) {
+                        groupFiles[s] = StorageManager.shardFile("groups", s, 1);
+                        ByteBuffer data = SnapshotCodec.encodeGroups(parts.get(s), 1);
+                        groupChecks[s] = SnapshotCodec.Manifest.check(data);
+                        writeForced(dir.resolve(groupFiles[s]), data);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            SnapshotCodec.Manifest manifest = new SnapshotCodec.Manifest(1, 1, userFiles, groupFiles, userChecks, groupChecks);
+            measure("validate the checksums of every shard", RUNS, () -> null, ignored -> {
+                try {
+                    manifest.validate(dir);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            measure("load them back (map user shards, decode group shards, read every user)", RUNS, () -> null, ignored -> {
+                try {
+                    UserStore store = UserStore.open(dir, manifest, shards);
+                    for (String f : manifest.groupShards) SnapshotCodec.decodeGroups(StorageManager.readFile(dir.resolve(f)));
+                    int memberships = 0;
+                    for (User u : store.values()) memberships += u.groupCount();
+                    if (memberships == 0) throw new IllegalStateException("empty round trip");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            UserStore store;
+            try {
+                store = UserStore.open(dir, manifest, shards);
+            } catch (IOException e) {
+                System.out.println("Failed to open " + dir + ": " + e.getMessage());
+                return;
+            }
+            int appends = 1000;
+            for (boolean force : new boolean[] { false, true }) {
+                measure("append " + appends + " journal-sized records" + (force ? ", fsync after each" : ""), RUNS, () -> null, ignored -> {
+                    ByteBuffer rec = ByteBuffer.allocate(48);
+                    try (FileChannel ch = FileChannel.open(dir.resolve("journal.bench"), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        for (int i = 0; i < appends; i++) {
+                            rec.clear();
+                            while (rec.hasRemaining()) ch.write(rec);
+                            if (force) ch.force(false);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            List<String> names = new ArrayList<>(p.users.keySet());
+            Random random = new Random(17);
+            long[] generation = { 1 };
+            for (int changed : new int[] { 0, 10, 100, 1000 }) {
+                int[] written = new int[1];
+                measure("save after changing " + changed + " users", RUNS, () -> {
+                    for (int i = 0; i < changed; i++) {
+                        User u = store.get(names.get(random.nextInt(names.size())));
+                        if (u.groupCount() > 0) u.getStatuses().get(0).setTodayHours(random.nextInt(MAX_HOURS_PER_DAY));
+                    }
+                    return null;
+                }, ignored -> {
+                    try {
+                        long gen = ++generation[0];
+                        Map<Integer, Path> paths = new HashMap<>();
+                        Map<Integer, ByteBuffer> dirty = store.encodeShards(gen, false);
+                        for (Map.Entry<Integer, ByteBuffer> e : dirty.entrySet()) {
+                            Path path = dir.resolve(StorageManager.shardFile("users", e.getKey(), gen));
+                            writeForced(path, e.getValue());
+                            paths.put(e.getKey(), path);
+                        }
+                        store.rebase(paths);
+                        written[0] = dirty.size();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                System.out.println("  rewrote " + written[0] + " of " + shards + " user shards");
+            }
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path f : ds) Files.delete(f);
+                Files.delete(dir);
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + dir + ": " + e.getMessage());
+            }
+        }
+
+        // The at-risk report over users written to shards and streamed back through UserStore.scan, checked
+        // against the same users held in memory. Heap in use after a GC is shown before and after the scan.
+        static void report() {
+            int userCount = 200_000;
+            int shards = StorageManager.SHARDS;
+            Population p = Population.generate(userCount, 2_000, 5, 0.7, 37);
+            Path dir;
+            try {
+                dir = Files.createTempDirectory("bench-report");
+            } catch (IOException e) {
+                System.out.println("Failed to create benchmark directory: " + e.getMessage());
+                return;
+            }
+            String[] userFiles = new String[shards];
+            String[] groupFiles = new String[shards];
+            long[] checks = new long[shards];
+            try {
+                for (Map.Entry<Integer, ByteBuffer> e : SnapshotCodec.encodeUserShards(p.users.values(), 1, shards).entrySet()) {
+                    userFiles[e.getKey()] = StorageManager.shardFile("users", e.getKey(), 1);
+                    checks[e.getKey()] = SnapshotCodec.Manifest.check(e.getValue());
+                    writeForced(dir.resolve(userFiles[e.getKey()]), e.getValue());
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to write " + dir + ": " + e.getMessage());
+                return;
+            }
+            long memberships = 0;
+            for (User u : p.users.values()) memberships += u.groupCount();
+            long[] expected = new long[1];
+            measure("at-risk over " + memberships + " memberships held in memory", RUNS, () -> null, ignored -> {
+                Reports.Sink sink = new Reports.Sink(NULL_OUT, false, "group", "user", "failures", "logged_today", "today_hours", "last_log_date");
+                Reports.atRisk(p.users.values().parallelStream(), p.groups, sink);
+                expected[0] = sink.rows();
+            });
+            p.users.clear();
+            UserStore store;
+            try {
+                store = UserStore.open(dir, new SnapshotCodec.Manifest(1, 1, userFiles, groupFiles, checks, new long[shards]), shards);
+            } catch (IOException e) {
+                System.out.println("Failed to open " + dir + ": " + e.getMessage());
+                return;
+            }
+            long before = heapAfterGc();
+            measure("at-risk over the same memberships streamed from " + shards + " shards", RUNS, () -> null, ignored -> {
+                Reports.Sink sink = new Reports.Sink(NULL_OUT, false, "group", "user", "failures", "logged_today", "today_hours", "last_log_date");
+                Reports.atRisk(store.scan(), p.groups, sink);
+                if (sink.rows() != expected[0]) throw new IllegalStateException(sink.rows() + " rows, expected " + expected[0]);
+            });
+            System.out.printf("%-70s %9d rows%n", "memberships at risk", expected[0]);
+            System.out.printf("%-70s %9.1f MB before, %.1f MB after%n", "heap in use after GC around the streamed runs", before / 1e6, heapAfterGc() / 1e6);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path f : ds) Files.delete(f);
+                Files.delete(dir);
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + dir + ": " + e.getMessage());
+            }
+        }
+
+        private static long heapAfterGc() {
+            System.gc();
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private static void writeForced(Path path, ByteBuffer data) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (data.hasRemaining()) ch.write(data);
+                ch.force(false);
+            }
+        }
+
+        static void hash() {
+            int count = 100_000;
+            measure("SecurityUtil.hash x" + count, RUNS, () -> null, ignored -> {
+                for (int i = 0; i < count; i++) SecurityUtil.hash("password" + i);
+            });
+            String legacy = SecurityUtil.hash("password");
+            measure("verify legacy sha256 x" + count, RUNS, () -> null, ignored -> {
+                for (int i = 0; i < count; i++) SecurityUtil.verify("password", legacy);
+            });
+            String current = SecurityUtil.hashPassword("password");
+            int logins = 20;
+            measure("verify " + current.substring(0, current.indexOf('$', current.indexOf('$') + 1)) + " x" + logins, RUNS, () -> null, ignored -> {
+                for (int i = 0; i < logins; i++) SecurityUtil.verify("password", current);
+            });
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] nanos = new long[200];
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < nanos.length; i++) {
+                long t0 = System.nanoTime();
+                SecurityUtil.verify("password", current);
+                nanos[i] = System.nanoTime() - t0;
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+            Arrays.sort(nanos);
+            System.out.printf("verify latency over %d logins: p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d bytes allocated per login%n",
+                    nanos.length, nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6, nanos[nanos.length - 1] / 1e6,
+                    allocated / nanos.length);
+        }
+
+        static void metrics() {
+            int count = 1_000_000;
+            Metrics.Histogram h = new Metrics.Histogram();
+            Metrics.Counter c = new Metrics.Counter();
+            measure("Histogram.record x" + count, RUNS, () -> null, ignored -> {
+                for (int i = 0; i < count; i++) h.record(i * 37L);
+            });
+            measure("Counter.inc x" + count, RUNS, () -> null, ignored -> {
+                for (int i = 0; i < count; i++) c.inc();
+            });
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < count; i++) h.record(i);
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+            System.out.printf("allocated while recording %d values: %d bytes%n", count, allocated);
+        }
+
+        private static void quietly(Runnable r) {
+            PrintStream out = System.out;
+            System.setOut(NULL_OUT);
+            try {
+                r.run();
+            } finally {
+                System.setOut(out);
+            }
+        }
+
+        static void memory() {
+            int userCount = 100_000;
+            int groupCount = 10_000;
+            int perUser = 10;
+            Map<String, User> all = new HashMap<>();
+            Map<String, Group> gs = new HashMap<>();
+            for (int g = 0; g < groupCount; g++) gs.put("group" + g, new Group("group" + g, "user0", 2));
+            for (int i = 0; i < userCount; i++) all.put("user" + i, new User("user" + i, ""));
+            long before = usedHeap();
+            Random r = new Random(7);
+            int memberships = 0;
+            for (User u : all.values()) {
+                for (int k = 0; k < perUser; k++) {
+                    Group g = gs.get("group" + r.nextInt(groupCount));
+                    if (u.isMemberOfGroup(g.getGroupName())) continue;
+                    u.joinGroupDirect(g.getGroupName());
+                    g.addMember(u.getUsername());
+                    g.updateTodayStudy(u.getUsername(), 1 + r.nextInt(MAX_HOURS_PER_DAY));
+                    memberships++;
+                }
+            }
+            long after = usedHeap();
+            System.out.printf("%-70s %9.1f bytes/membership (%d memberships, %d MB)%n", "heap per membership incl. today's leaderboard entry",
+                    (after - before) / (double) memberships, memberships, (after - before) >> 20);
+            Reference.reachabilityFence(all);
+            Reference.reachabilityFence(gs);
+        }
+
+        // Group names made of two or three words from a small vocabulary and a number, with skewed member
+        // counts. Compares index queries against scanning every group, which is what listing groups costs
+        // without the index.
+        static void search() {
+            int groupCount = 300_000;
+            String[] words = { "math", "physics", "chem", "bio", "history", "law", "med", "code", "java", "rust", "exam",
+                    "prep", "night", "owls", "early", "birds", "study", "squad", "club", "crew", "team", "lab", "notes",
+                    "reading", "writing", "french", "spanish", "german", "piano", "art", "design", "stats", "calc", "algebra" };
+            Random r = new Random(41);
+            String[] names = new String[groupCount];
+            int[] members = new int[groupCount];
+            int[] streaks = new int[groupCount];
+            for (int g = 0; g < groupCount; g++) {
+                StringBuilder b = new StringBuilder();
+                for (int w = 2 + r.nextInt(2); w > 0; w--) b.append(words[r.nextInt(words.length)]).append(w > 1 ? " " : "");
+                names[g] = b.append(' ').append(g).toString();
+                members[g] = 1 + (int) (1000 * Math.pow(r.nextDouble(), 6));
+                streaks[g] = r.nextInt(60);
+            }
+            GroupIndex[] built = new GroupIndex[1];
+            measure("index " + groupCount + " group names", RUNS, () -> null, ignored -> {
+                GroupIndex index = new GroupIndex();
+                for (int g = 0; g < groupCount; g++) index.add(names[g], members[g], streaks[g]);
+                built[0] = index;
+            });
+            GroupIndex index = built[0];
+            long before = heapAfterGc();
+            GroupIndex filled = new GroupIndex();
+            for (int g = 0; g < groupCount; g++) filled.add(names[g], members[g], streaks[g]);
+            filled.search("", 1);
+            System.out.printf("%-70s %9.1f MB%n", "heap for the index with every cache filled", (heapAfterGc() - before) / 1e6);
+            filled.search("", 1);
+            String[][] queries = {
+                    { "prefix of 2 chars", "ma" }, { "prefix of one word", "physics" }, { "two words", "night owls" },
+                    { "full name", names[12345] }, { "one typo", "phsyics" }, { "two typos", "nigth owsl" }, { "blank", "" } };
+            for (String[] q : queries) {
+                for (int i = 0; i < 3000; i++) index.search(q[1], GroupIndex.PAGE * (1 + i % 3));
+                long[] nanos = new long[1000];
+                for (int i = 0; i < nanos.length; i++) {
+                    long t0 = System.nanoTime();
+                    index.search(q[1], GroupIndex.PAGE * (1 + i % 3));
+                    nanos[i] = System.nanoTime() - t0;
+                }
+                Arrays.sort(nanos);
+                List<GroupIndex.Hit> hits = index.search(q[1], 1);
+                System.out.printf("%-70s p50 %.3f ms, p99 %.3f ms, best: %s%n", "search " + q[0] + " (pages 1-3)",
+                        nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6, hits.isEmpty() ? "-" : hits.get(0).name);
+            }
+            measure("scan all groups for prefix \"physics\" and rank them", RUNS, () -> null, ignored -> {
+                List<Integer> found = new ArrayList<>();
+                for (int g = 0; g < groupCount; g++) {
+                    if (names[g].toLowerCase(Locale.ROOT).startsWith("physics")) found.add(g);
+                }
+                found.sort((a, b) -> members[a] != members[b] ? Integer.compare(members[b], members[a]) : Integer.compare(streaks[b], streaks[a]));
+            });
+            measure("update every streak, then search a prefix of 2 chars", RUNS, () -> null, ignored -> {
+                for (int g = 0; g < groupCount; g++) index.update(names[g], members[g], ++streaks[g] % 60);
+                index.search("ma", GroupIndex.PAGE);
+            });
+        }
+
+        static void logging() {
+            int lines = 100_000;
+            int threads = 4;
+            Path out;
+            try {
+                out = Files.createTempDirectory("bench-activity");
+            } catch (IOException e) {
+                System.out.println("Failed to create benchmark log directory: " + e.getMessage());
+                return;
+            }
+            ActivityLogger.redirect(out);
+            ActivityLogger.setMuted(false);
+            measure("log " + lines + " lines from " + threads + " threads, then sync", RUNS, () -> null, ignored -> {
+                Thread[] ts = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    String group = "group" + t;
+                    ts[t] = new Thread(() -> {
+                        for (int i = 0; i < lines / threads; i++) ActivityLogger.log(group, "bench line " + i);
+                    });
+                    ts[t].start();
+                }
+                for (Thread t : ts) {
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                ActivityLogger.sync();
+            });
+
+            LocalDate today = currentDate;
+            int days = 7;
+            int groupCount = 200;
+            for (int d = 0; d < days; d++) {
+                currentDate = today.plusDays(d);
+                for (int i = 0; i < lines; i++) ActivityLogger.log("group" + (i % groupCount), "bench line " + i);
+            }
+            currentDate = today;
+            ActivityLogger.close();
+            LocalDate day = today.plusDays(days / 2);
+            measure("query one group for one day via the segment index", RUNS, () -> null, ignored -> {
+                try {
+                    ActivityLogger.query("group7", day, day, line -> { });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            measure("same query by decompressing and scanning every segment", RUNS, () -> null, ignored -> {
+                String prefix = "[" + day + "] [group7] ";
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(out, "*.gz")) {
+                    for (Path p : ds) {
+                        try (BufferedReader r = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(p)), StandardCharsets.UTF_8))) {
+                            for (String line; (line = r.readLine()) != null; ) {
+                                if (line.startsWith(prefix)) line.length();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            ActivityLogger.setMuted(true);
+            ActivityLogger.redirect(Paths.get(ACTIVITY_DIR));
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(out)) {
+                for (Path p : ds) Files.delete(p);
+                Files.delete(out);
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + out + ": " + e.getMessage());
+            }
+        }
+
+        static void events() {
+            int count = 2_000_000;
+            int threads = 4;
+            int consumers = 3;
+            Path out;
+            try {
+                out = Files.createTempDirectory("bench-events");
+            } catch (IOException e) {
+                System.out.println("Failed to create benchmark event directory: " + e.getMessage());
+                return;
+            }
+            Events.redirect(out);
+            Events.setMuted(false);
+            LocalDate today = currentDate;
+            measure("emit " + count + " events from " + threads + " threads, then sync", RUNS, () -> null, ignored -> {
+                Thread[] ts = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    String group = "group" + t;
+                    ts[t] = new Thread(() -> {
+                        for (int i = 0; i < count / threads; i++) Events.hoursLogged(today, group, "user" + (i & 1023), i % 24, 0);
+                    });
+                    ts[t].start();
+                }
+                for (Thread t : ts) {
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                Events.sync();
+            });
+            int[] round = { 0 };
+            measure(consumers + " new subscribers each read " + count + " events, committing every batch", RUNS,
+                    () -> round[0]++, r -> {
+                        CountDownLatch done = new CountDownLatch(consumers);
+                        for (int c = 0; c < consumers; c++) {
+                            Events.feed("bench" + r + "-" + c).subscribe(new Counter(count, done));
+                        }
+                        try {
+                            done.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+
+            int userCount = 100_000;
+            int groupCount = 1_000;
+            Map<String, User> savedUsers = users;
+            Map<String, Group> savedGroups = groups;
+            for (int subscribers : new int[] { -1, 0, consumers }) {
+                Events.setMuted(subscribers < 0);
+                List<Flow.Subscription> subscriptions = new ArrayList<>();
+                for (int c = 0; c < subscribers; c++) {
+                    Events.skipToEnd("rollover" + c);
+                    Events.feed("rollover" + c).subscribe(new Counter(Long.MAX_VALUE, null) {
+                        @Override
+                        public void onSubscribe(Flow.Subscription s) {
+                            subscriptions.add(s);
+                            super.onSubscribe(s);
+                        }
+                    });
+                }
+                measure("full rollover of " + userCount + " users, events " + (subscribers < 0 ? "muted" : "on, " + subscribers + " subscribers"), RUNS,
+                        () -> Population.generate(userCount, groupCount, 5, 0.7, 21),
+                        p -> {
+                            users = p.users;
+                            groups = p.groups;
+                            EvaluationEngine.catchUp(new ArrayList<>(p.groups.values()), g -> today, false);
+                        });
+                for (Flow.Subscription s : subscriptions) s.cancel();
+            }
+            users = savedUsers;
+            groups = savedGroups;
+            Events.setMuted(true);
+            Events.redirect(Paths.get(EVENTS_DIR));
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(out)) {
+                for (Path p : ds) Files.delete(p);
+                Files.delete(out);
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + out + ": " + e.getMessage());
+            }
+        }
+
+        // Requests batches one at a time and commits each, counting down once `target` events have arrived.
+        private static class Counter implements Flow.Subscriber<Events.Batch> {
+            private final long target;
+            private final CountDownLatch done;
+            private Flow.Subscription subscription;
+            private long seen;
+
+            Counter(long target, CountDownLatch done) {
+                this.target = target;
+                this.done = done;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(Events.Batch batch) {
+                seen += batch.events.size();
+                batch.commit();
+                if (seen >= target) {
+                    subscription.cancel();
+                    done.countDown();
+                } else {
+                    subscription.request(1);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Subscriber failed: " + t);
+                if (done != null) while (done.getCount() > 0) done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }
+
+        private static long usedHeap() {
+            Runtime rt = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) System.gc();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        static void membership() {
+            int members = 100_000;
+            int pending = 10_000;
+            measure("approve " + pending + " requests into a " + members + "-member group", RUNS, () -> {
+                Group g = new Group("bench", "m0", 2);
+                for (int i = 0; i < members; i++) g.addMember("m" + i);
+                List<String> order = new ArrayList<>();
+                for (int i = 0; i < pending; i++) {
+                    g.addJoinRequestDirect("r" + i);
+                    order.add("r" + i);
+                }
+                Collections.shuffle(order, new Random(42));
+                return new Object[] { g, order };
+            }, state -> {
+                Group g = (Group) state[0];
+                @SuppressWarnings("unchecked")
+                List<String> order = (List<String>) state[1];
+                for (String r : order) g.approveRequest(r);
+            });
+            measure("rollover of a " + members + "-member group with " + members / 10 + " auto-removals", RUNS, () -> {
+                Group g = new Group("bench", "m0", 2);
+                Map<String, User> all = new HashMap<>();
+                for (int i = 0; i < members; i++) {
+                    User u = new User("m" + i, "");
+                    u.joinGroupDirect("bench");
+                    UserGroupStatus s = u.getStatus("bench");
+                    if (i % 10 == 0) {
+                        s.setConsecutiveFailures(2);
+                    } else {
+                        s.setHasLoggedToday(true);
+                        s.setTodayHours(3);
+                    }
+                    all.put(u.getUsername(), u);
+                    g.addMember(u.getUsername());
+                }
+                return new Object[] { g, all };
+            }, state -> {
+                @SuppressWarnings("unchecked")
+                Map<String, User> all = (Map<String, User>) state[1];
+                ((Group) state[0]).evaluateTodayAndUpdate(all);
+            });
+        }
+
+        static <T> void measure(String name, int runs, java.util.function.Supplier<T> setup, java.util.function.Consumer<T> op) {
+            long best = Long.MAX_VALUE;
+            long total = 0;
+            for (int i = 0; i < runs + 1; i++) {
+                T state = setup.get();
+                long t0 = System.nanoTime();
+                op.accept(state);
+                long elapsed = System.nanoTime() - t0;
+                if (i == 0) continue;
+                best = Math.min(best, elapsed);
+                total += elapsed;
+            }
+            System.out.printf("%-70s avg %9.2f ms   best %9.2f ms   (%d runs)%n", name, total / 1e6 / runs, best / 1e6, runs);
+        }
+    }
+
+    // `java StudyStreak check [case]` runs every case, or one of: restart, import, crash, damage, lock, each
+    // from a fresh data directory. Each console session runs in a child JVM with a scripted console and a
+    // fixed simulated clock, so a restart loads only what reached the disk. Prints PASS or FAIL per case and
+    // exits non-zero if any failed; a failed case keeps its directory for inspection.
+    static class SelfCheck {
+        private static final String ALICE = "2\nalice\npw\n";
+        private static final String DAY = "2026-03-02T12:00:00Z";
+        // alice and bob join math and alice logs 3 hours; then bob logs 5 hours; then bob views his statuses.
+        private static final String TWO_MEMBERS = ALICE + "2\nbob\npw\n1\nalice\npw\n1\nmath\n2\n7\n1\nbob\npw\n2\nmath\n7\n"
+                + "1\nalice\npw\n3\nmath\n1\nA\n4\nmath\n3\n7\n4\n";
+        private static final String BOB_LOGS = "1\nbob\npw\n4\nmath\n5\n7\n4\n";
+        private static final String BOB_STATUS = "1\nbob\npw\n6\n7\n4\n";
+        private static final String BOB_LOGGED = "Group: math | LoggedToday: true | TodayHours: 5";
+        private static int failed = 0;
+
+        public static void run(String[] args) {
+            String only = args.length > 1 ? args[1] : null;
+            if (only == null || only.equals("restart")) restartAfterLog();
+            if (only == null || only.equals("import")) importAfterIdleDays();
+            if (only == null || only.equals("crash")) crashes();
+            if (only == null || only.equals("damage")) damage();
+            if (only == null || only.equals("lock")) lockHeld();
+            System.out.println(failed == 0 ? "All checks passed." : failed + " check(s) failed.");
+            System.exit(failed == 0 ? 0 : 1);
+        }
+
+        // A member left alone across a rollover logs hours, the process checkpoints and exits, and the next
+        // process rolls the day over: the hours must still count towards the streak.
+        static void restartAfterLog() {
+            Path dir = newDir("restart");
+            String a = session(dir, "2026-03-02T12:00:00Z", ALICE + "1\nalice\npw\n1\nmath\n1\n7\n3\n4\n");
+            String b = session(dir, "2026-03-03T12:00:00Z", "1\nalice\npw\n4\nmath\n2\n7\n4\n");
+            String c = session(dir, "2026-03-03T12:00:00Z", "3\n1\nalice\npw\n8\nmath\n\n\n7\n4\n");
+            check("restart", dir, c.contains("[2026-03-03] [math] Streak incremented to 1 (met 1/1)"), a + b + c);
+        }
+
+        // Data last saved two days ago: an import must roll the group over first, so a row dated today is
+        // accepted and credited to today.
+        static void importAfterIdleDays() {
+            Path dir = newDir("import");
+            String a = session(dir, "2026-03-02T12:00:00Z", ALICE + "1\nalice\npw\n1\nmath\n1\n7\n4\n");
+            try {
+                Files.writeString(dir.resolve("rows.csv"), "user,group,date,hours\nalice,math,2026-03-04,3\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String b = session(dir, "2026-03-04T12:00:00Z", "", "import", "rows.csv");
+            String c = session(dir, "2026-03-04T12:00:00Z", "1\nalice\npw\n6\n7\n4\n");
+            check("import", dir, b.contains("Imported 1 rows, rejected 0") && c.contains("TodayHours: 3"), a + b + c);
+        }
+
+        // A session halted at each crash point, after bob's log was acknowledged: the next session must load
+        // it, whether from the journal alone or from a checkpoint.
+        static void crashes() {
+            for (String point : new String[] { "journal", "shards", "previous", "manifest" }) {
+                Path dir = newDir("crash-" + point);
+                String a = session(dir, DAY, TWO_MEMBERS);
+                String b = session(dir, DAY, BOB_LOGS, "-Dstudystreak.crashAt=" + point);
+                String c = session(dir, DAY, BOB_STATUS);
+                check("crash at " + point, dir, !b.contains("Saved data.") && c.contains(BOB_LOGGED), a + b + c);
+            }
+        }
+
+        // Damage to the newest checkpoint falls back to MANIFEST.prev and the journal kept with it; damage to
+        // both manifests refuses to start rather than overwrite them; a journal segment missing from the middle
+        // stops replay at the gap and is moved aside.
+        static void damage() {
+            for (String what : new String[] { "shard", "manifest", "truncated", "missing", "both" }) {
+                Path dir = newDir("damage-" + what);
+                String a = session(dir, DAY, TWO_MEMBERS);
+                String b = session(dir, DAY, BOB_LOGS);
+                Path data = dir.resolve(DATA_DIR);
+                try {
+                    switch (what) {
+                        case "shard": flip(newestShard(data), 20); break;
+                        case "manifest": flip(data.resolve(MANIFEST_FILE), 30); break;
+                        case "truncated":
+                            try (FileChannel ch = FileChannel.open(data.resolve(MANIFEST_FILE), StandardOpenOption.WRITE)) {
+                                ch.truncate(10);
+                            }
+                            break;
+                        case "missing": Files.delete(newestShard(data)); break;
+                        default:
+                            flip(data.resolve(MANIFEST_FILE), 30);
+                            flip(data.resolve(PREVIOUS_MANIFEST_FILE), 30);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                String c = session(dir, DAY, BOB_STATUS);
+                boolean ok = what.equals("both")
+                        ? c.contains("refusing to start") && !c.contains("Saved data.")
+                        : c.contains("Recovered from the previous checkpoint") && c.contains(BOB_LOGGED);
+                check("damaged " + what, dir, ok, a + b + c);
+            }
+
+            Path dir = newDir("damage-journal");
+            String a = session(dir, DAY, TWO_MEMBERS);
+            String b = session(dir, DAY, "1\nbob\npw\n4\nmath\n5\n1\nsci\n1\n7\n4\n", "-Dstudystreak.crashAt=shards");
+            Path gap;
+            try (Stream<Path> files = Files.list(dir)) {
+                gap = files.filter(p -> p.getFileName().toString().matches("journal\\.\\d+\\.log"))
+                        .max(Comparator.comparingLong(p -> Long.parseLong(p.getFileName().toString().split("\\.")[1]))).orElse(null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // the newest sealed segment is deleted once a later one exists, leaving a gap
+            String b2 = session(dir, DAY, "1\nbob\npw\n1\nart\n1\n7\n4\n", "-Dstudystreak.crashAt=shards");
+            try {
+                if (gap != null) Files.delete(gap);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String c = session(dir, DAY, BOB_STATUS);
+            check("missing journal segment", dir, gap != null && c.contains("is missing records") && c.contains("Moved")
+                    && c.contains("Loaded"), a + b + b2 + c);
+        }
+
+        // A session started while another process holds data/LOCK refuses to start; once it is released the
+        // next session loads what the first one saved.
+        static void lockHeld() {
+            Path dir = newDir("lock");
+            String a = session(dir, DAY, ALICE + "4\n");
+            String b;
+            try (FileChannel ch = FileChannel.open(dir.resolve(DATA_DIR).resolve(LOCK_FILE), StandardOpenOption.WRITE)) {
+                ch.lock();
+                b = session(dir, DAY, "1\nalice\npw\n7\n4\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String c = session(dir, DAY, "1\nalice\npw\n7\n4\n");
+            check("lock held", dir, b.contains("Another process is using") && !b.contains("Loaded")
+                    && c.contains("Loaded 1 users") && !c.contains("refusing to start"), a + b + c);
+        }
+
+        // A shard file of the newest checkpoint generation.
+        private static Path newestShard(Path data) throws IOException {
+            try (Stream<Path> files = Files.list(data)) {
+                return files.filter(p -> p.getFileName().toString().matches("(users|groups)-\\d+\\.\\d+\\.bin"))
+                        .max(Comparator.comparingInt(SelfCheck::generation).thenComparing(Comparator.naturalOrder()))
+                        .orElseThrow(() -> new IOException("no shards in " + data));
+            }
+        }
+
+        private static int generation(Path shard) {
+            String[] parts = shard.getFileName().toString().split("\\.");
+            return Integer.parseInt(parts[1]);
+        }
+
+        private static void flip(Path file, long at) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                ch.read(b, at);
+                b.put(0, (byte) ~b.get(0));
+                b.rewind();
+                ch.write(b, at);
+            }
+        }
+
+        private static Path newDir(String name) {
+            try {
+                return Files.createTempDirectory("check-" + name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Runs one session in `dir` on a simulated clock starting at `clock`, returning its output. Each of
+        // `opts` is a -D option for the JVM or else an argument after the class name.
+        static String session(Path dir, String clock, String input, String... opts) {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(ProcessHandle.current().info().command().orElse("java"));
+            cmd.add("-Dstudystreak.clock=" + clock);
+            for (String o : opts) {
+                if (o.startsWith("-D")) cmd.add(o);
+            }
+            cmd.add("-cp");
+            cmd.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                    .map(e -> Paths.get(e).toAbsolutePath().toString()).collect(Collectors.joining(File.pathSeparator)));
+            cmd.add(StudyStreak.class.getName());
+            for (String o : opts) {
+                if (!o.startsWith("-D")) cmd.add(o);
+            }
+            try {
+                Process p = new ProcessBuilder(cmd).directory(dir.toFile()).redirectErrorStream(true).start();
+                try (OutputStream in = p.getOutputStream()) {
+                    in.write(input.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException closedEarly) {
+                    // the session halted before reading all of its input
+                }
+                String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                p.waitFor();
+                return out;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void check(String name, Path dir, boolean ok, String output) {
+            if (ok) {
+                System.out.println("PASS " + name);
+                delete(dir);
+                return;
+            }
+            failed++;
+            System.out.println("FAIL " + name + " (data kept in " + dir + ")");
+            try {
+                Files.writeString(dir.resolve("sessions.txt"), output);
+            } catch (IOException e) {
+                System.out.println("Failed to save the session output: " + e.getMessage());
+            }
+        }
+
+        private static void delete(Path dir) {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + dir + ": " + e.getMessage());
             }
         }
     }